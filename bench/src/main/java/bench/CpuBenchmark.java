@@ -0,0 +1,103 @@
+package bench;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cpu.CPU;
+import memory.Memory;
+
+/**
+ * CPU.execute throughput per opcode family, in instructions per microsecond.
+ * No rom is loaded so the whole address space is plain ram and every
+ * immediate operand reads as 0.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CpuBenchmark {
+	private static final int PROGRAM_LENGTH = 1024;
+
+	@Param({"loads", "alu", "jumps", "stack"})
+	public String family;
+
+	private CPU cpu;
+	private byte[] program;
+
+	@Setup
+	public void setup() {
+		Memory memory = new Memory();
+		cpu = new CPU();
+		cpu.setMemory(memory);
+
+		int[] opcodes = opcodes(family);
+		program = new byte[PROGRAM_LENGTH];
+		for (int i = 0; i < PROGRAM_LENGTH; i++) {
+			program[i] = (byte) opcodes[i % opcodes.length];
+		}
+	}
+
+	private static int[] opcodes(String family) {
+		switch (family) {
+		case "loads": {
+			// LD r, r' (minus HALT) and LD r, d8
+			int[] ops = new int[63 + 8];
+			int n = 0;
+			for (int op = 0x40; op < 0x80; op++) {
+				if (op != 0x76) ops[n++] = op;
+			}
+			for (int r = 0; r < 8; r++) {
+				ops[n++] = 0x06 | r << 3;
+			}
+			return ops;
+		}
+		case "alu": {
+			// 8 bit ALU on registers and d8, INC/DEC r
+			int[] ops = new int[64 + 8 + 16];
+			int n = 0;
+			for (int op = 0x80; op < 0xC0; op++) {
+				ops[n++] = op;
+			}
+			for (int op = 0xC6; op <= 0xFE; op += 8) {
+				ops[n++] = op;
+			}
+			for (int r = 0; r < 8; r++) {
+				ops[n++] = 0x04 | r << 3;
+				ops[n++] = 0x05 | r << 3;
+			}
+			return ops;
+		}
+		case "jumps":
+			// JR, JP, JR cc, JP cc, JP (HL)
+			return new int[] {0x18, 0xC3, 0x20, 0x28, 0x30, 0x38, 0xC2, 0xCA, 0xD2, 0xDA, 0xE9};
+		case "stack":
+			// balanced PUSH/POP pairs and CALL/RET
+			return new int[] {0xC5, 0xD5, 0xE5, 0xF5, 0xF1, 0xE1, 0xD1, 0xC1, 0xCD, 0xC9};
+		default:
+			throw new IllegalArgumentException(family);
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(PROGRAM_LENGTH)
+	public int execute() {
+		int cycles = 0;
+		for (byte opcode : program) {
+			cycles += cpu.execute(opcode);
+		}
+		return cycles;
+	}
+}
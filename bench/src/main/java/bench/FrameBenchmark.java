@@ -0,0 +1,72 @@
+package bench;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cpu.CPU;
+import memory.Memory;
+import sound.APU;
+import video.PPU;
+
+/**
+ * End to end speed on real roms, with the ppu and apu attached as in
+ * HeadlessRunner: frames per second, plus the emulated
+ * T-cycles per second as an auxiliary counter (4.19 per microsecond is real time).
+ * Run from the repo root or point -Dgbasm.roms at the directory with the .gb files.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FrameBenchmark {
+
+	@Param({"test.gb", "pokeRed.gb"})
+	public String rom;
+
+	private CPU cpu;
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Counters {
+		public long cycles;
+
+		@Setup(Level.Iteration)
+		public void clear() {
+			cycles = 0;
+		}
+	}
+
+	@Setup
+	public void setup() {
+		Memory memory = new Memory();
+		memory.loadROM(System.getProperty("gbasm.roms", ".") + "/" + rom);
+		if (memory.getCartridge() == null) {
+			throw new IllegalStateException("Can't find " + rom + ", run from the repo root or set -Dgbasm.roms");
+		}
+		cpu = new CPU();
+		cpu.setMemory(memory);
+		new PPU(memory, cpu.getScheduler());
+		new APU(memory, cpu.getScheduler());
+	}
+
+	@Benchmark
+	public long frame(Counters counters) {
+		long cycles = cpu.runFrame();
+		counters.cycles += cycles;
+		return cycles;
+	}
+}
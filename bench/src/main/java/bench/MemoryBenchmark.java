@@ -0,0 +1,79 @@
+package bench;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import memory.Memory;
+
+/**
+ * Memory.read and Memory.write throughput by address region, in accesses per microsecond.
+ * pokeRed.gb (MBC3) is loaded so the rom and cartridge ram regions are real;
+ * writes to rom0/romN measure MBC register writes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MemoryBenchmark {
+	private static final int ACCESSES = 128;
+
+	@Param({"rom0", "romN", "vram", "sram", "wram", "echo", "oam", "io", "hram"})
+	public String region;
+
+	private Memory memory;
+	private int base;
+
+	@Setup
+	public void setup() {
+		memory = new Memory();
+		memory.loadROM(System.getProperty("gbasm.roms", ".") + "/pokeRed.gb");
+		memory.write(0x0000, 0x0A); //enable cartridge ram
+		base = base(region);
+	}
+
+	private static int base(String region) {
+		switch (region) {
+		case "rom0": return 0x0000;
+		case "romN": return 0x4000;
+		case "vram": return 0x8000;
+		case "sram": return 0xA000;
+		case "wram": return 0xC000;
+		case "echo": return 0xE000;
+		case "oam": return 0xFE00;
+		case "io": return 0xFF00;
+		case "hram": return 0xFF80;
+		default: throw new IllegalArgumentException(region);
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ACCESSES)
+	public int read() {
+		int sum = 0;
+		for (int i = 0; i < ACCESSES; i++) {
+			sum += memory.read(base + (i & 0x7F));
+		}
+		return sum;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ACCESSES)
+	public void write() {
+		for (int i = 0; i < ACCESSES; i++) {
+			memory.write(base + (i & 0x7F), i);
+		}
+	}
+}
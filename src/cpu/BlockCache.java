@@ -0,0 +1,154 @@
+package cpu;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import memory.Cartridge;
+import memory.Memory;
+
+/**
+ * Pre-decoded basic blocks keyed by (rom bank, PC). A block is the run of
+ * instructions from its start address up to the first one that can jump,
+ * with every opcode's immediate already read out of memory, so the run
+ * loop never goes back to the bus for instruction bytes.
+ *
+ * Rom blocks stay valid for as long as the cartridge is mapped. Blocks in
+ * work ram and HRAM never cross a 256 byte page, the page is write protected
+ * in Memory and all of its blocks are dropped the first time it is written.
+ * Anything else (vram, cartridge ram, echo ram, I/O) is left to the interpreter.
+ *
+ * Rom blocks only depend on the cartridge, so every instance running the same
+ * cartridge shares them.
+ */
+final class BlockCache {
+	private static final int MAX_LENGTH = 64; //instructions per block
+
+	//rom block tables per cartridge, shared between instances and threads
+	private static final Map<Cartridge, Block[][]> SHARED = new ConcurrentHashMap<>();
+
+	/**
+	 * a decoded basic block, immutable once built
+	 */
+	static final class Block {
+		final int[] ops; //opcode of each instruction
+		final int[] operands; //its decoded immediate
+		final int[] ends; //PC after each instruction
+		final int cycles; //T-cycles for the whole block with no branch taken
+
+		Block(int[] ops, int[] operands, int[] ends, int cycles) {
+			this.ops = ops;
+			this.operands = operands;
+			this.ends = ends;
+			this.cycles = cycles;
+		}
+	}
+
+	private final Memory memory;
+	private Cartridge cartridge; //rom the blocks were decoded from
+
+	//rom blocks per bank, tables are allocated the first time a bank runs
+	private Block[][] rom;
+	//blocks in C000-DFFF and FF80-FFFE indexed by address - 0x8000
+	private final Block[] ram = new Block[0x8000];
+
+	//scratch space for decoding
+	private final int[] ops = new int[MAX_LENGTH];
+	private final int[] operands = new int[MAX_LENGTH];
+	private final int[] ends = new int[MAX_LENGTH];
+
+	BlockCache(Memory memory) {
+		this.memory = memory;
+		memory.setCodeWriteHook(this::codeWritten);
+	}
+
+	/**
+	 * drop everything if another rom was loaded since the last run
+	 */
+	void validate() {
+		if (memory.getCartridge() != cartridge) {
+			cartridge = memory.getCartridge();
+			rom = cartridge == null ? null : SHARED.computeIfAbsent(cartridge, c -> new Block[0x200][]);
+			Arrays.fill(ram, null);
+		}
+	}
+
+	/**
+	 * @return the block starting at pc, decoding it on first use, or null
+	 * if the address is not cacheable
+	 */
+	Block lookup(int pc) {
+		if (cartridge == null) {
+			return null; //no rom mapped, 0000-7FFF is plain ram
+		}
+		if (pc < 0x8000) {
+			int bank = pc < 0x4000 ? 0 : memory.getRomBank() & 0x1FF;
+			Block[] table = rom[bank];
+			if (table == null) {
+				table = rom[bank] = new Block[Cartridge.BANK_SIZE];
+			}
+			Block block = table[pc & 0x3FFF];
+			if (block == null) {
+				block = table[pc & 0x3FFF] = decode(pc, (pc & 0x4000) + 0x4000);
+			}
+			return block;
+		}
+		int page = pc >>> Memory.PAGE_SHIFT;
+		boolean cacheable = (page >= 0xC0 && page < 0xE0) || (pc >= 0xFF80 && pc < 0xFFFF);
+		if (!cacheable) {
+			return null;
+		}
+		Block block = ram[pc - 0x8000];
+		if (block == null) {
+			block = decode(pc, page == 0xFF ? 0xFFFF : (page + 1) << Memory.PAGE_SHIFT);
+			if (block != null) {
+				ram[pc - 0x8000] = block;
+				memory.protectCode(page);
+			}
+		}
+		return block;
+	}
+
+	/**
+	 * decode from pc up to the first block ending instruction, stopping short of
+	 * any instruction that would cross limit
+	 * @return the block, null if not even the first instruction fits
+	 */
+	private Block decode(int pc, int limit) {
+		int count = 0;
+		int cycles = 0;
+		while (count < MAX_LENGTH) {
+			//peek, decoding is not an access a watchpoint should see
+			int op = memory.peek(pc);
+			int length = CPU.LENGTHS[op];
+			if (pc + length > limit) {
+				break;
+			}
+			int operand = 0;
+			if (length > 1) operand = memory.peek(pc + 1);
+			if (length > 2) operand |= memory.peek(pc + 2) << 8;
+			pc += length;
+			ops[count] = op;
+			operands[count] = operand;
+			ends[count] = pc;
+			cycles += op == 0xCB ? CPU.CB_CYCLES[operand] : CPU.CYCLES[op];
+			count++;
+			if (CPU.ENDS_BLOCK[op]) {
+				break;
+			}
+		}
+		if (count == 0) {
+			return null;
+		}
+		return new Block(Arrays.copyOf(ops, count), Arrays.copyOf(operands, count), Arrays.copyOf(ends, count), cycles);
+	}
+
+	/**
+	 * a protected ram page was written, forget every block in it
+	 */
+	private void codeWritten(int page) {
+		int base = (page << Memory.PAGE_SHIFT) - 0x8000;
+		if (base >= 0) {
+			Arrays.fill(ram, base, base + Memory.PAGE_SIZE, null);
+		}
+	}
+}
@@ -1,77 +1,205 @@
 package cpu;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.function.Predicate;
+import java.util.zip.CRC32C;
+
+import debug.Debugger;
+import debug.Profiler;
+import debug.Trace;
+import debug.TraceSink;
+import memory.InterruptController;
 import memory.Memory;
+import memory.OamDma;
 
 public class CPU {
-	private int A, B, C, D, E, H, L, F; //8 bit registers 
+	public static final int CYCLES_PER_FRAME = 70224; //154 lines of 456 T-cycles
+	
+	private int A, B, C, D, E, H, L; //8 bit registers, F is built from the flag sources below
+	
+	//flags are stored as what the last instruction to touch them produced and
+	//only turned into bits when F or a flag is read. Z is set when the low byte
+	//of zeroResult is 0, H is bit 4 of halfBits (a ^ b ^ result of the last add
+	//or sub), C is bit 8 of carryBits (the unmasked result) and N is stored as is
+	private int zeroResult, halfBits, carryBits;
+	private boolean subtract;
 	private int SP, PC; //16 bit registers (AF,BC,DE,HL paired);
-	private boolean IME = false;
 	private int RST38count = 0;
 	
+	//run state, anything but RUNNING is handled outside the instruction loops
+	static final int RUNNING = 0;
+	static final int HALTED = 1; //waiting for IE & IF, clock skips to the next event
+	static final int STOPPED = 2; //waiting for a button press
+	static final int HALT_BUG = 3; //HALT with IME off and an interrupt pending, next opcode is read twice
+	private int state = RUNNING;
+	
 	private Memory memory;
+	private InterruptController interrupts; //IE, IF and IME, owned by memory
+	private TraceSink trace; //null when nobody is listening
+	private Profiler profiler; //null unless profiling
+	private Debugger debugger; //null unless debugging
+	private boolean paused; //set by pause, makes the run loops return
+	
+	private final Scheduler scheduler = new Scheduler();
+	private int cycles; //T-cycles taken by the instruction being executed
+	private int operand; //decoded immediate of the instruction being executed
+	private BlockCache blocks; //pre-decoded code, built when memory is attached
+	private final ByteBuffer hashBuffer = ByteBuffer.allocate(32).order(ByteOrder.LITTLE_ENDIAN); //saveState bytes for stateHash
+	
+	//counters for monitoring, plain fields read racily from other threads
+	private long instructions; //a block left early for an event still counts all of its instructions
+	private long haltedCycles; //T-cycles spent in HALT or STOP
+	
+	//fired whenever IE, IF or IME change, instead of polling after every instruction
+	private final Scheduler.Event interruptCheck = new Scheduler.Event() {
+		@Override
+		public void fire(long time) {
+			checkInterrupts();
+		}
+	};
+	
+	//due at once while a pause is pending, whatever else gets scheduled after it
+	private final Scheduler.Event pauseCheck = new Scheduler.Event() {
+		@Override
+		public void fire(long time) {
+		}
+	};
 	
 	public CPU() {
 		reset();
 	}
 	
+	/**
+	 * @return bytes taken by the instruction starting with op, immediates and the CB suffix included
+	 */
+	public static int length(int op) {
+		return LENGTHS[op & 0xFF];
+	}
+	
 	public void setMemory(Memory memory) {
 		this.memory = memory;
+		interrupts = memory.getInterrupts();
+		interrupts.setAttention(scheduler, interruptCheck);
+		blocks = new BlockCache(memory);
+		new Timer(memory, scheduler);
+		new OamDma(memory, scheduler);
+	}
+	
+	public Scheduler getScheduler() {
+		return scheduler;
+	}
+	
+	/**
+	 * @return T-cycles executed since power on
+	 */
+	public long getCycles() {
+		return scheduler.now();
 	}
 	
-	//Interrupts
+	/**
+	 * @return instructions executed since power on, close to exact
+	 */
+	public long getInstructionCount() {
+		return instructions;
+	}
+	
+	/**
+	 * @return T-cycles the cpu spent in HALT or STOP since power on
+	 */
+	public long getHaltedCycles() {
+		return haltedCycles;
+	}
+	
+	/**
+	 * attach a trace sink, instruction records are only sent when
+	 * the trace level is OPCODES (-Dgbasm.trace=opcodes)
+	 * @param trace sink to use, or null to stop tracing
+	 */
+	public void setTraceSink(TraceSink trace) {
+		this.trace = trace;
+	}
+	
+	/**
+	 * attach a profiler, it sees every block entry, call and return from now on
+	 * @param profiler profiler to fill, or null to stop profiling
+	 */
+	public void setProfiler(Profiler profiler) {
+		this.profiler = profiler;
+	}
+	
+	/**
+	 * attach a debugger, it is asked about breakpoints at every block entry from now on
+	 * @param debugger debugger to ask, or null to run without one
+	 */
+	public void setDebugger(Debugger debugger) {
+		this.debugger = debugger;
+	}
+	
+	/**
+	 * make runFor or runUntil return once the instruction being executed is done.
+	 * an event due now gets the run loops, blocks included, out through the exit
+	 * they already take for events, so nothing is polled. being in the heap it
+	 * stays first even if the rest of the instruction schedules something.
+	 * emulation thread only
+	 */
+	public void pause() {
+		paused = true;
+		scheduler.schedule(pauseCheck, scheduler.now);
+	}
+	
+	/**
+	 * @return rom bank the address is read from, 0 outside the switchable window
+	 */
+	private int bankOf(int address) {
+		return address >= 0x4000 && address < 0x8000 ? memory.getRomBank() : 0;
+	}
+	
+	private void traceEvent(int event, int value) {
+		if (Trace.LEVEL >= Trace.EVENTS && trace != null) {
+			trace.event(event, PC, value);
+		}
+	}
+	
+	//Interrupts, only runs when IE, IF or IME changed
 	private void checkInterrupts() {
-		int interruptFlags = memory.read(0xFF0F); //read IF register
-		int enabledInterrupts = memory.read(0xFFFF); //read IE register
-		int pending = interruptFlags & enabledInterrupts; //active and enabled interrupts
+		int pending = interrupts.getPending(); //active and enabled interrupts
 		
-		if(IME & pending != 0) {
-			for(int i = 0; i < 5; i++) {
-				if ((pending & (1 << i)) != 0) {
-					handleInterrupt(i);
-					return;
+		if (state != RUNNING) {
+			//a pending interrupt ends HALT even with IME off, a button press ends STOP
+			if ((state == HALTED && pending != 0) || (state == STOPPED && (interrupts.getIF() & 0x10) != 0)) {
+				if (state == STOPPED) {
+					memory.setStopped(false);
 				}
+				state = RUNNING;
+				scheduler.tick(4);
 			}
 		}
 		
+		if (pending != 0 && interrupts.isIME()) {
+			handleInterrupt();
+		}
 	}
 	
-	private void handleInterrupt(int interruptType) {
-		System.out.println("Handling Interrupt: " + interruptType);
-		IME = false; //disable interrupts
-		memory.write(0xFF0F, memory.read(0xFF0F) & ~(1 << interruptType)); //clear the IF flag
+	private void handleInterrupt() {
+		//lowest bit wins: VBlank, LCD, Timer, Serial, Joypad
+		int vector = interrupts.acknowledge(); //clears IME and the IF bit
+		traceEvent(Trace.INTERRUPT, (vector - 0x40) >> 3);
 		
 		//push PC onto stack
-		SP -= 2;
-		memory.write(SP + 1,  (PC >> 8) & 0xFF); //high byte
-		memory.write(SP, PC & 0xFF); //low byte
-		
-		switch (interruptType) {
-		case 0: // VBlank
-			PC = 0x40;
-			System.out.println("Jumping to Interrupt Vector: " + "0x" + Integer.toHexString(PC));
-			break;
-		case 1: // LCD
-			PC = 0x48;
-			break;
-		case 2: // Timer
-			PC = 0x50;
-			break;
-		case 3: // Serial
-			PC = 0x58;
-			break;
-		case 4: // Joy-Pad
-			PC = 0x60;
-			break;
+		push(PC);
+		if (profiler != null) {
+			profiler.call(Profiler.INTERRUPT | vector, SP, scheduler.now());
 		}
-		System.out.println("Interrupt Handled: " + interruptType + " Jumping to " + Integer.toHexString(PC).toUpperCase());
+		scheduler.tick(20); //dispatch takes 5 machine cycles
+		PC = vector;
 	}
 	
-	//VBlank Interrupt
+	//VBlank Interrupt, enables and requests it, IME is left alone
 	public void triggerVBlank() {
-		memory.write(0xFFFF, memory.read(0xFFFF) | 0x01);
-		memory.write(0xFF0F, memory.read(0xFF0F) | 0x01);
-		
-		IME = true;
-		System.out.println("VBlank Interrupt Triggered");
+		interrupts.setIE(interrupts.getIE() | 0x01);
+		interrupts.request(InterruptController.VBLANK);
+		traceEvent(Trace.VBLANK_TRIGGERED, 0);
 	}
 	
 	/**
@@ -79,7 +207,7 @@ public class CPU {
 	 */
 	public void reset() {
 		A = 0x01;
-		F = 0xB0;
+		setF(0xB0);
 		B = 0x00;
 		C = 0x13;
 		D = 0x00;
@@ -90,12 +218,51 @@ public class CPU {
 		
 		SP = 0xFFFE;
 		PC = 0x0100; // all execution starts here
+		state = RUNNING;
 		//16 bit regs
 	}
 	
+	/**
+	 * append the registers and the clock to a save state
+	 */
+	public void saveState(ByteBuffer out) {
+		out.put((byte) A).put((byte) getF()).put((byte) B).put((byte) C);
+		out.put((byte) D).put((byte) E).put((byte) H).put((byte) L);
+		out.putShort((short) SP).putShort((short) PC);
+		//IME is saved as 0 off, 1 on, 2 EI executed but not in effect yet
+		out.put((byte) (interrupts.isIME() ? 1 : interrupts.isEnabling() ? 2 : 0)).put((byte) state);
+		out.putLong(scheduler.now);
+	}
+	
+	/**
+	 * read back what saveState wrote
+	 */
+	public void loadState(ByteBuffer in) {
+		A = in.get() & 0xFF;
+		setF(in.get());
+		B = in.get() & 0xFF;
+		C = in.get() & 0xFF;
+		D = in.get() & 0xFF;
+		E = in.get() & 0xFF;
+		H = in.get() & 0xFF;
+		L = in.get() & 0xFF;
+		SP = in.getShort() & 0xFFFF;
+		PC = in.getShort() & 0xFFFF;
+		int ime = in.get();
+		state = in.get();
+		scheduler.now = in.getLong();
+		memory.setStopped(state == STOPPED);
+		interrupts.setIME(ime == 1);
+		if (ime == 2) {
+			interrupts.enableAt(scheduler.now + 1);
+		}
+		//events are restored by their owners, the interrupt check just runs again
+		scheduler.schedule(interruptCheck, scheduler.now);
+	}
+	
 	//get paired 16bit regs via getter functs
 	public int getAF() {
-		return ((A & 0xFF) << 8) | (F & 0xFF);
+		return ((A & 0xFF) << 8) | getF();
 	}
 	public int getBC() {
 		return ((B & 0xFF) << 8) | (C & 0xFF);
@@ -137,7 +304,11 @@ public class CPU {
     }
 
     public void setF(int value) {
-        F = value & 0xFF;  // Ensure the value is 8 bits
+        //split F back into flag sources, the low nibble is always 0
+        zeroResult = (value & 0x80) != 0 ? 0 : 1;
+        subtract = (value & 0x40) != 0;
+        halfBits = (value & 0x20) >> 1;
+        carryBits = (value & 0x10) << 4;
     }
 
     //getter methods for the registers
@@ -170,1154 +341,879 @@ public class CPU {
     }
 
     public int getF() {
-        return F;
+        int f = (zeroResult & 0xFF) == 0 ? 0x80 : 0;
+        if (subtract) f |= 0x40;
+        f |= (halfBits & 0x10) << 1;
+        f |= (carryBits & 0x100) >> 4;
+        return f;
     }
     
 	/**
-	 * fetch the instructions
+	 * a single opcode handler, one per slot in the dispatch tables
+	 */
+	@FunctionalInterface
+	interface Instruction {
+		void execute(CPU cpu);
+	}
+
+	//dispatch tables, shared by every CPU instance
+	private static final Instruction[] OPCODES = new Instruction[0x100];
+	private static final Instruction[] CB_OPCODES = new Instruction[0x100];
+
+	//T-cycles per opcode, conditional branches list the not taken cost
+	//and add the difference in their handler when the branch is taken.
+	//0x40-0xBF are filled in below
+	static final int[] CYCLES = {
+		 4, 12,  8,  8,  4,  4,  8,  4, 20,  8,  8,  8,  4,  4,  8,  4, // 0x00
+		 4, 12,  8,  8,  4,  4,  8,  4,  8,  8,  8,  8,  4,  4,  8,  4, // 0x10
+		 8, 12,  8,  8,  4,  4,  8,  4,  8,  8,  8,  8,  4,  4,  8,  4, // 0x20
+		 8, 12,  8,  8, 12, 12, 12,  4,  8,  8,  8,  8,  4,  4,  8,  4, // 0x30
+		 0,  0,  0,  0,  0,  0,  0,  0,  0,  0,  0,  0,  0,  0,  0,  0, // 0x40
+		 0,  0,  0,  0,  0,  0,  0,  0,  0,  0,  0,  0,  0,  0,  0,  0, // 0x50
+		 0,  0,  0,  0,  0,  0,  0,  0,  0,  0,  0,  0,  0,  0,  0,  0, // 0x60
+		 0,  0,  0,  0,  0,  0,  0,  0,  0,  0,  0,  0,  0,  0,  0,  0, // 0x70
+		 0,  0,  0,  0,  0,  0,  0,  0,  0,  0,  0,  0,  0,  0,  0,  0, // 0x80
+		 0,  0,  0,  0,  0,  0,  0,  0,  0,  0,  0,  0,  0,  0,  0,  0, // 0x90
+		 0,  0,  0,  0,  0,  0,  0,  0,  0,  0,  0,  0,  0,  0,  0,  0, // 0xA0
+		 0,  0,  0,  0,  0,  0,  0,  0,  0,  0,  0,  0,  0,  0,  0,  0, // 0xB0
+		 8, 12, 12, 16, 12, 16,  8, 16,  8, 16, 12,  4, 12, 12,  8, 16, // 0xC0
+		 8, 12, 12,  4, 12, 16,  8, 16,  8, 16, 12,  4, 12,  4,  8, 16, // 0xD0
+		12, 12,  8,  4,  4, 16,  8, 16, 16,  4, 16,  4,  4,  4,  8, 16, // 0xE0
+		12, 12,  8,  4,  4, 16,  8, 16, 12,  8, 16,  4,  4,  4,  8, 16, // 0xF0
+	};
+	static final int[] CB_CYCLES = new int[0x100];
+
+	//instruction length in bytes, opcode included
+	static final int[] LENGTHS = new int[0x100];
+
+	//opcodes that can move PC somewhere else (or stop the cpu), a basic block ends on them
+	static final boolean[] ENDS_BLOCK = new boolean[0x100];
+
+	static {
+		Arrays.fill(LENGTHS, 1);
+		for (int op : new int[] {0x06, 0x0E, 0x10, 0x16, 0x18, 0x1E, 0x20, 0x26, 0x28, 0x2E, 0x30, 0x36, 0x38, 0x3E,
+				0xC6, 0xCB, 0xCE, 0xD6, 0xDE, 0xE0, 0xE6, 0xE8, 0xEE, 0xF0, 0xF6, 0xF8, 0xFE}) {
+			LENGTHS[op] = 2;
+		}
+		for (int op : new int[] {0x01, 0x08, 0x11, 0x21, 0x31, 0xC2, 0xC3, 0xC4, 0xCA, 0xCC, 0xCD, 0xD2, 0xD4, 0xDA,
+				0xDC, 0xEA, 0xFA}) {
+			LENGTHS[op] = 3;
+		}
+		for (int op : new int[] {0x10, 0x18, 0x20, 0x28, 0x30, 0x38, 0x76, 0xC0, 0xC2, 0xC3, 0xC4, 0xC8, 0xC9, 0xCA,
+				0xCC, 0xCD, 0xD0, 0xD2, 0xD4, 0xD8, 0xD9, 0xDA, 0xDC, 0xE9}) {
+			ENDS_BLOCK[op] = true;
+		}
+		for (int op = 0xC7; op <= 0xFF; op += 8) {
+			ENDS_BLOCK[op] = true; // RST
+		}
+
+		//register to register ops take 4 cycles, 8 when (HL) is involved
+		for (int op = 0x40; op < 0xC0; op++) {
+			CYCLES[op] = (op & 0x07) == 6 || (op >= 0x70 && op < 0x78) ? 8 : 4;
+		}
+		CYCLES[0x76] = 4; // HALT
+		//CB ops take 8 cycles, 16 on (HL) or 12 for BIT b, (HL)
+		for (int op = 0; op < 0x100; op++) {
+			CB_CYCLES[op] = (op & 0x07) != 6 ? 8 : (op & 0xC0) == 0x40 ? 12 : 16;
+		}
+
+		//unused opcodes on the Game Boy (0xED shows up in every rom header at $105)
+		for (int op : new int[] {0xD3, 0xDB, 0xDD, 0xE3, 0xE4, 0xEB, 0xEC, 0xED, 0xF4, 0xFC, 0xFD}) {
+			OPCODES[op] = c -> c.traceEvent(Trace.ILLEGAL_OPCODE, op);
+		}
+
+		OPCODES[0x00] = c -> {}; // NOP
+		OPCODES[0x10] = c -> c.stop(); // STOP, the second byte is ignored
+		OPCODES[0xCB] = c -> { // CB prefix
+			int op = c.imm8();
+			c.cycles = CB_CYCLES[op];
+			CB_OPCODES[op].execute(c);
+		};
+
+		//16 bit loads and arithmetic
+		OPCODES[0x01] = c -> c.setBC(c.imm16()); // LD BC, d16
+		OPCODES[0x11] = c -> c.setDE(c.imm16()); // LD DE, d16
+		OPCODES[0x21] = c -> c.setHL(c.imm16()); // LD HL, d16
+		OPCODES[0x31] = c -> c.SP = c.imm16(); // LD SP, d16
+		OPCODES[0x03] = c -> c.setBC(c.getBC() + 1); // INC BC
+		OPCODES[0x13] = c -> c.setDE(c.getDE() + 1); // INC DE
+		OPCODES[0x23] = c -> c.setHL(c.getHL() + 1); // INC HL
+		OPCODES[0x33] = c -> c.SP = (c.SP + 1) & 0xFFFF; // INC SP
+		OPCODES[0x0B] = c -> c.setBC(c.getBC() - 1); // DEC BC
+		OPCODES[0x1B] = c -> c.setDE(c.getDE() - 1); // DEC DE
+		OPCODES[0x2B] = c -> c.setHL(c.getHL() - 1); // DEC HL
+		OPCODES[0x3B] = c -> c.SP = (c.SP - 1) & 0xFFFF; // DEC SP
+		OPCODES[0x09] = c -> c.addHL(c.getBC()); // ADD HL, BC
+		OPCODES[0x19] = c -> c.addHL(c.getDE()); // ADD HL, DE
+		OPCODES[0x29] = c -> c.addHL(c.getHL()); // ADD HL, HL
+		OPCODES[0x39] = c -> c.addHL(c.SP); // ADD HL, SP
+		OPCODES[0x08] = c -> { // LD (a16), SP
+			int addr = c.imm16();
+			c.memory.write(addr, c.SP & 0xFF);
+			c.memory.write((addr + 1) & 0xFFFF, c.SP >> 8);
+		};
+		OPCODES[0xE8] = c -> c.SP = c.addSP(c.imm8()); // ADD SP, r8
+		OPCODES[0xF8] = c -> c.setHL(c.addSP(c.imm8())); // LD HL, SP + r8
+		OPCODES[0xF9] = c -> c.SP = c.getHL(); // LD SP, HL
+
+		//indirect loads through register pairs
+		OPCODES[0x02] = c -> c.memory.write(c.getBC(), c.A); // LD (BC), A
+		OPCODES[0x12] = c -> c.memory.write(c.getDE(), c.A); // LD (DE), A
+		OPCODES[0x0A] = c -> c.A = c.memory.read(c.getBC()); // LD A, (BC)
+		OPCODES[0x1A] = c -> c.A = c.memory.read(c.getDE()); // LD A, (DE)
+		OPCODES[0x22] = c -> { // LD (HL+), A
+			int hl = c.getHL();
+			c.memory.write(hl, c.A);
+			c.setHL(hl + 1);
+		};
+		OPCODES[0x32] = c -> { // LD (HL-), A
+			int hl = c.getHL();
+			c.memory.write(hl, c.A);
+			c.setHL(hl - 1);
+		};
+		OPCODES[0x2A] = c -> { // LD A, (HL+)
+			int hl = c.getHL();
+			c.A = c.memory.read(hl);
+			c.setHL(hl + 1);
+		};
+		OPCODES[0x3A] = c -> { // LD A, (HL-)
+			int hl = c.getHL();
+			c.A = c.memory.read(hl);
+			c.setHL(hl - 1);
+		};
+		OPCODES[0xEA] = c -> c.memory.write(c.imm16(), c.A); // LD (a16), A
+		OPCODES[0xFA] = c -> c.A = c.memory.read(c.imm16()); // LD A, (a16)
+		OPCODES[0xE0] = c -> c.memory.write(0xFF00 + c.imm8(), c.A); // LD (FF00 + d8), A
+		OPCODES[0xF0] = c -> c.A = c.memory.read(0xFF00 + c.imm8()); // LD A, (FF00 + d8)
+		OPCODES[0xE2] = c -> c.memory.write(0xFF00 + c.C, c.A); // LD (FF00 + C), A
+		OPCODES[0xF2] = c -> c.A = c.memory.read(0xFF00 + c.C); // LD A, (FF00 + C)
+
+		//8 bit register instructions; the register index is encoded in the opcode
+		//(0 = B, 1 = C, 2 = D, 3 = E, 4 = H, 5 = L, 6 = (HL), 7 = A)
+		for (int r = 0; r < 8; r++) {
+			final int reg = r;
+			OPCODES[0x04 | reg << 3] = c -> c.setReg(reg, c.inc(c.getReg(reg))); // INC r
+			OPCODES[0x05 | reg << 3] = c -> c.setReg(reg, c.dec(c.getReg(reg))); // DEC r
+			OPCODES[0x06 | reg << 3] = c -> c.setReg(reg, c.imm8()); // LD r, d8
+
+			for (int s = 0; s < 8; s++) {
+				final int src = s;
+				OPCODES[0x40 | reg << 3 | src] = c -> c.setReg(reg, c.getReg(src)); // LD r, r'
+			}
+
+			OPCODES[0x80 | reg] = c -> c.add(c.getReg(reg), 0); // ADD A, r
+			OPCODES[0x88 | reg] = c -> c.add(c.getReg(reg), c.carry()); // ADC A, r
+			OPCODES[0x90 | reg] = c -> c.sub(c.getReg(reg), 0); // SUB A, r
+			OPCODES[0x98 | reg] = c -> c.sub(c.getReg(reg), c.carry()); // SBC A, r
+			OPCODES[0xA0 | reg] = c -> c.and(c.getReg(reg)); // AND A, r
+			OPCODES[0xA8 | reg] = c -> c.xor(c.getReg(reg)); // XOR A, r
+			OPCODES[0xB0 | reg] = c -> c.or(c.getReg(reg)); // OR A, r
+			OPCODES[0xB8 | reg] = c -> c.cp(c.getReg(reg)); // CP A, r
+		}
+		OPCODES[0x76] = c -> c.halt(); // HALT sits where LD (HL), (HL) would be
+
+		OPCODES[0xC6] = c -> c.add(c.imm8(), 0); // ADD A, d8
+		OPCODES[0xCE] = c -> c.add(c.imm8(), c.carry()); // ADC A, d8
+		OPCODES[0xD6] = c -> c.sub(c.imm8(), 0); // SUB A, d8
+		OPCODES[0xDE] = c -> c.sub(c.imm8(), c.carry()); // SBC A, d8
+		OPCODES[0xE6] = c -> c.and(c.imm8()); // AND A, d8
+		OPCODES[0xEE] = c -> c.xor(c.imm8()); // XOR A, d8
+		OPCODES[0xF6] = c -> c.or(c.imm8()); // OR A, d8
+		OPCODES[0xFE] = c -> c.cp(c.imm8()); // CP A, d8
+
+		//accumulator rotates always clear the zero flag
+		OPCODES[0x07] = c -> { c.A = c.rlc(c.A); c.setFlag(7, false); }; // RLCA
+		OPCODES[0x0F] = c -> { c.A = c.rrc(c.A); c.setFlag(7, false); }; // RRCA
+		OPCODES[0x17] = c -> { c.A = c.rl(c.A); c.setFlag(7, false); }; // RLA
+		OPCODES[0x1F] = c -> { c.A = c.rr(c.A); c.setFlag(7, false); }; // RRA
+
+		//Miscellaneous instructions
+		OPCODES[0x27] = c -> c.daa(); // DAA
+		OPCODES[0x2F] = c -> { // CPL
+			c.A = ~c.A & 0xFF;
+			c.setFlag(6, true);
+			c.setFlag(5, true);
+		};
+		OPCODES[0x37] = c -> { // SCF
+			c.setFlag(6, false);
+			c.setFlag(5, false);
+			c.setFlag(4, true);
+		};
+		OPCODES[0x3F] = c -> { // CCF
+			c.setFlag(6, false);
+			c.setFlag(5, false);
+			c.setFlag(4, !c.getFlag(4));
+		};
+
+		//Interrupts
+		OPCODES[0xF3] = c -> c.interrupts.disable(); // DI
+		OPCODES[0xFB] = c -> c.interrupts.enableAt(c.scheduler.now() + c.cycles + 1); // EI, takes effect after the next instruction
+
+		//Jump instructions, conditions are encoded as 0 = NZ, 1 = Z, 2 = NC, 3 = C
+		OPCODES[0xC3] = c -> c.PC = c.imm16(); // JP nn
+		OPCODES[0xE9] = c -> c.PC = c.getHL(); // JP (HL)
+		OPCODES[0x18] = c -> c.jr(true); // JR n
+		OPCODES[0xCD] = c -> c.call(true); // CALL nn
+		OPCODES[0xC9] = c -> c.ret(); // RET
+		OPCODES[0xD9] = c -> { // RETI
+			c.ret();
+			c.interrupts.setIME(true); //no delay, unlike EI
+		};
+		for (int cc = 0; cc < 4; cc++) {
+			final int cond = cc;
+			OPCODES[0x20 | cond << 3] = c -> c.jr(c.condition(cond)); // JR cc, n
+			OPCODES[0xC2 | cond << 3] = c -> c.jp(c.condition(cond)); // JP cc, nn
+			OPCODES[0xC4 | cond << 3] = c -> c.call(c.condition(cond)); // CALL cc, nn
+			OPCODES[0xC0 | cond << 3] = c -> { // RET cc
+				if (c.condition(cond)) {
+					c.ret();
+					c.cycles += 12;
+				}
+			};
+		}
+
+		//Restart instructions
+		for (int n = 0; n < 8; n++) {
+			final int vector = n << 3;
+			OPCODES[0xC7 | vector] = c -> c.rst(vector); // RST n
+		}
+
+		//push/pop instructions
+		OPCODES[0xC5] = c -> c.push(c.getBC()); // PUSH BC
+		OPCODES[0xD5] = c -> c.push(c.getDE()); // PUSH DE
+		OPCODES[0xE5] = c -> c.push(c.getHL()); // PUSH HL
+		OPCODES[0xF5] = c -> c.push(c.getAF()); // PUSH AF
+		OPCODES[0xC1] = c -> c.setBC(c.pop()); // POP BC
+		OPCODES[0xD1] = c -> c.setDE(c.pop()); // POP DE
+		OPCODES[0xE1] = c -> c.setHL(c.pop()); // POP HL
+		OPCODES[0xF1] = c -> c.setAF(c.pop() & 0xFFF0); // POP AF, low nibble of F is always 0
+
+		//CB prefixed rotates, shifts and bit operations
+		for (int r = 0; r < 8; r++) {
+			final int reg = r;
+			CB_OPCODES[0x00 | reg] = c -> c.setReg(reg, c.rlc(c.getReg(reg))); // RLC r
+			CB_OPCODES[0x08 | reg] = c -> c.setReg(reg, c.rrc(c.getReg(reg))); // RRC r
+			CB_OPCODES[0x10 | reg] = c -> c.setReg(reg, c.rl(c.getReg(reg))); // RL r
+			CB_OPCODES[0x18 | reg] = c -> c.setReg(reg, c.rr(c.getReg(reg))); // RR r
+			CB_OPCODES[0x20 | reg] = c -> c.setReg(reg, c.sla(c.getReg(reg))); // SLA r
+			CB_OPCODES[0x28 | reg] = c -> c.setReg(reg, c.sra(c.getReg(reg))); // SRA r
+			CB_OPCODES[0x30 | reg] = c -> c.setReg(reg, c.swap(c.getReg(reg))); // SWAP r
+			CB_OPCODES[0x38 | reg] = c -> c.setReg(reg, c.srl(c.getReg(reg))); // SRL r
+
+			for (int b = 0; b < 8; b++) {
+				final int mask = 1 << b;
+				CB_OPCODES[0x40 | b << 3 | reg] = c -> c.bit(mask, c.getReg(reg)); // BIT b, r
+				CB_OPCODES[0x80 | b << 3 | reg] = c -> c.setReg(reg, c.getReg(reg) & ~mask); // RES b, r
+				CB_OPCODES[0xC0 | b << 3 | reg] = c -> c.setReg(reg, c.getReg(reg) | mask); // SET b, r
+			}
+		}
+
+		//RST $38 guard, runaway code usually ends up executing 0xFF forever
+		OPCODES[0xFF] = c -> {
+			c.rst(0x38);
+			c.RST38count++;
+			if(c.RST38count > 5) {
+				throw new RuntimeException("RST $38 crash! Halting program.");
+			}
+		};
+	}
+
+	/**
+	 * fetch the instructions. like every opcode and operand fetch this peeks,
+	 * watchpoints only see the data accesses an instruction makes
 	 * @return
 	 */
 	public byte fetch() {
 		if(PC >= 0x10000) {
 			PC = 0x0000;
 		}
-		return (byte) memory.read(PC++);
+		return (byte) memory.peek(PC++);
 	}
-	
+
 	/**
-	 * decode and execute the instruction
+	 * decode and execute the instruction through the dispatch table,
+	 * then move the clock on and fire any events that came due
 	 * @param opcode
+	 * @return T-cycles the instruction took
 	 */
-	public void execute(byte opcode) { //oh god
-		int addr;
-		int value;
-		int result;
-	    switch(opcode) {
-	        // Placeholder instruction
-	        case (byte) 0x00: // NOP - No operation (commonly used as a placeholder)
-	            System.out.println("NOP executed at address: " + "$" + Integer.toHexString(PC - 1));
-	            break;
-
-	        // CPU stop instructions
-	        case (byte) 0x76: // HALT
-	            System.out.println("Halt instruction executed.");
-	            break;
-
-	        // Load instructions
-	        case (byte) 0x78: // LD A, B
-	            A = B;
-	            System.out.println("LD A, B executed: A = " + Integer.toHexString(A));
-	            break;
-
-	        case (byte) 0x02: // LD (BC), A
-	            memory.write(getBC(), (byte) A);
-	            System.out.println("LD (BC), A executed: (BC) = " + Integer.toHexString(A));
-	            break;
-
-	        case (byte) 0x79: // LD A, C
-	            A = C;
-	            System.out.println("LD A, C executed.");
-	            break;
-
-	        case (byte) 0x7A: // LD A, D
-	            A = D;
-	            System.out.println("LD A, D executed.");
-	            break;
-
-	        case (byte) 0x7B: // LD A, E
-	            A = E;
-	            System.out.println("LD A, E executed.");
-	            break;
-
-	        case (byte) 0x7C: // LD A, H
-	            A = H;
-	            System.out.println("LD A, H executed.");
-	            break;
-
-	        case (byte) 0x7D: // LD A, L
-	            A = L;
-	            System.out.println("LD A, L executed.");
-	            break;
-
-	        case (byte) 0x7E: // LD A, (HL)
-	            A = memory.read(getHL());
-	            System.out.println("LD A, (HL) executed.");
-	            break;
-	        case (byte) 0x66:
-	        	H = memory.read(getHL()); //LD H, (HL)
-	        	System.out.println("LD H, (HL) executed : " + Integer.toHexString(H));
-	        	break;
-	        case (byte) 0x77: // LD (HL), A
-	            memory.write(getHL(), A);
-	            System.out.println("LD (HL), A executed.");
-	            break;
-	            //0xED is a invalid operation in the gameboy z80, but a full z80 would use it. this is just here so its outputting "illegal action : 0xED"
-	        case (byte) 0xED:
-	        	System.out.println("0xED appears in every Game Boy rom, at byte $105.");
-	        	break;
-	        	
-	        case (byte) 0x3E: // LD A, (d8) - Load immediate value into A (using memory)
-	            A = memory.read(PC++);
-	            System.out.println("LD A, (d8) executed: A = " + Integer.toHexString(A));
-	            break;
-	            
-	        case (byte) 0x06:
-	        	B = memory.read(PC++);
-	        	System.out.println("LD B, (d8) executed: B = " + Integer.toHexString(B));
-	        	break;
-	        	
- 	        case (byte) 0xEA: // LD (a16), A
-	            addr = (memory.read(PC++) & 0xFF) | ((memory.read(PC++) & 0xFF) << 8);
-	            memory.write(addr, (byte) A);
-	            System.out.println("LD (a16), A executed: (a16) = " + Integer.toHexString(addr) + ", A = " + Integer.toHexString(A));
-	            break;
-	            
- 	        case (byte) 0xF0:  // LD A, (FF00 + d8)
- 	        	addr = 0xFF00 + memory.read(PC++);
- 	        	A = memory.read(addr);
- 	        	System.out.println("LD A, (FF00 + d8) executed: A = " + Integer.toHexString(A));
- 	        	break;
- 	        
- 	        case (byte) 0xFA: // LD A, (a16)
- 	        	int addr16 = memory.read(PC++) | (memory.read(PC++) << 8);
- 	        	A = memory.read(addr16);
- 	        	System.out.println("LD A, (a16) executed: A = " + Integer.toHexString(A));
- 	        	break;
- 	        
- 	        case (byte) 0xE0: // LD (FF00 + d8), A
- 	        	int ioAddr = 0xFF00 + memory.read(PC++);
- 	        	memory.write(ioAddr, A);
- 	        	System.out.println("LD (FF00 + d8), A executed.");
- 	        	break;
-	            
-	        //Interrupts
- 	        case (byte) 0xFB: // EI (Enable interrupts)
- 	        	IME = true;
- 	        	System.out.println("EI executed: IME set to true");
- 	        	break;
- 	        	
-	        // Arithmetic instructions
-	        case (byte) 0x80: { // ADD A, B
-	            result = A + B;
-	            setFlag(7, (result & 0xFF) == 0);
-	            setFlag(6, false);
-	            setFlag(5, ((A & 0xF) + (B & 0xF)) > 0xF);
-	            setFlag(4, result > 0xFF);
-	            A = result & 0xFF;
-	            System.out.println("ADD A, B executed: A = " + Integer.toHexString(A));
-	            break;
-	        }
-
-	        case (byte) 0x81: { // ADD A, C
-	            result = A + C;
-	            setFlag(7, (result & 0xFF) == 0);
-	            setFlag(6, false);
-	            setFlag(5, ((A & 0xF) + (C & 0xF)) > 0xF);
-	            setFlag(4, result > 0xFF);
-	            A = result & 0xFF;
-	            System.out.println("ADD A, C executed: A = " + Integer.toHexString(A));
-	            break;
-	        }
-
-	        case (byte) 0x82: { // ADD A, D
-	            result = A + D;
-	            setFlag(7, (result & 0xFF) == 0);
-	            setFlag(6, false);
-	            setFlag(5, ((A & 0xF) + (D & 0xF)) > 0xF);
-	            setFlag(4, result > 0xFF);
-	            A = result & 0xFF;
-	            System.out.println("ADD A, D executed: A = " + Integer.toHexString(A));
-	            break;
-	        }
-
-	        case (byte) 0x83: { // ADD A, E
-	            result = A + E;
-	            setFlag(7, (result & 0xFF) == 0);
-	            setFlag(6, false);
-	            setFlag(5, ((A & 0xF) + (E & 0xF)) > 0xF);
-	            setFlag(4, result > 0xFF);
-	            A = result & 0xFF;
-	            System.out.println("ADD A, E executed: A = " + Integer.toHexString(A));
-	            break;
-	        }
-
-	        case (byte) 0x84: { // ADD A, H
-	            result = A + H;
-	            setFlag(7, (result & 0xFF) == 0);
-	            setFlag(6, false);
-	            setFlag(5, ((A & 0xF) + (H & 0xF)) > 0xF);
-	            setFlag(4, result > 0xFF);
-	            A = result & 0xFF;
-	            System.out.println("ADD A, H executed: A = " + Integer.toHexString(A));
-	            break;
-	        }
-
-	        case (byte) 0x85: { // ADD A, L
-	            result = A + L;
-	            setFlag(7, (result & 0xFF) == 0);
-	            setFlag(6, false);
-	            setFlag(5, ((A & 0xF) + (L & 0xF)) > 0xF);
-	            setFlag(4, result > 0xFF);
-	            A = result & 0xFF;
-	            System.out.println("ADD A, L executed: A = " + Integer.toHexString(A));
-	            break;
-	        }
-
-	        case (byte) 0x86: { // ADD A, (HL)
-	            value = memory.read(getHL());
-	            result = A + value;
-	            setFlag(7, (result & 0xFF) == 0);
-	            setFlag(6, false);
-	            setFlag(5, ((A & 0xF) + (value & 0xF)) > 0xF);
-	            setFlag(4, result > 0xFF);
-	            A = result & 0xFF;
-	            System.out.println("ADD A, (HL) executed: A = " + Integer.toHexString(A));
-	            break;
-	        }
-
-	        case (byte) 0xC6: { // ADD A, d8
-	            value = memory.read(PC++);
-	            result = A + value;
-	            setFlag(7, (result & 0xFF) == 0);
-	            setFlag(6, false);
-	            setFlag(5, ((A & 0xF) + (value & 0xF)) > 0xF);
-	            setFlag(4, result > 0xFF);
-	            A = result & 0xFF;
-	            System.out.println("ADD A, d8 executed: A = " + Integer.toHexString(A));
-	            break;
-	        }
-
-	        case (byte) 0x90: // SUB A, B
-	            A -= B;
-	            setFlag(7, A == 0);
-	            setFlag(6, true);
-	            setFlag(5, (A & 0xF) > (B & 0xF));
-	            setFlag(4, A < 0);
-	            A &= 0xFF;
-	            System.out.println("SUB A, B executed: A = " + Integer.toHexString(A));
-	            break;
-
-	        case (byte) 0x91: // SUB A, C
-	            A -= C;
-	            setFlag(7, A == 0);
-	            setFlag(6, true);
-	            setFlag(5, (A & 0xF) > (C & 0xF));
-	            setFlag(4, A < 0);
-	            A &= 0xFF;
-	            System.out.println("SUB A, C executed: A = " + Integer.toHexString(A));
-	            break;
-
-	        case (byte) 0x92: // SUB A, D
-	            A -= D;
-	            setFlag(7, A == 0);
-	            setFlag(6, true);
-	            setFlag(5, (A & 0xF) > (D & 0xF));
-	            setFlag(4, A < 0);
-	            A &= 0xFF;
-	            System.out.println("SUB A, D executed: A = " + Integer.toHexString(A));
-	            break;
-
-	        case (byte) 0x93: // SUB A, E
-	            A -= E;
-	            setFlag(7, A == 0);
-	            setFlag(6, true);
-	            setFlag(5, (A & 0xF) > (E & 0xF));
-	            setFlag(4, A < 0);
-	            A &= 0xFF;
-	            System.out.println("SUB A, E executed: A = " + Integer.toHexString(A));
-	            break;
-
-	        case (byte) 0x94: // SUB A, H
-	            A -= H;
-	            setFlag(7, A == 0);
-	            setFlag(6, true);
-	            setFlag(5, (A & 0xF) > (H & 0xF));
-	            setFlag(4, A < 0);
-	            A &= 0xFF;
-	            System.out.println("SUB A, H executed: A = " + Integer.toHexString(A));
-	            break;
-
-	        case (byte) 0x95: // SUB A, L
-	            A -= L;
-	            setFlag(7, A == 0);
-	            setFlag(6, true);
-	            setFlag(5, (A & 0xF) > (L & 0xF));
-	            setFlag(4, A < 0);
-	            A &= 0xFF;
-	            System.out.println("SUB A, L executed: A = " + Integer.toHexString(A));
-	            break;
-
-	        case (byte) 0x96: { // SUB A, (HL)
-	            value = memory.read(getHL());
-	            A -= value;
-	            setFlag(7, A == 0);
-	            setFlag(6, true);
-	            setFlag(5, (A & 0xF) > (value & 0xF));
-	            setFlag(4, A < 0);
-	            A &= 0xFF;
-	            System.out.println("SUB A, (HL) executed: A = " + Integer.toHexString(A));
-	            break;
-	        }
-
-	        case (byte) 0xD6: { // SUB A, d8
-	            value = memory.read(PC++);
-	            A -= value;
-	            setFlag(7, A == 0);
-	            setFlag(6, true);
-	            setFlag(5, (A & 0xF) > (value & 0xF));
-	            setFlag(4, A < 0);
-	            A &= 0xFF;
-	            System.out.println("SUB A, d8 executed: A = " + Integer.toHexString(A));
-	            break;
-	        }
-
-	        // Logical instructions
-	        case (byte) 0xA0: // AND A, B
-	            A = A & B;
-	            setFlag(7, A == 0);
-	            setFlag(6, false);
-	            setFlag(5, true);
-	            setFlag(4, false);
-	            System.out.println("AND A, B executed.");
-	            break;
-
-	        case (byte) 0xA1: // AND A, C
-	            A = A & C;
-	            setFlag(7, A == 0);
-	            setFlag(6, false);
-	            setFlag(5, true);
-	            setFlag(4, false);
-	            System.out.println("AND A, C executed.");
-	            break;
-
-	        case (byte) 0xA2: // AND A, D
-	            A = A & D;
-	            setFlag(7, A == 0);
-	            setFlag(6, false);
-	            setFlag(5, true);
-	            setFlag(4, false);
-	            System.out.println("AND A, D executed.");
-	            break;
-
-	        case (byte) 0xA3: // AND A, E
-	            A = A & E;
-	            setFlag(7, A == 0);
-	            setFlag(6, false);
-	            setFlag(5, true);
-	            setFlag(4, false);
-	            System.out.println("AND A, E executed.");
-	            break;
-
-	        case (byte) 0xA4: // AND A, H
-	            A = A & H;
-	            setFlag(7, A == 0);
-	            setFlag(6, false);
-	            setFlag(5, true);
-	            setFlag(4, false);
-	            System.out.println("AND A, H executed.");
-	            break;
-
-	        case (byte) 0xA5: // AND A, L
-	            A = A & L;
-	            setFlag(7, A == 0);
-	            setFlag(6, false);
-	            setFlag(5, true);
-	            setFlag(4, false);
-	            System.out.println("AND A, L executed.");
-	            break;
-
-	        case (byte) 0xA6: { // AND A, (HL)
-	            value = memory.read(getHL());
-	            A = A & value;
-	            setFlag(7, A == 0);
-	            setFlag(6, false);
-	            setFlag(5, true);
-	            setFlag(4, false);
-	            System.out.println("AND A, (HL) executed.");
-	            break;
-	        }
-
-	        case (byte) 0xE6: { // AND A, d8
-	            value = memory.read(PC++);
-	            A = A & value;
-	            setFlag(7, A == 0);
-	            setFlag(6, false);
-	            setFlag(5, true);
-	            setFlag(4, false);
-	            System.out.println("AND A, d8 executed.");
-	            break;
-	        }
-	        
-	        case (byte) 0xA7: // AND A, A
-	        	setFlag(7, A == 0);
-	        	setFlag(6, false);
-            	setFlag(5, true);
-            	setFlag(4, false);
-            	System.out.println("AND A, A executed.");
-            	break;
-	        
-	        case (byte) 0xAF: // XOR A
-	        	A ^= A;
-            	setFlag(7, A == 0);
-            	setFlag(6, false);
-            	setFlag(5, false);
-            	setFlag(4, false);
-            	System.out.println("XOR A executed.");
-	            break;
-	        case (byte) 0xA8: // XOR A, B
-	            A = A ^ B;
-	            setFlag(7, A == 0);
-	            setFlag(6, false);
-	            setFlag(5, false);
-	            setFlag(4, false);
-	            System.out.println("XOR A, B executed.");
-	            break;
-
-	        case (byte) 0xA9: // XOR A, C
-	            A = A ^ C;
-	            setFlag(7, A == 0);
-	            setFlag(6, false);
-	            setFlag(5, false);
-	            setFlag(4, false);
-	            System.out.println("XOR A, C executed.");
-	            break;
-
-	        case (byte) 0xAA: // XOR A, D
-	            A = A ^ D;
-	            setFlag(7, A == 0);
-	            setFlag(6, false);
-	            setFlag(5, false);
-	            setFlag(4, false);
-	            System.out.println("XOR A, D executed.");
-	            break;
-
-	        case (byte) 0xAB: // XOR A, E
-	            A = A ^ E;
-	            setFlag(7, A == 0);
-	            setFlag(6, false);
-	            setFlag(5, false);
-	            setFlag(4, false);
-	            System.out.println("XOR A, E executed.");
-	            break;
-
-	        case (byte) 0xAC: // XOR A, H
-	            A = A ^ H;
-	            setFlag(7, A == 0);
-	            setFlag(6, false);
-	            setFlag(5, false);
-	            setFlag(4, false);
-	            System.out.println("XOR A, H executed.");
-	            break;
-
-	        case (byte) 0xAD: // XOR A, L
-	            A = A ^ L;
-	            setFlag(7, A == 0);
-	            setFlag(6, false);
-	            setFlag(5, false);
-	            setFlag(4, false);
-	            System.out.println("XOR A, L executed.");
-	            break;
-
-	        case (byte) 0xAE: { // XOR A, (HL)
-	            value = memory.read(getHL());
-	            A = A ^ value;
-	            setFlag(7, A == 0);
-	            setFlag(6, false);
-	            setFlag(5, false);
-	            setFlag(4, false);
-	            System.out.println("XOR A, (HL) executed.");
-	            break;
-	        }
-
-	        case (byte) 0xEE: { // XOR A, d8
-	            value = memory.read(PC++);
-	            A = A ^ value;
-	            setFlag(7, A == 0);
-	            setFlag(6, false);
-	            setFlag(5, false);
-	            setFlag(4, false);
-	            System.out.println("XOR A, d8 executed.");
-	            break;
-	        }
-
-	        case (byte) 0xB0: // OR A, B
-	            A = A | B;
-	            setFlag(7, A == 0);
-	            setFlag(6, false);
-	            setFlag(5, false);
-	            setFlag(4, false);
-	            System.out.println("OR A, B executed.");
-	            break;
-
-	        case (byte) 0xB1: // OR A, C
-	            A = A | C;
-	            setFlag(7, A == 0);
-	            setFlag(6, false);
-	            setFlag(5, false);
-	            setFlag(4, false);
-	            System.out.println("OR A, C executed.");
-	            break;
-
-	        case (byte) 0xB2: // OR A, D
-	            A = A | D;
-	            setFlag(7, A == 0);
-	            setFlag(6, false);
-	            setFlag(5, false);
-	            setFlag(4, false);
-	            System.out.println("OR A, D executed.");
-	            break;
-
-	        case (byte) 0xB3: // OR A, E
-	            A = A | E;
-	            setFlag(7, A == 0);
-	            setFlag(6, false);
-	            setFlag(5, false);
-	            setFlag(4, false);
-	            System.out.println("OR A, E executed.");
-	            break;
-
-	        case (byte) 0xB4: // OR A, H
-	            A = A | H;
-	            setFlag(7, A == 0);
-	            setFlag(6, false);
-	            setFlag(5, false);
-	            setFlag(4, false);
-	            System.out.println("OR A, H executed.");
-	            break;
-
-	        case (byte) 0xB5: // OR A, L
-	            A = A | L;
-	            setFlag(7, A == 0);
-	            setFlag(6, false);
-	            setFlag(5, false);
-	            setFlag(4, false);
-	            System.out.println("OR A, L executed.");
-	            break;
-
-	        case (byte) 0xB6: // OR A, (HL)
-	            value = memory.read(getHL());
-	            A = A | value;
-	            setFlag(7, A == 0);
-	            setFlag(6, false);
-	            setFlag(5, false);
-	            setFlag(4, false);
-	            System.out.println("OR A, (HL) executed.");
-	            break;
-
-	        case (byte) 0xF6: // OR A, d8
-	            value = memory.read(PC++);
-	            A = A | value;
-	            setFlag(7, A == 0);
-	            setFlag(6, false);
-	            setFlag(5, false);
-	            setFlag(4, false);
-	            System.out.println("OR A, d8 executed.");
-	            break;
-
-	        case (byte) 0xB7: // CP A, A
-	            setFlag(7, A == 0);
-	            setFlag(6, true);
-	            setFlag(5, false);
-	            setFlag(4, false);
-	            System.out.println("CP A, A executed.");
-	            break;
-
-	        case (byte) 0xB8: // CP A, B
-	            setFlag(7, A == B);
-	            setFlag(6, true);
-	            setFlag(5, (A & 0xF) < (B & 0xF));
-	            setFlag(4, A < B);
-	            System.out.println("CP A, B executed.");
-	            break;
-
-	        case (byte) 0xB9: // CP A, C
-	            setFlag(7, A == C);
-	            setFlag(6, true);
-	            setFlag(5, (A & 0xF) < (C & 0xF));
-	            setFlag(4, A < C);
-	            System.out.println("CP A, C executed.");
-	            break;
-
-	        case (byte) 0xBA: // CP A, D
-	            setFlag(7, A == D);
-	            setFlag(6, true);
-	            setFlag(5, (A & 0xF) < (D & 0xF));
-	            setFlag(4, A < D);
-	            System.out.println("CP A, D executed.");
-	            break;
-
-	        case (byte) 0xBB: // CP A, E
-	            setFlag(7, A == E);
-	            setFlag(6, true);
-	            setFlag(5, (A & 0xF) < (E & 0xF));
-	            setFlag(4, A < E);
-	            System.out.println("CP A, E executed.");
-	            break;
-
-	        case (byte) 0xBC: // CP A, H
-	            setFlag(7, A == H);
-	            setFlag(6, true);
-	            setFlag(5, (A & 0xF) < (H & 0xF));
-	            setFlag(4, A < H);
-	            System.out.println("CP A, H executed.");
-	            break;
-
-	        case (byte) 0xBD: // CP A, L
-	            setFlag(7, A == L);
-	            setFlag(6, true);
-	            setFlag(5, (A & 0xF) < (L & 0xF));
-	            setFlag(4, A < L);
-	            System.out.println("CP A, L executed.");
-	            break;
-
-	        case (byte) 0xBE: // CP A, (HL)
-	            value = memory.read(getHL());
-	            setFlag(7, A == value);
-	            setFlag(6, true);
-	            setFlag(5, (A & 0xF) < (value & 0xF));
-	            setFlag(4, A < value);
-	            System.out.println("CP A, (HL) executed.");
-	            break;
-
-	        case (byte) 0xFE: // CP A, d8
-	            value = memory.read(PC++);
-	            setFlag(7, A == value);
-	            setFlag(6, true);
-	            setFlag(5, (A & 0xF) < (value & 0xF));
-	            setFlag(4, A < value);
-	            System.out.println("CP A, d8 executed.");
-	            break;
-
-	        // Increment/Decrement instructions
-	        case (byte) 0x04: // INC B
-	            B++;
-	            setFlag(7, B == 0);
-	            setFlag(6, false);
-	            setFlag(5, (B & 0xF) == 0);
-	            System.out.println("INC B executed: B = " + Integer.toHexString(B & 0xFF));
-	            break;
-
-	        case (byte) 0x05: // DEC B
-	            B--;
-	            setFlag(7, B == 0);
-	            setFlag(6, true);
-	            setFlag(5, (B & 0xF) == 0xF);
-	            System.out.println("DEC B executed: B = " + Integer.toHexString(B & 0xFF));
-	            break;
-
-	        case (byte) 0x0C: // INC C
-	            C++;
-	            setFlag(7, C == 0);
-	            setFlag(6, false);
-	            setFlag(5, (C & 0xF) == 0);
-	            System.out.println("INC C executed: C = " + Integer.toHexString(C & 0xFF));
-	            break;
-
-	        case (byte) 0x0D: // DEC C
-	            C--;
-	            setFlag(7, C == 0);
-	            setFlag(6, true);
-	            setFlag(5, (C & 0xF) == 0xF);
-	            System.out.println("DEC C executed: C = " + Integer.toHexString(C & 0xFF));
-	            break;
-
-	        case (byte) 0x14: // INC D
-	            D++;
-	            setFlag(7, D == 0);
-	            setFlag(6, false);
-	            setFlag(5, (D & 0xF) == 0);
-	            System.out.println("INC D executed: D = " + Integer.toHexString(D & 0xFF));
-	            break;
-
-	        case (byte) 0x15: // DEC D
-	            D--;
-	            setFlag(7, D == 0);
-	            setFlag(6, true);
-	            setFlag(5, (D & 0xF) == 0xF);
-	            System.out.println("DEC D executed: D = " + Integer.toHexString(D & 0xFF));
-	            break;
-
-	        case (byte) 0x1C: // INC E
-	            E++;
-	            setFlag(7, E == 0);
-	            setFlag(6, false);
-	            setFlag(5, (E & 0xF) == 0);
-	            System.out.println("INC E executed: E = " + Integer.toHexString(E & 0xFF));
-	            break;
-
-	        case (byte) 0x1D: // DEC E
-	            E--;
-	            setFlag(7, E == 0);
-	            setFlag(6, true);
-	            setFlag(5, (E & 0xF) == 0xF);
-	            System.out.println("DEC E executed: E = " + Integer.toHexString(E & 0xFF));
-	            break;
-
-	        case (byte) 0x24: // INC H
-	            H++;
-	            setFlag(7, H == 0);
-	            setFlag(6, false);
-	            setFlag(5, (H & 0xF) == 0);
-	            System.out.println("INC H executed: H = " + Integer.toHexString(H & 0xFF));
-	            break;
-
-	        case (byte) 0x25: // DEC H
-	            H--;
-	            setFlag(7, H == 0);
-	            setFlag(6, true);
-	            setFlag(5, (H & 0xF) == 0xF);
-	            System.out.println("DEC H executed: H = " + Integer.toHexString(H & 0xFF));
-	            break;
-
-	        case (byte) 0x2C: // INC L
-	            L++;
-	            setFlag(7, L == 0);
-	            setFlag(6, false);
-	            setFlag(5, (L & 0xF) == 0);
-	            System.out.println("INC L executed: L = " + Integer.toHexString(L & 0xFF));
-	            break;
-
-	        case (byte) 0x2D: // DEC L
-	            L--;
-	            setFlag(7, L == 0);
-	            setFlag(6, true);
-	            setFlag(5, (L & 0xF) == 0xF);
-	            System.out.println("DEC L executed: L = " + Integer.toHexString(L & 0xFF));
-	            break;
-
-	        case (byte) 0x34: // INC (HL)
-	            value = memory.read(getHL()) + 1;
-	            memory.write(getHL(), value & 0xFF);
-	            setFlag(7, value == 0);
-	            setFlag(6, false);
-	            setFlag(5, (value & 0xF) == 0);
-	            System.out.println("INC (HL) executed: (HL) = " + Integer.toHexString(value & 0xFF));
-	            break;
-
-	        case (byte) 0x35: // DEC (HL)
-	            value = memory.read(getHL()) - 1;
-	            memory.write(getHL(), value & 0xFF);
-	            setFlag(7, value == 0);
-	            setFlag(6, true);
-	            setFlag(5, (value & 0xF) == 0xF);
-	            System.out.println("DEC (HL) executed: (HL) = " + Integer.toHexString(value & 0xFF));
-	            break;
-
-	        case (byte) 0x3C: // INC A
-	            A++;
-	            setFlag(7, A == 0);
-	            setFlag(6, false);
-	            setFlag(5, (A & 0xF) == 0);
-	            System.out.println("INC A executed: A = " + Integer.toHexString(A & 0xFF));
-	            break;
-
-	        case (byte) 0x3D: // DEC A
-	            A--;
-	            setFlag(7, A == 0);
-	            setFlag(6, true);
-	            setFlag(5, (A & 0xF) == 0xF);
-	            System.out.println("DEC A executed: A = " + Integer.toHexString(A & 0xFF));
-	            break;
-
-	        // Miscellaneous instructions
-	        case (byte) 0x27: // DAA
-	            if (!getFlag(6)) { // After an addition
-	                if (getFlag(4) || (A > 0x99)) {
-	                    A += 0x60;
-	                    setFlag(4, true);
-	                }
-	                if (getFlag(5) || ((A & 0x0F) > 0x09)) {
-	                    A += 0x06;
-	                }
-	            } else { // After a subtraction
-	                if (getFlag(4)) {
-	                    A -= 0x60;
-	                }
-	                if (getFlag(5)) {
-	                    A -= 0x06;
-	                }
-	            }
-	            setFlag(7, (A & 0xFF) == 0);
-	            setFlag(5, false);
-	            A &= 0xFF;
-	            System.out.println("DAA executed: A = " + Integer.toHexString(A & 0xFF));
-	            break;
-
-	        case (byte) 0x2F: // CPL
-	            A = ~A;
-	            setFlag(6, true);
-	            setFlag(5, true);
-	            System.out.println("CPL executed: A = " + Integer.toHexString(A & 0xFF));
-	            break;
-
-	        case (byte) 0x37: // SCF
-	            setFlag(6, false);
-	            setFlag(5, false);
-	            setFlag(4, true);
-	            System.out.println("SCF executed.");
-	            break;
-
-	        case (byte) 0x3F: // CCF
-	            setFlag(6, false);
-	            setFlag(5, false);
-	            setFlag(4, !getFlag(4));
-	            System.out.println("CCF executed.");
-	            break;
-
-	        // Jump instructions
-	        case (byte) 0xC3: { // JP nn
-	            addr = (memory.read(PC++) & 0xFF) | ((memory.read(PC++) & 0xFF) << 8);
-	            PC = addr;
-	            System.out.println("JP nn executed: PC = " + Integer.toHexString(PC));
-	            break;
-	        }
-
-	        case (byte) 0xC2:  // JP NZ, nn
-	            addr = (memory.read(PC++) & 0xFF) | ((memory.read(PC++) & 0xFF) << 8);
-	            if (!getFlag(7)) { // Zero flag is not set
-	                PC = addr;
-	                System.out.println("JP NZ, nn executed: PC = " + Integer.toHexString(PC));
-	                break;
-	            } else {
-	                System.out.println("JP NZ, nn not taken.");
-	            }
-	            break;
-	        
-
-	        case (byte) 0xCA:  // JP Z, nn
-	            addr = (memory.read(PC++) & 0xFF) | ((memory.read(PC++) & 0xFF) << 8);
-	            if (getFlag(7)) { // Zero flag is set
-	                PC = addr;
-	                System.out.println("JP Z, nn executed: PC = " + Integer.toHexString(PC));
-	            } else {
-	                System.out.println("JP Z, nn not taken.");
-	            }
-	            break;
-
-	        case (byte) 0xD2:  // JP NC, nn
-	            addr = (memory.read(PC++) & 0xFF) | ((memory.read(PC++) & 0xFF) << 8);
-	            if (!getFlag(4)) { // Carry flag is not set
-	                PC = addr;
-	                System.out.println("JP NC, nn executed: PC = " + Integer.toHexString(PC));
-	            } else {
-	                System.out.println("JP NC, nn not taken.");
-	            }
-	            break;
-	        
-
-	        case (byte) 0xDA:  // JP C, nn
-	            addr = (memory.read(PC++) & 0xFF) | ((memory.read(PC++) & 0xFF) << 8);
-	            if (getFlag(4)) { // Carry flag is set
-	                PC = addr;
-	                System.out.println("JP C, nn executed: PC = " + Integer.toHexString(PC));
-	            } else {
-	                System.out.println("JP C, nn not taken.");
-	            }
-	            break;
-
-	        case (byte) 0xE9: // JP (HL)
-	            PC = getHL();
-	            System.out.println("JP (HL) executed: PC = " + Integer.toHexString(PC));
-	            break;
-
-	        case (byte) 0x18: { // JR n
-	            int offset = memory.read(PC++);
-	            if (offset > 127) offset -= 256; // Convert to signed
-	            PC += offset;
-	            System.out.println("JR n executed: PC = " + Integer.toHexString(PC));
-	            break;
-	        }
-
-	        case (byte) 0x20: { // JR NZ, n
-	            int offset = memory.read(PC++);
-	            if (offset > 127) offset -= 256; // Convert to signed
-	            if (!getFlag(7)) { // Zero flag is not set
-	                PC += offset;
-	                System.out.println("JR NZ, n executed: PC = " + Integer.toHexString(PC));
-	            } else {
-	                System.out.println("JR NZ, n not taken.");
-	            }
-	            break;
-	        }
-
-	        case (byte) 0x28: { // JR Z, n
-	            int offset = memory.read(PC++);
-	            if (offset > 127) offset -= 256; // Convert to signed
-	            if (getFlag(7)) { // Zero flag is set
-	                PC += offset;
-	                System.out.println("JR Z, n executed: PC = " + Integer.toHexString(PC));
-	            } else {
-	                System.out.println("JR Z, n not taken.");
-	            }
-	            break;
-	        }
-
-	        case (byte) 0x30: { // JR NC, n
-	            int offset = memory.read(PC++);
-	            if (offset > 127) offset -= 256; // Convert to signed
-	            if (!getFlag(4)) { // Carry flag is not set
-	                PC += offset;
-	                System.out.println("JR NC, n executed: PC = " + Integer.toHexString(PC));
-	            } else {
-	                System.out.println("JR NC, n not taken.");
-	            }
-	            break;
-	        }
-
-	        case (byte) 0x38: { // JR C, n
-	            int offset = memory.read(PC++);
-	            if (offset > 127) offset -= 256; // Convert to signed
-	            if (getFlag(4)) { // Carry flag is set
-	                PC += offset;
-	                System.out.println("JR C, n executed: PC = " + Integer.toHexString(PC));
-	            } else {
-	                System.out.println("JR C, n not taken.");
-	            }
-	            break;
-	        }
-
-	        case (byte) 0xCD: { // CALL nn
-	            addr = (memory.read(PC++) & 0xFF) | ((memory.read(PC++) & 0xFF) << 8);
-	            SP -= 2;
-	            memory.write(SP, PC & 0xFF);
-	            memory.write(SP + 1, (PC >> 8) & 0xFF);
-	            PC = addr;
-	            System.out.println("CALL nn executed: PC = " + Integer.toHexString(PC));
-	            break;
-	        }
-
-	        case (byte) 0xC4: { // CALL NZ, nn
-	            addr = (memory.read(PC++) & 0xFF) | ((memory.read(PC++) & 0xFF) << 8);
-	            if (!getFlag(7)) { // Zero flag is not set
-	                SP -= 2;
-	                memory.write(SP, PC & 0xFF);
-	                memory.write(SP + 1, (PC >> 8) & 0xFF);
-	                PC = addr;
-	                System.out.println("CALL NZ, nn executed: PC = " + Integer.toHexString(PC));
-	            } else {
-	                System.out.println("CALL NZ, nn not taken.");
-	            }
-	            break;
-	        }
-
-	        case (byte) 0xCC: { // CALL Z, nn
-	            addr = (memory.read(PC++) & 0xFF) | ((memory.read(PC++) & 0xFF) << 8);
-	            if (getFlag(7)) { // Zero flag is set
-	                SP -= 2;
-	                memory.write(SP, PC & 0xFF);
-	                memory.write(SP + 1, (PC >> 8) & 0xFF);
-	                PC = addr;
-	                System.out.println("CALL Z, nn executed: PC = " + Integer.toHexString(PC) + " CALL Z, nn target address: " + Integer.toHexString(addr));
-	                System.out.println("CALL Z, nn low byte: " + Integer.toHexString(memory.read(PC) & 0xFF));
-	                System.out.println("CALL Z, nn high byte: " + Integer.toHexString(memory.read(PC + 1) & 0xFF));
-	            } else {
-	                System.out.println("CALL Z, nn not taken.");
-	            }
-	            break;
-	        }
-
-	        case (byte) 0xD4: { // CALL NC, nn
-	            addr = (memory.read(PC++) & 0xFF) | ((memory.read(PC++) & 0xFF) << 8);
-	            if (!getFlag(4)) { // Carry flag is not set
-	                SP -= 2;
-	                memory.write(SP, PC & 0xFF);
-	                memory.write(SP + 1, (PC >> 8) & 0xFF);
-	                PC = addr;
-	                System.out.println("CALL NC, nn executed: PC = " + Integer.toHexString(PC));
-	            } else {
-	                System.out.println("CALL NC, nn not taken.");
-	            }
-	            break;
-	        }
-
-	        case (byte) 0xDC: { // CALL C, nn
-	            addr = (memory.read(PC++) & 0xFF) | ((memory.read(PC++) & 0xFF) << 8);
-	            if (getFlag(4)) { // Carry flag is set
-	                SP -= 2;
-	                memory.write(SP, PC & 0xFF);
-	                memory.write(SP + 1, (PC >> 8) & 0xFF);
-	                PC = addr;
-	                System.out.println("CALL C, nn executed: PC = " + Integer.toHexString(PC));
-	            } else {
-	                System.out.println("CALL C, nn not taken.");
-	            }
-	            break;
-	        }
-	        
-	        //push instructions
-	        case (byte) 0xF5: //push AF
-	        	SP -= 2;
-	        	memory.write(SP + 1, A);
-	        	memory.write(SP, F);
-	        	System.out.println("PUSH AF executed.");
-	        	break;
-	        case (byte) 0xC5: //push BC
-	        	SP -= 2;
-	        	memory.write(SP + 1, B);
-	        	memory.write(SP, C);
-	        	System.out.println("PUSH AF executed.");
-	        	break;
-	        case (byte) 0xD5: //push DE
-	        	SP -= 2;
-	        	memory.write(SP + 1, D);
-	        	memory.write(SP, E);
-	        	System.out.println("PUSH AF executed.");
-	        	break;
-	        case (byte) 0xE5: //push HL
-	        	SP -= 2;
-	        	memory.write(SP + 1, H);
-	        	memory.write(SP, L);
-	        	System.out.println("PUSH AF executed.");
-	        	break;
-	        
-	        
-	        // Return instructions
-	        case (byte) 0xC9: { // RET
-	            int newPC = (memory.read(SP) & 0xFF) | ((memory.read(SP + 1) & 0xFF) << 8);
-	            SP += 2;
-	            System.out.println("RET executed: PC = " + Integer.toHexString(PC));
-	            PC = newPC;
-	            break;
-	        }
-
-	        case (byte) 0xC0: // RET NZ
-	            if (!getFlag(7)) { // Zero flag is not set
-	                PC = (memory.read(SP++) & 0xFF) | ((memory.read(SP++) & 0xFF) << 8);
-	                System.out.println("RET NZ executed: PC = " + Integer.toHexString(PC));
-	            } else {
-	                System.out.println("RET NZ not taken.");
-	            }
-	            break;
-
-	        case (byte) 0xC8: // RET Z
-	            if (getFlag(7)) { // Zero flag is set
-	                PC = (memory.read(SP++) & 0xFF) | ((memory.read(SP++) & 0xFF) << 8);
-	                System.out.println("RET Z executed: PC = " + Integer.toHexString(PC));
-	            } else {
-	                System.out.println("RET Z not taken.");
-	            }
-	            break;
-
-	        case (byte) 0xD0: // RET NC
-	            if (!getFlag(4)) { // Carry flag is not set
-	                PC = (memory.read(SP++) & 0xFF) | ((memory.read(SP++) & 0xFF) << 8);
-	                System.out.println("RET NC executed: PC = " + Integer.toHexString(PC));
-	            } else {
-	                System.out.println("RET NC not taken.");
-	            }
-	            break;
-
-	        case (byte) 0xD8: // RET C
-	            if (getFlag(4)) { // Carry flag is set
-	                PC = (memory.read(SP++) & 0xFF) | ((memory.read(SP++) & 0xFF) << 8);
-	                System.out.println("RET C executed: PC = " + Integer.toHexString(PC));
-	            } else {
-	                System.out.println("RET C not taken.");
-	            }
-	            break;
-
-	        case (byte) 0xD9: { // RETI
-	        	IME = true; // Enable interrupts
-	            PC = (memory.read(SP++) & 0xFF) | ((memory.read(SP++) & 0xFF) << 8);
-	            SP += 2;
-	            System.out.println("RETI executed: PC = " + Integer.toHexString(PC));
-	            break;
-	        }
-
-	        // Restart instructions
-	        case (byte) 0xC7: // RST 00H
-	            SP -= 2;
-	            memory.write(SP, PC & 0xFF);
-	            memory.write(SP + 1, (PC >> 8) & 0xFF);
-	            PC = 0x00;
-	            System.out.println("RST 00H executed.");
-	            break;
-
-	        case (byte) 0xCF: // RST 08H
-	            SP -= 2;
-	            memory.write(SP, PC & 0xFF);
-	            memory.write(SP + 1, (PC >> 8) & 0xFF);
-	            PC = 0x08;
-	            System.out.println("RST 08H executed.");
-	            break;
-
-	        case (byte) 0xD7: // RST 10H
-	            SP -= 2;
-	            memory.write(SP, PC & 0xFF);
-	            memory.write(SP + 1, (PC >> 8) & 0xFF);
-	            PC = 0x10;
-	            System.out.println("RST 10H executed.");
-	            break;
-
-	        case (byte) 0xDF: // RST 18H
-	            SP -= 2;
-	            memory.write(SP, PC & 0xFF);
-	            memory.write(SP + 1, (PC >> 8) & 0xFF);
-	            PC = 0x18;
-	            System.out.println("RST 18H executed.");
-	            break;
-
-	        case (byte) 0xE7: // RST 20H
-	            SP -= 2;
-	            memory.write(SP, PC & 0xFF);
-	            memory.write(SP + 1, (PC >> 8) & 0xFF);
-	            PC = 0x20;
-	            System.out.println("RST 20H executed.");
-	            break;
-
-	        case (byte) 0xEF: // RST 28H
-	            SP -= 2;
-	            memory.write(SP, PC & 0xFF);
-	            memory.write(SP + 1, (PC >> 8) & 0xFF);
-	            PC = 0x28;
-	            System.out.println("RST 28H executed.");
-	            break;
-
-	        case (byte) 0xF7: // RST 30H
-	            SP -= 2;
-	            memory.write(SP, PC & 0xFF);
-	            memory.write(SP + 1, (PC >> 8) & 0xFF);
-	            PC = 0x30;
-	            System.out.println("RST 30H executed.");
-	            break;
-
-	        case (byte) 0xFF: // RST 38H
-	            SP -= 2;
-            	memory.write(SP + 1, (PC >> 8) & 0xFF);
-	            memory.write(SP, PC & 0xFF);
-	            PC = 0x38;
-	            
-	            RST38count++;
-	            if(RST38count > 5) {
-	            	throw new RuntimeException("RST $38 crash! Halting program.");
-	            }
-	            
-	            System.out.println("RST 38H executed, jumping to 0x38.");
-	            break;
-	            
-	        	//default case (unknown opcode)
-	        default:
-	            System.out.println("Unknown opcode: 0x" + Integer.toHexString(opcode & 0xFF));
-	    }
+	public int execute(byte opcode) {
+		return execute((PC - 1) & 0xFFFF, opcode & 0xFF);
 	}
-	
+
+	/**
+	 * execute op fetched from pc, PC is already past the opcode
+	 * (or still on it after the halt bug)
+	 */
+	private int execute(int pc, int op) {
+		if (Trace.LEVEL >= Trace.OPCODES && trace != null) {
+			trace.instruction(pc, op, getAF(), getBC(), getDE(), getHL(), SP);
+		}
+		decodeOperand(op);
+		if (profiler != null) {
+			profiler.instruction(bankOf(pc), pc, op, operand);
+		}
+		instructions++;
+		cycles = CYCLES[op];
+		OPCODES[op].execute(this);
+		int taken = cycles;
+		scheduler.advance(taken);
+		return taken;
+	}
+
+	/**
+	 * read the immediate bytes following the opcode at PC into operand,
+	 * leaving PC on the next instruction
+	 */
+	private void decodeOperand(int op) {
+		int length = LENGTHS[op];
+		if (length > 1) {
+			operand = memory.peek(PC);
+			PC = (PC + 1) & 0xFFFF;
+			if (length > 2) {
+				operand |= memory.peek(PC) << 8;
+				PC = (PC + 1) & 0xFFFF;
+			}
+		}
+	}
+
+	//operand helpers, the immediate was decoded before the handler runs
+	//(by decodeOperand or from a cached block)
+	private int imm8() {
+		return operand;
+	}
+
+	private int imm16() {
+		return operand;
+	}
+
+	/**
+	 * read an 8 bit register by its opcode index, 6 is (HL)
+	 */
+	private int getReg(int index) {
+		switch (index) {
+		case 0: return B;
+		case 1: return C;
+		case 2: return D;
+		case 3: return E;
+		case 4: return H;
+		case 5: return L;
+		case 6: return memory.read(getHL());
+		default: return A;
+		}
+	}
+
+	private void setReg(int index, int value) {
+		value &= 0xFF;
+		switch (index) {
+		case 0: B = value; break;
+		case 1: C = value; break;
+		case 2: D = value; break;
+		case 3: E = value; break;
+		case 4: H = value; break;
+		case 5: L = value; break;
+		case 6: memory.write(getHL(), value); break;
+		default: A = value; break;
+		}
+	}
+
+	private boolean condition(int cc) {
+		switch (cc) {
+		case 0: return (zeroResult & 0xFF) != 0; // NZ
+		case 1: return (zeroResult & 0xFF) == 0; // Z
+		case 2: return (carryBits & 0x100) == 0; // NC
+		default: return (carryBits & 0x100) != 0; // C
+		}
+	}
+
+	private int carry() {
+		return (carryBits >> 8) & 1;
+	}
+
+	//stack helpers
+	private void push(int value) {
+		SP = (SP - 2) & 0xFFFF;
+		memory.write((SP + 1) & 0xFFFF, (value >> 8) & 0xFF); //high byte
+		memory.write(SP, value & 0xFF); //low byte
+	}
+
+	private int pop() {
+		int value = memory.read(SP) | (memory.read((SP + 1) & 0xFFFF) << 8);
+		SP = (SP + 2) & 0xFFFF;
+		return value;
+	}
+
+	//control flow helpers, operands are always consumed even if the branch is not taken
+	private void jp(boolean taken) {
+		int addr = imm16();
+		if (taken) {
+			PC = addr;
+			cycles += 4;
+		}
+	}
+
+	private void jr(boolean taken) {
+		int offset = (byte) imm8(); // signed
+		if (taken) {
+			PC = (PC + offset) & 0xFFFF;
+			cycles += 4;
+		}
+	}
+
+	private void call(boolean taken) {
+		int addr = imm16();
+		if (taken) {
+			push(PC);
+			PC = addr;
+			cycles += 12;
+			if (profiler != null) {
+				profiler.call(bankOf(addr) << 16 | addr, SP, scheduler.now());
+			}
+		}
+	}
+
+	private void ret() {
+		int sp = SP;
+		PC = pop();
+		if (profiler != null) {
+			profiler.ret(sp, scheduler.now());
+		}
+	}
+
+	/**
+	 * HALT until an interrupt is pending. If one already is with IME off the
+	 * cpu does not halt at all but fails to move PC past the next opcode
+	 */
+	private void halt() {
+		if (interrupts.getPending() != 0 && !interrupts.isIME()) {
+			if (interrupts.isEnabling()) {
+				//EI right before HALT: the interrupt is taken and returns to the HALT
+				PC = (PC - 1) & 0xFFFF;
+			} else {
+				state = HALT_BUG;
+			}
+		} else {
+			state = HALTED;
+			scheduler.schedule(interruptCheck, scheduler.now());
+		}
+	}
+
+	/**
+	 * STOP until a button is pressed. The timer, LCD and sound stop with the cpu,
+	 * and an old joypad request must not count as the press that wakes it
+	 */
+	private void stop() {
+		state = STOPPED;
+		interrupts.setIF(interrupts.getIF() & ~0x10);
+		memory.setStopped(true);
+	}
+
+	private void rst(int vector) {
+		push(PC);
+		PC = vector;
+		if (profiler != null) {
+			profiler.call(vector, SP, scheduler.now());
+		}
+	}
+
+	//ALU helpers, they only record their inputs and result for the flags
+	private void add(int value, int carry) {
+		int result = A + value + carry;
+		zeroResult = result;
+		subtract = false;
+		halfBits = A ^ value ^ result;
+		carryBits = result;
+		A = result & 0xFF;
+	}
+
+	private void sub(int value, int carry) {
+		A = compare(value, carry);
+	}
+
+	private void cp(int value) {
+		compare(value, 0);
+	}
+
+	private int compare(int value, int carry) {
+		int result = A - value - carry;
+		zeroResult = result;
+		subtract = true;
+		halfBits = A ^ value ^ result;
+		carryBits = result; //a borrow leaves bit 8 set
+		return result & 0xFF;
+	}
+
+	private void and(int value) {
+		A &= value;
+		logicFlags(0x10);
+	}
+
+	private void xor(int value) {
+		A = (A ^ value) & 0xFF;
+		logicFlags(0);
+	}
+
+	private void or(int value) {
+		A = (A | value) & 0xFF;
+		logicFlags(0);
+	}
+
+	//AND, XOR and OR: Z from A, N and C clear, H given
+	private void logicFlags(int half) {
+		zeroResult = A;
+		subtract = false;
+		halfBits = half;
+		carryBits = 0;
+	}
+
+	//INC and DEC leave the carry flag alone
+	private int inc(int value) {
+		int result = (value + 1) & 0xFF;
+		zeroResult = result;
+		subtract = false;
+		halfBits = value ^ 1 ^ result;
+		return result;
+	}
+
+	private int dec(int value) {
+		int result = (value - 1) & 0xFF;
+		zeroResult = result;
+		subtract = true;
+		halfBits = value ^ 1 ^ result;
+		return result;
+	}
+
+	private void addHL(int value) {
+		int hl = getHL();
+		int result = hl + value;
+		subtract = false;
+		halfBits = (hl ^ value ^ result) >> 8; //carry out of bit 11
+		carryBits = result >> 8; //carry out of bit 15
+		setHL(result);
+	}
+
+	//SP + signed 8 bit offset, flags come from the low byte
+	private int addSP(int offset) {
+		int low = (SP & 0xFF) + (offset & 0xFF);
+		zeroResult = 1;
+		subtract = false;
+		halfBits = SP ^ offset ^ low;
+		carryBits = low;
+		return (SP + (byte) offset) & 0xFFFF;
+	}
+
+	private void daa() {
+		if (!getFlag(6)) { // After an addition
+			if (getFlag(4) || (A > 0x99)) {
+				A += 0x60;
+				setFlag(4, true);
+			}
+			if (getFlag(5) || ((A & 0x0F) > 0x09)) {
+				A += 0x06;
+			}
+		} else { // After a subtraction
+			if (getFlag(4)) {
+				A -= 0x60;
+			}
+			if (getFlag(5)) {
+				A -= 0x06;
+			}
+		}
+		A &= 0xFF;
+		zeroResult = A;
+		halfBits = 0;
+	}
+
+	//rotate and shift helpers, shared by the accumulator and CB forms
+	private int shiftFlags(int result, boolean carryOut) {
+		result &= 0xFF;
+		zeroResult = result;
+		subtract = false;
+		halfBits = 0;
+		carryBits = carryOut ? 0x100 : 0;
+		return result;
+	}
+
+	private int rlc(int value) {
+		return shiftFlags((value << 1) | (value >> 7), (value & 0x80) != 0);
+	}
+
+	private int rrc(int value) {
+		return shiftFlags((value >> 1) | (value << 7), (value & 0x01) != 0);
+	}
+
+	private int rl(int value) {
+		return shiftFlags((value << 1) | carry(), (value & 0x80) != 0);
+	}
+
+	private int rr(int value) {
+		return shiftFlags((value >> 1) | (carry() << 7), (value & 0x01) != 0);
+	}
+
+	private int sla(int value) {
+		return shiftFlags(value << 1, (value & 0x80) != 0);
+	}
+
+	private int sra(int value) {
+		return shiftFlags((value >> 1) | (value & 0x80), (value & 0x01) != 0);
+	}
+
+	private int srl(int value) {
+		return shiftFlags(value >> 1, (value & 0x01) != 0);
+	}
+
+	private int swap(int value) {
+		return shiftFlags((value << 4) | (value >> 4), false);
+	}
+
+	private void bit(int mask, int value) {
+		zeroResult = value & mask;
+		subtract = false;
+		halfBits = 0x10;
+	}
+
 	/**
 	 * emulate a cpu cycle
 	 */
 	public void step() {
+		if (isHalted()) {
+			//skip straight to whatever comes next, at most a frame when nothing is scheduled
+			runSuspended(scheduler.now + CYCLES_PER_FRAME);
+			scheduler.advance(0);
+			return;
+		}
 		//corruption check
 		if (PC == 0x0000) {
-			System.out.println("WARNING! PC jumped to 0x0000! Possible corruption has occurred!");
+			traceEvent(Trace.PC_ZERO, 0);
+		}
+		if (state == HALT_BUG) {
+			//the opcode is read again, PC does not move past it
+			state = RUNNING;
+			execute(PC, memory.peek(PC));
+			return;
 		}
 		byte opcode = fetch(); //fetch and decode,
-		execute(opcode); //and execute!
-		checkInterrupts();
+		execute(opcode); //and execute! interrupts are checked by the scheduler
+	}
+	
+	/**
+	 * what the cpu does instead of an instruction while halted or stopped:
+	 * nothing happens until an event wakes it up, so the clock jumps to the
+	 * next one (or to end)
+	 */
+	private void runSuspended(long end) {
+		if (scheduler.next > scheduler.now) {
+			long from = scheduler.now;
+			scheduler.now = Math.min(scheduler.next, end);
+			haltedCycles += scheduler.now - from;
+		}
+	}
+	
+	/**
+	 * @return true while the cpu sits in HALT or STOP
+	 */
+	public boolean isHalted() {
+		return state == HALTED || state == STOPPED;
+	}
+	
+	/**
+	 * run flat out until at least the given number of T-cycles have passed.
+	 * the loop only looks at the clock, everything else is left to the scheduler
+	 * @param budget T-cycles to run
+	 * @return T-cycles actually run, can overshoot by the last instruction
+	 */
+	public long runFor(long budget) {
+		Scheduler clock = scheduler;
+		Memory bus = memory;
+		BlockCache cache = blocks;
+		Instruction[] ops = OPCODES;
+		int[] costs = CYCLES;
+		long start = clock.now;
+		long end = start + budget;
+		cache.validate();
+		paused = false;
+		
+		while (clock.now < end) {
+			//inner loop runs until the next event or the end of the budget
+			while (clock.now < end && clock.now < clock.next) {
+				if (state != RUNNING && state != HALT_BUG) {
+					runSuspended(end);
+					continue;
+				}
+				//after the halt bug the next opcode goes through the single instruction path
+				BlockCache.Block block = state == RUNNING ? cache.lookup(PC) : null;
+				if (debugger != null) {
+					if (debugger.breakAt(PC)) {
+						break; //the debugger paused us
+					}
+					//a breakpoint further in, go through the block an instruction at a time
+					if (block != null && debugger.breaksWithin(PC + 1, block.ends[block.ends.length - 1] - 1)) {
+						block = null;
+					}
+				}
+				if (block == null) {
+					//not cacheable, interpret a single instruction, fetched with peek like the blocks
+					int op = bus.peek(PC);
+					if (Trace.LEVEL >= Trace.OPCODES && trace != null) {
+						trace.instruction(PC, op, getAF(), getBC(), getDE(), getHL(), SP);
+					}
+					int pc = PC;
+					if (state == RUNNING) {
+						PC = (PC + 1) & 0xFFFF;
+					} else {
+						state = RUNNING; //halt bug, the opcode is read again
+					}
+					decodeOperand(op);
+					if (profiler != null) {
+						profiler.instruction(bankOf(pc), pc, op, operand);
+					}
+					instructions++;
+					cycles = costs[op];
+					ops[op].execute(this);
+					clock.now += cycles;
+					continue;
+				}
+				if (profiler != null) {
+					profiler.block(bankOf(PC), PC, block.ends, block.ops, block.operands);
+				}
+				instructions += block.ops.length;
+				//the budget only needs checking if the block could run past it
+				boolean fits = clock.now + block.cycles <= end;
+				int epoch = bus.getCodeEpoch();
+				int[] codes = block.ops;
+				for (int i = 0; i < codes.length; i++) {
+					int op = codes[i];
+					if (Trace.LEVEL >= Trace.OPCODES && trace != null) {
+						trace.instruction(block.ends[i] - LENGTHS[op], op, getAF(), getBC(), getDE(), getHL(), SP);
+					}
+					PC = block.ends[i];
+					operand = block.operands[i];
+					cycles = costs[op];
+					ops[op].execute(this);
+					clock.now += cycles;
+					//leave early for events, a bank switch or code being overwritten
+					if (clock.now >= clock.next || bus.getCodeEpoch() != epoch || (!fits && clock.now >= end)) {
+						break;
+					}
+				}
+			}
+			if (clock.now >= clock.next) {
+				clock.runDue();
+			}
+			if (paused) {
+				break;
+			}
+		}
+		return clock.now - start;
+	}
+	
+	/**
+	 * run up to the end of the current frame
+	 * @return T-cycles actually run
+	 */
+	public long runFrame() {
+		return runFor(CYCLES_PER_FRAME - scheduler.now % CYCLES_PER_FRAME);
 	}
 	
-	//flag implementation
+	/**
+	 * run until the condition holds after an instruction, or the budget runs out
+	 * @param condition checked after every instruction
+	 * @param budget most T-cycles to run
+	 * @return true if the condition was met, false if the budget ran out or the cpu was paused
+	 */
+	public boolean runUntil(Predicate<CPU> condition, long budget) {
+		Scheduler clock = scheduler;
+		Memory bus = memory;
+		Instruction[] ops = OPCODES;
+		int[] costs = CYCLES;
+		long end = clock.now + budget;
+		paused = false;
+		
+		while (clock.now < end) {
+			if (state != RUNNING && state != HALT_BUG) {
+				runSuspended(end);
+			} else {
+				if (debugger != null && debugger.breakAt(PC)) {
+					return false;
+				}
+				int op = bus.peek(PC);
+				if (Trace.LEVEL >= Trace.OPCODES && trace != null) {
+					trace.instruction(PC, op, getAF(), getBC(), getDE(), getHL(), SP);
+				}
+				int pc = PC;
+				if (state == RUNNING) {
+					PC = (PC + 1) & 0xFFFF;
+				} else {
+					state = RUNNING; //halt bug, the opcode is read again
+				}
+				decodeOperand(op);
+				if (profiler != null) {
+					profiler.instruction(bankOf(pc), pc, op, operand);
+				}
+				instructions++;
+				cycles = costs[op];
+				ops[op].execute(this);
+				clock.now += cycles;
+			}
+			if (clock.now >= clock.next) {
+				clock.runDue();
+			}
+			if (paused) {
+				return false;
+			}
+			if (condition.test(this)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	public int getPC() {
+		return PC;
+	}
+	
+	public void setPC(int value) {
+		PC = value & 0xFFFF;
+	}
+	
+	public int getSP() {
+		return SP;
+	}
+	
+	public void setSP(int value) {
+		SP = value & 0xFFFF;
+	}
+	
+	public boolean getIME() {
+		return interrupts != null && interrupts.isIME();
+	}
+	
+	/**
+	 * set IME right away, without the EI delay
+	 */
+	public void setIME(boolean value) {
+		interrupts.setIME(value);
+	}
+	
+	/**
+	 * @return hash of the same bytes a save state holds, cpu and clock in the low half and
+	 * memory, cartridge ram and io devices in the high half. Equal hashes mean equal machines
+	 */
+	public long stateHash() {
+		hashBuffer.clear();
+		saveState(hashBuffer);
+		CRC32C crc = new CRC32C();
+		crc.update(hashBuffer.flip());
+		return memory.checksum() << 32 | crc.getValue();
+	}
+	
+	//flag implementation, sets one flag without touching the others
 	public void setFlag(int bit, boolean condit) {
-		if (condit) F |= (1 << bit);
-		else F &= ~(1 << bit);
+		switch (bit) {
+		case 7: zeroResult = condit ? 0 : 1; break;
+		case 6: subtract = condit; break;
+		case 5: halfBits = condit ? 0x10 : 0; break;
+		case 4: carryBits = condit ? 0x100 : 0; break;
+		}
 	}
  	
 	/**
@@ -1333,13 +1229,13 @@ public class CPU {
 	 * @return
 	 */
 	public boolean getFlag(int bit) {
-		return (F & (1 << bit)) != 0;
+		return (getF() & (1 << bit)) != 0;
 	}
 	
 	//set 16 bit regs
 	public void setAF(int val) {
 		A = (val >> 8) & 0xFF;
-		F = val & 0xFF;
+		setF(val);
 	}
 	public void setBC(int val) {
 		B = (val >> 8) & 0xFF;
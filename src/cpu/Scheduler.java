@@ -0,0 +1,156 @@
+package cpu;
+
+/**
+ * Keeps the global T-cycle clock and a min-heap of timed events.
+ * The cpu only compares the clock against the earliest event after each
+ * instruction, everything else (interrupt checks, timer overflow, LCD modes)
+ * happens when its event comes due.
+ */
+public class Scheduler {
+
+	/**
+	 * something that happens at a given cycle. Components keep their own
+	 * Event instances and reschedule them, so the heap never allocates
+	 */
+	public abstract static class Event {
+		long time;
+		int index = -1; //slot in the heap, -1 while not scheduled
+
+		protected Event() {
+		}
+
+		/**
+		 * @param time the cycle the event was scheduled for, may be a little behind now()
+		 */
+		public abstract void fire(long time);
+
+		public boolean isScheduled() {
+			return index >= 0;
+		}
+
+		public long getTime() {
+			return time;
+		}
+	}
+
+	long now = 0;
+	long next = Long.MAX_VALUE; //time of heap[0], cached for the hot path
+
+	private Event[] heap = new Event[16];
+	private int size = 0;
+
+	/**
+	 * owned by the cpu, see CPU.getScheduler
+	 */
+	Scheduler() {
+	}
+
+	/**
+	 * @return T-cycles elapsed since power on
+	 */
+	public long now() {
+		return now;
+	}
+
+	/**
+	 * @return time of the earliest scheduled event, Long.MAX_VALUE if there is none
+	 */
+	public long nextEventTime() {
+		return next;
+	}
+
+	/**
+	 * schedule an event, moving it if it is already scheduled
+	 */
+	public void schedule(Event event, long time) {
+		if (event.index >= 0) {
+			long old = event.time;
+			event.time = time;
+			if (time < old) siftUp(event.index);
+			else siftDown(event.index);
+		} else {
+			if (size == heap.length) {
+				Event[] bigger = new Event[size * 2];
+				System.arraycopy(heap, 0, bigger, 0, size);
+				heap = bigger;
+			}
+			event.time = time;
+			event.index = size;
+			heap[size++] = event;
+			siftUp(event.index);
+		}
+		next = heap[0].time;
+	}
+
+	public void cancel(Event event) {
+		int index = event.index;
+		if (index < 0) return;
+		event.index = -1;
+		Event last = heap[--size];
+		heap[size] = null;
+		if (index < size) {
+			heap[index] = last;
+			last.index = index;
+			siftDown(index);
+			siftUp(last.index);
+		}
+		next = size > 0 ? heap[0].time : Long.MAX_VALUE;
+	}
+
+	/**
+	 * move the clock without firing anything, for time spent inside an event
+	 */
+	void tick(int cycles) {
+		now += cycles;
+	}
+
+	/**
+	 * move the clock and fire whatever came due
+	 */
+	void advance(int cycles) {
+		now += cycles;
+		if (now >= next) {
+			runDue();
+		}
+	}
+
+	/**
+	 * fire every event whose time has come, in time order
+	 */
+	public void runDue() {
+		while (size > 0 && heap[0].time <= now) {
+			Event event = heap[0];
+			cancel(event);
+			event.fire(event.time);
+		}
+		next = size > 0 ? heap[0].time : Long.MAX_VALUE;
+	}
+
+	private void siftUp(int index) {
+		Event event = heap[index];
+		while (index > 0) {
+			int parent = (index - 1) >> 1;
+			if (heap[parent].time <= event.time) break;
+			heap[index] = heap[parent];
+			heap[index].index = index;
+			index = parent;
+		}
+		heap[index] = event;
+		event.index = index;
+	}
+
+	private void siftDown(int index) {
+		Event event = heap[index];
+		while (true) {
+			int child = (index << 1) + 1;
+			if (child >= size) break;
+			if (child + 1 < size && heap[child + 1].time < heap[child].time) child++;
+			if (heap[child].time >= event.time) break;
+			heap[index] = heap[child];
+			heap[index].index = index;
+			index = child;
+		}
+		heap[index] = event;
+		event.index = index;
+	}
+}
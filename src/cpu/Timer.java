@@ -0,0 +1,164 @@
+package cpu;
+import java.nio.ByteBuffer;
+
+import memory.InterruptController;
+import memory.IoDevice;
+import memory.Memory;
+
+/**
+ * DIV, TIMA, TMA and TAC (FF04-FF07), worked out from the clock instead of
+ * being ticked. DIV is the upper byte of a 16 bit counter that started at
+ * divBase. TIMA counts falling edges of one of that counter's bits, so its
+ * value is the number of whole periods since the last sync. The only
+ * scheduled work is one event for the next overflow, which reloads TMA and
+ * raises the timer interrupt.
+ */
+final class Timer implements IoDevice {
+	//counter bit TIMA follows, as a period in T-cycles, by TAC bits 0-1
+	private static final int[] PERIODS = {1024, 16, 64, 256};
+
+	private final Scheduler scheduler;
+	private final InterruptController interrupts;
+
+	private long divBase; //clock when the divider was last 0
+	private int TIMA;
+	private long timaTime; //clock TIMA was last brought up to date
+	private int TMA;
+	private int TAC;
+	private boolean stopped; //STOP freezes the divider and TIMA
+
+	private final Scheduler.Event overflow = new Scheduler.Event() {
+		@Override
+		public void fire(long time) {
+			TIMA = TMA;
+			timaTime = time;
+			interrupts.request(InterruptController.TIMER);
+			scheduleOverflow();
+		}
+	};
+
+	Timer(Memory memory, Scheduler scheduler) {
+		this.scheduler = scheduler;
+		this.interrupts = memory.getInterrupts();
+		divBase = scheduler.now() - 0xABCC; //divider value after the boot rom
+		timaTime = scheduler.now();
+		memory.mapIo(0xFF04, 0xFF07, this);
+	}
+
+	private boolean enabled() {
+		return (TAC & 0x04) != 0;
+	}
+
+	private int period() {
+		return PERIODS[TAC & 0x03];
+	}
+
+	/**
+	 * @return falling edges of the TIMA bit between two clock values
+	 */
+	private long ticks(long from, long to) {
+		int period = period();
+		return Math.floorDiv(to - divBase, period) - Math.floorDiv(from - divBase, period);
+	}
+
+	/**
+	 * add the periods since timaTime to TIMA
+	 */
+	private void sync() {
+		long now = scheduler.now();
+		if (enabled() && !stopped) {
+			TIMA += (int) ticks(timaTime, now);
+		}
+		timaTime = now;
+	}
+
+	private void scheduleOverflow() {
+		if (!enabled()) {
+			scheduler.cancel(overflow);
+			return;
+		}
+		int period = period();
+		long edge = Math.floorDiv(timaTime - divBase, period) + (256 - TIMA);
+		scheduler.schedule(overflow, divBase + edge * period);
+	}
+
+	/**
+	 * @return the bit TIMA counts edges of, gated by the enable bit
+	 */
+	private boolean signal() {
+		return enabled() && ((scheduler.now() - divBase) & (period() >> 1)) != 0;
+	}
+
+	/**
+	 * DIV resets and TAC changes can pull the signal from 1 to 0, which counts as an edge
+	 */
+	private void edge(boolean before) {
+		if (before && !signal() && ++TIMA > 0xFF) {
+			TIMA = TMA;
+			interrupts.request(InterruptController.TIMER);
+		}
+	}
+
+	@Override
+	public int read(int address) {
+		switch (address) {
+		case 0xFF04: return stopped ? 0 : (int) ((scheduler.now() - divBase) >> 8) & 0xFF;
+		case 0xFF05: sync(); return TIMA & 0xFF;
+		case 0xFF06: return TMA;
+		default: return TAC | 0xF8;
+		}
+	}
+
+	@Override
+	public void write(int address, int value) {
+		sync();
+		boolean before = signal();
+		switch (address) {
+		case 0xFF04:
+			divBase = scheduler.now();
+			edge(before);
+			break;
+		case 0xFF05: TIMA = value; break;
+		case 0xFF06: TMA = value; break;
+		default:
+			TAC = value & 0x07;
+			edge(before);
+			break;
+		}
+		scheduleOverflow();
+	}
+
+	@Override
+	public void saveState(ByteBuffer out) {
+		sync();
+		out.putShort((short) (stopped ? 0 : scheduler.now() - divBase));
+		out.put((byte) TIMA).put((byte) TMA).put((byte) TAC);
+	}
+
+	@Override
+	public void loadState(ByteBuffer in) {
+		divBase = scheduler.now() - (in.getShort() & 0xFFFF);
+		TIMA = in.get() & 0xFF;
+		TMA = in.get() & 0xFF;
+		TAC = in.get() & 0xFF;
+		timaTime = scheduler.now();
+		scheduleOverflow();
+	}
+
+	@Override
+	public void stop() {
+		sync();
+		stopped = true;
+		scheduler.cancel(overflow);
+	}
+
+	/**
+	 * the divider was reset by STOP and starts over from 0
+	 */
+	@Override
+	public void resume() {
+		stopped = false;
+		divBase = timaTime = scheduler.now();
+		scheduleOverflow();
+	}
+}
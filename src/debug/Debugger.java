@@ -0,0 +1,277 @@
+package debug;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+import cpu.CPU;
+import memory.Memory;
+import memory.WatchListener;
+
+/**
+ * Breakpoints and watchpoints for a running cpu, attached on construction.
+ *
+ * Breakpoints are one bit per address. The cpu asks about them once per
+ * block entry, and only runs a block an instruction at a time when a
+ * breakpoint sits inside it, so everything else keeps running as whole blocks.
+ * A breakpoint can carry a condition on the registers, checked when it is
+ * reached, e.g. cpu -> cpu.getA() == 0x12. Breakpoints are per address,
+ * a condition on memory.getRomBank() narrows one down to a bank.
+ *
+ * Watchpoints are bits too, and each page holding one is switched to the
+ * memory handler so the rest of the address space keeps its direct path.
+ * They stop the cpu after the instruction that made the access.
+ *
+ * disassemble reads through the cartridge's shared Disassembler, so the
+ * listing, the profiler and the debugger decode each rom instruction once.
+ *
+ * usage: Debugger debugger = new Debugger(cpu, memory); debugger.addBreakpoint(0x0150);
+ *        if (debugger.runFrame()) { ... look at getStopReason() and the cpu ... }
+ */
+public class Debugger implements WatchListener {
+	//stop reasons
+	public static final int NONE = 0;
+	public static final int BREAKPOINT = 1; //about to execute a breakpoint address
+	public static final int READ = 2; //an instruction read a watched address
+	public static final int WRITE = 3; //an instruction wrote a watched address
+
+	private static final int WORDS = 0x10000 >> 6;
+	private static final int WORDS_PER_PAGE = Memory.PAGE_SIZE >> 6;
+
+	private final CPU cpu;
+	private final Memory memory;
+
+	private final long[] breakpoints = new long[WORDS];
+	private int breakpointCount;
+	private final Map<Integer, Predicate<CPU>> conditions = new HashMap<>();
+	private int skip = -1; //breakpoint just stopped at, passed over once when running on
+
+	private final long[] readWatches = new long[WORDS];
+	private final long[] writeWatches = new long[WORDS];
+
+	private int stopReason = NONE;
+	private int stopAddress;
+	private int stopValue;
+
+	public Debugger(CPU cpu, Memory memory) {
+		this.cpu = cpu;
+		this.memory = memory;
+		cpu.setDebugger(this);
+		memory.setWatchListener(this);
+	}
+
+	/**
+	 * remove every breakpoint and watchpoint and let the cpu run without a debugger
+	 */
+	public void detach() {
+		clear();
+		cpu.setDebugger(null);
+		memory.setWatchListener(null);
+	}
+
+	public void addBreakpoint(int address) {
+		addBreakpoint(address, null);
+	}
+
+	/**
+	 * @param condition only stop if this holds when the address is reached, null to always stop
+	 */
+	public void addBreakpoint(int address, Predicate<CPU> condition) {
+		address &= 0xFFFF;
+		if (!hasBreakpoint(address)) {
+			breakpoints[address >>> 6] |= 1L << address;
+			breakpointCount++;
+		}
+		if (condition != null) {
+			conditions.put(address, condition);
+		} else {
+			conditions.remove(address);
+		}
+	}
+
+	public void removeBreakpoint(int address) {
+		address &= 0xFFFF;
+		if (hasBreakpoint(address)) {
+			breakpoints[address >>> 6] &= ~(1L << address);
+			breakpointCount--;
+			conditions.remove(address);
+		}
+	}
+
+	public boolean hasBreakpoint(int address) {
+		return (breakpoints[(address & 0xFFFF) >>> 6] & 1L << address) != 0;
+	}
+
+	/**
+	 * stop on accesses to first-last (inclusive), adding to what is already watched there
+	 */
+	public void watch(int first, int last, boolean reads, boolean writes) {
+		for (int address = first; address <= last; address++) {
+			if (reads) readWatches[address >>> 6] |= 1L << address;
+			if (writes) writeWatches[address >>> 6] |= 1L << address;
+		}
+		updatePages(first, last);
+	}
+
+	/**
+	 * stop watching first-last (inclusive) for both reads and writes
+	 */
+	public void unwatch(int first, int last) {
+		for (int address = first; address <= last; address++) {
+			readWatches[address >>> 6] &= ~(1L << address);
+			writeWatches[address >>> 6] &= ~(1L << address);
+		}
+		updatePages(first, last);
+	}
+
+	/**
+	 * hand pages that no longer hold a watched address back to the direct path
+	 */
+	private void updatePages(int first, int last) {
+		for (int page = first >>> Memory.PAGE_SHIFT; page <= last >>> Memory.PAGE_SHIFT; page++) {
+			boolean reads = false;
+			boolean writes = false;
+			for (int word = page * WORDS_PER_PAGE; word < (page + 1) * WORDS_PER_PAGE; word++) {
+				reads |= readWatches[word] != 0;
+				writes |= writeWatches[word] != 0;
+			}
+			memory.watchPage(page, reads, writes);
+		}
+	}
+
+	/**
+	 * remove every breakpoint and watchpoint
+	 */
+	public void clear() {
+		Arrays.fill(breakpoints, 0);
+		breakpointCount = 0;
+		conditions.clear();
+		skip = -1;
+		unwatch(0x0000, 0xFFFF);
+	}
+
+	/**
+	 * run until the end of the frame or a stop
+	 * @return true if a breakpoint or watchpoint stopped the cpu
+	 */
+	public boolean runFrame() {
+		stopReason = NONE;
+		cpu.runFrame();
+		return stopReason != NONE;
+	}
+
+	/**
+	 * run for up to budget T-cycles
+	 * @return true if a breakpoint or watchpoint stopped the cpu
+	 */
+	public boolean run(long budget) {
+		stopReason = NONE;
+		cpu.runFor(budget);
+		return stopReason != NONE;
+	}
+
+	/**
+	 * execute a single instruction, breakpoints are not checked
+	 * @return true if it touched a watched address
+	 */
+	public boolean step() {
+		stopReason = NONE;
+		skip = -1;
+		cpu.step();
+		return stopReason != NONE;
+	}
+
+	/**
+	 * @return why the cpu last stopped, NONE if the last run was not stopped
+	 */
+	public int getStopReason() {
+		return stopReason;
+	}
+
+	/**
+	 * @return breakpoint address, or the address accessed for watchpoints
+	 */
+	public int getStopAddress() {
+		return stopAddress;
+	}
+
+	/**
+	 * @return byte read or written for watchpoints
+	 */
+	public int getStopValue() {
+		return stopValue;
+	}
+
+	/**
+	 * @return the instruction at address as text, as the cpu would run it now
+	 * @throws IllegalStateException if no rom is loaded
+	 */
+	public String disassemble(int address) {
+		if (memory.getCartridge() == null) {
+			throw new IllegalStateException("No rom loaded");
+		}
+		return Disassembler.of(memory.getCartridge()).disassemble(memory, address & 0xFFFF);
+	}
+
+	/**
+	 * called by the cpu before running from pc, pauses it if there is a breakpoint
+	 * @return true if the cpu should stop before pc
+	 */
+	public boolean breakAt(int pc) {
+		if (breakpointCount == 0 || (breakpoints[pc >>> 6] & 1L << pc) == 0) {
+			skip = -1;
+			return false;
+		}
+		if (pc == skip) {
+			skip = -1;
+			return false;
+		}
+		Predicate<CPU> condition = conditions.get(pc);
+		if (condition != null && !condition.test(cpu)) {
+			return false;
+		}
+		skip = pc;
+		stop(BREAKPOINT, pc, 0);
+		return true;
+	}
+
+	/**
+	 * called by the cpu before running a block
+	 * @return true if any address first-last (inclusive) has a breakpoint
+	 */
+	public boolean breaksWithin(int first, int last) {
+		if (breakpointCount == 0) {
+			return false;
+		}
+		for (int word = first >>> 6; word <= last >>> 6; word++) {
+			long bits = breakpoints[word];
+			if (word == first >>> 6) bits &= -1L << first;
+			if (word == last >>> 6) bits &= -1L >>> (63 - (last & 63));
+			if (bits != 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public void read(int address, int value) {
+		if ((readWatches[address >>> 6] & 1L << address) != 0) {
+			stop(READ, address, value);
+		}
+	}
+
+	@Override
+	public void write(int address, int value) {
+		if ((writeWatches[address >>> 6] & 1L << address) != 0) {
+			stop(WRITE, address, value);
+		}
+	}
+
+	private void stop(int reason, int address, int value) {
+		stopReason = reason;
+		stopAddress = address;
+		stopValue = value;
+		cpu.pause();
+	}
+}
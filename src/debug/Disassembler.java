@@ -0,0 +1,554 @@
+package debug;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import cpu.CPU;
+import memory.Cartridge;
+import memory.Memory;
+
+/**
+ * Disassembly of a whole rom, bank by bank.
+ *
+ * Code is found by following control flow from the entry points (0100, the
+ * RST and interrupt vectors, plus anything given to addEntry). Every
+ * instruction is decoded once into a per bank table of packed ints, which
+ * the listing, the debugger and the profiler report all read from.
+ * Addresses nobody reached are decoded the first time someone asks about
+ * them and cached the same way, just not marked as code.
+ *
+ * Jumps into 4000-7FFF from a switchable bank stay in that bank. From bank 0
+ * the target bank is only known when the path just selected it with
+ * LD A, n ... LD (2000-3FFF), A, otherwise the target is not followed.
+ * Games mostly switch banks through a far call routine or a table, so
+ * static analysis alone reaches little: on Pokemon Red 9800 instructions
+ * in 8 of its 64 banks. Profiler.addEntries feeds in every block a run
+ * actually entered; 6000 frames of the intro bring that to 13560 in 15.
+ *
+ * There is one instance per cartridge, shared like the cartridge mapping and
+ * the cpu's rom blocks. Labels come from a .sym file next to the rom
+ * ("bank:address name" per line, as written by rgblink and read by bgb) and
+ * from the jumps and calls analyze finds.
+ *
+ * usage: java debug.Disassembler rom.gb [listing.asm]
+ */
+public class Disassembler {
+	private static final Map<Cartridge, Disassembler> SHARED = new ConcurrentHashMap<>();
+
+	//table entries are op | operand << 8 | length << 24, plus these flags, only written holding the lock
+	private static final int DECODED = 1 << 26;
+	private static final int CODE = 1 << 27; //reached by following control flow
+	private static final int LABELED = 1 << 28; //has a label, saves the listing a map lookup per byte
+
+	//operand kinds, where the operand goes is marked in the mnemonic with the same name
+	private static final int NONE = 0;
+	private static final int D8 = 1; //immediate byte
+	private static final int D16 = 2; //immediate word
+	private static final int A8 = 3; //FF00 + byte
+	private static final int A16 = 4; //address
+	private static final int R8 = 5; //relative jump target
+	private static final int E8 = 6; //signed offset added to SP
+	private static final String[] TOKENS = {null, "d8", "d16", "a8", "a16", "r8", "e8"};
+
+	private static final String[] REGISTERS = {"B", "C", "D", "E", "H", "L", "(HL)", "A"};
+
+	private static final String[] LOW = { // 0x00-0x3F
+		"NOP", "LD BC, d16", "LD (BC), A", "INC BC", "INC B", "DEC B", "LD B, d8", "RLCA",
+		"LD (a16), SP", "ADD HL, BC", "LD A, (BC)", "DEC BC", "INC C", "DEC C", "LD C, d8", "RRCA",
+		"STOP", "LD DE, d16", "LD (DE), A", "INC DE", "INC D", "DEC D", "LD D, d8", "RLA",
+		"JR r8", "ADD HL, DE", "LD A, (DE)", "DEC DE", "INC E", "DEC E", "LD E, d8", "RRA",
+		"JR NZ, r8", "LD HL, d16", "LD (HL+), A", "INC HL", "INC H", "DEC H", "LD H, d8", "DAA",
+		"JR Z, r8", "ADD HL, HL", "LD A, (HL+)", "DEC HL", "INC L", "DEC L", "LD L, d8", "CPL",
+		"JR NC, r8", "LD SP, d16", "LD (HL-), A", "INC SP", "INC (HL)", "DEC (HL)", "LD (HL), d8", "SCF",
+		"JR C, r8", "ADD HL, SP", "LD A, (HL-)", "DEC SP", "INC A", "DEC A", "LD A, d8", "CCF",
+	};
+	private static final String[] HIGH = { // 0xC0-0xFF, null for the unused opcodes
+		"RET NZ", "POP BC", "JP NZ, a16", "JP a16", "CALL NZ, a16", "PUSH BC", "ADD A, d8", "RST $00",
+		"RET Z", "RET", "JP Z, a16", "PREFIX CB", "CALL Z, a16", "CALL a16", "ADC A, d8", "RST $08",
+		"RET NC", "POP DE", "JP NC, a16", null, "CALL NC, a16", "PUSH DE", "SUB A, d8", "RST $10",
+		"RET C", "RETI", "JP C, a16", null, "CALL C, a16", null, "SBC A, d8", "RST $18",
+		"LDH (a8), A", "POP HL", "LD (C), A", null, null, "PUSH HL", "AND A, d8", "RST $20",
+		"ADD SP, e8", "JP HL", "LD (a16), A", null, null, null, "XOR A, d8", "RST $28",
+		"LDH A, (a8)", "POP AF", "LD A, (C)", "DI", null, "PUSH AF", "OR A, d8", "RST $30",
+		"LD HL, SPe8", "LD SP, HL", "LD A, (a16)", "EI", null, null, "CP A, d8", "RST $38",
+	};
+	private static final String[] ALU = {"ADD A, ", "ADC A, ", "SUB A, ", "SBC A, ", "AND A, ", "XOR A, ", "OR A, ", "CP A, "};
+	private static final String[] SHIFTS = {"RLC ", "RRC ", "RL ", "RR ", "SLA ", "SRA ", "SWAP ", "SRL "};
+
+	//each mnemonic split around its operand
+	private static final String[] PREFIXES = new String[0x100];
+	private static final String[] SUFFIXES = new String[0x100];
+	private static final int[] KINDS = new int[0x100];
+	private static final boolean[] WRITES_A = new boolean[0x100]; //for telling when LD A, n is still in A
+	private static final Pattern A_RESULT = Pattern.compile("(ADD|ADC|SUB|SBC|AND|XOR|OR) A,.*|(INC|DEC) A|R[LR]C?A|DAA|CPL|POP AF");
+	private static final char[] DIGITS = "0123456789ABCDEF".toCharArray();
+	private static final String[] CB_MNEMONICS = new String[0x100];
+
+	//hardware registers, FF00-FFFF
+	private static final String[] IO_NAMES = new String[0x100];
+
+	static {
+		for (int op = 0; op < 0x100; op++) {
+			String mnemonic;
+			if (op < 0x40) {
+				mnemonic = LOW[op];
+			} else if (op < 0x80) {
+				mnemonic = op == 0x76 ? "HALT" : "LD " + REGISTERS[op >> 3 & 7] + ", " + REGISTERS[op & 7];
+			} else if (op < 0xC0) {
+				mnemonic = ALU[op >> 3 & 7] + REGISTERS[op & 7];
+			} else {
+				mnemonic = HIGH[op - 0xC0];
+			}
+			if (mnemonic == null) {
+				mnemonic = String.format("db $%02X", op);
+			}
+			PREFIXES[op] = mnemonic;
+			SUFFIXES[op] = "";
+			for (int kind = TOKENS.length - 1; kind > NONE; kind--) {
+				int at = mnemonic.indexOf(TOKENS[kind]);
+				if (at >= 0) {
+					PREFIXES[op] = mnemonic.substring(0, at);
+					SUFFIXES[op] = mnemonic.substring(at + TOKENS[kind].length());
+					KINDS[op] = kind;
+					break;
+				}
+			}
+			WRITES_A[op] = mnemonic.startsWith("LD A,") || mnemonic.startsWith("LDH A,")
+					|| A_RESULT.matcher(mnemonic).matches();
+		}
+		//calls and RSTs run code this path does not follow, CB ops may shift A
+		for (int op : new int[] {0xC4, 0xCC, 0xD4, 0xDC, 0xCD, 0xCB}) {
+			WRITES_A[op] = true;
+		}
+		for (int op = 0xC7; op <= 0xFF; op += 8) {
+			WRITES_A[op] = true;
+		}
+
+		for (int op = 0; op < 0x100; op++) {
+			String register = REGISTERS[op & 7];
+			int bit = op >> 3 & 7;
+			switch (op >> 6) {
+			case 0: CB_MNEMONICS[op] = SHIFTS[bit] + register; break;
+			case 1: CB_MNEMONICS[op] = "BIT " + bit + ", " + register; break;
+			case 2: CB_MNEMONICS[op] = "RES " + bit + ", " + register; break;
+			default: CB_MNEMONICS[op] = "SET " + bit + ", " + register;
+			}
+		}
+
+		String[] io = {
+			"00 rP1", "01 rSB", "02 rSC", "04 rDIV", "05 rTIMA", "06 rTMA", "07 rTAC", "0F rIF",
+			"10 rNR10", "11 rNR11", "12 rNR12", "13 rNR13", "14 rNR14", "16 rNR21", "17 rNR22", "18 rNR23",
+			"19 rNR24", "1A rNR30", "1B rNR31", "1C rNR32", "1D rNR33", "1E rNR34", "20 rNR41", "21 rNR42",
+			"22 rNR43", "23 rNR44", "24 rNR50", "25 rNR51", "26 rNR52", "40 rLCDC", "41 rSTAT", "42 rSCY",
+			"43 rSCX", "44 rLY", "45 rLYC", "46 rDMA", "47 rBGP", "48 rOBP0", "49 rOBP1", "4A rWY",
+			"4B rWX", "FF rIE",
+		};
+		for (String entry : io) {
+			IO_NAMES[Integer.parseInt(entry.substring(0, 2), 16)] = entry.substring(3);
+		}
+	}
+
+	private final Cartridge cartridge;
+	private final int[][] banks; //decoded instructions per bank, indexed by address & 3FFF
+	//bank << 16 | address for 4000-7FFF, the plain address anywhere else, like Profiler's routine keys
+	private final Map<Integer, String> labels = new ConcurrentHashMap<>();
+	private final ArrayDeque<Integer> pending = new ArrayDeque<>(); //entry points not followed yet
+	private int codeCount; //instructions reached so far
+
+	private Disassembler(Cartridge cartridge) {
+		this.cartridge = cartridge;
+		this.banks = new int[cartridge.getBankCount()][Cartridge.BANK_SIZE];
+		addEntry(0, 0x0100, "start");
+		for (int vector = 0; vector < 0x40; vector += 8) {
+			addEntry(0, vector, String.format("rst_%02X", vector));
+		}
+		String[] interrupts = {"int_vblank", "int_lcd", "int_timer", "int_serial", "int_joypad"};
+		for (int i = 0; i < interrupts.length; i++) {
+			addEntry(0, 0x40 + i * 8, interrupts[i]);
+		}
+		String name = cartridge.getPath().getFileName().toString();
+		Path symbols = cartridge.getPath().resolveSibling(name.replaceFirst("\\.[^.]*$", "") + ".sym");
+		if (Files.exists(symbols)) {
+			try {
+				loadSymbols(symbols);
+			} catch (IOException e) {
+				//labels are a nicety, carry on with the generated ones
+			}
+		}
+	}
+
+	/**
+	 * @return the disassembler for a cartridge, shared by everyone looking at it
+	 */
+	public static Disassembler of(Cartridge cartridge) {
+		return SHARED.computeIfAbsent(cartridge, Disassembler::new);
+	}
+
+	private int bankIndex(int bank) {
+		return bank % banks.length;
+	}
+
+	private int key(int bank, int address) {
+		return address >= 0x4000 && address < 0x8000 ? bankIndex(bank) << 16 | address : address;
+	}
+
+	/**
+	 * follow code from here the next time analyze runs, e.g. a block the profiler saw run
+	 * @param bank rom bank, ignored outside 4000-7FFF
+	 */
+	public synchronized void addEntry(int bank, int address) {
+		//bank 0 can't be mapped at 4000-7FFF
+		if (address < 0x4000 || (address < 0x8000 && bankIndex(bank) != 0)) {
+			pending.add(key(bank, address));
+		}
+	}
+
+	private void addEntry(int bank, int address, String label) {
+		setLabel(bank, address, label);
+		addEntry(bank, address);
+	}
+
+	private void setLabel(int bank, int address, String label) {
+		labels.put(key(bank, address), label);
+		flagLabel(bank, address);
+	}
+
+	private void flagLabel(int bank, int address) {
+		if (address < 0x8000) {
+			int[] table = banks[address < 0x4000 ? 0 : bankIndex(bank)];
+			table[address & 0x3FFF] |= LABELED;
+		}
+	}
+
+	/**
+	 * read labels from a symbol file, lines of "bank:address name", ';' starts a comment
+	 */
+	public synchronized void loadSymbols(Path file) throws IOException {
+		for (String line : Files.readAllLines(file)) {
+			int comment = line.indexOf(';');
+			if (comment >= 0) line = line.substring(0, comment);
+			line = line.trim();
+			int colon = line.indexOf(':');
+			int space = line.indexOf(' ');
+			if (colon < 0 || space < colon) continue;
+			try {
+				int bank = Integer.parseInt(line.substring(0, colon), 16);
+				int address = Integer.parseInt(line.substring(colon + 1, space), 16);
+				setLabel(bank, address, line.substring(space + 1).trim());
+			} catch (NumberFormatException e) {
+				//not a symbol line
+			}
+		}
+	}
+
+	/**
+	 * @return the label at address, null if there is none
+	 * @param bank rom bank, only used for 4000-7FFF
+	 */
+	public String label(int bank, int address) {
+		return labels.get(key(bank, address));
+	}
+
+	/**
+	 * @return op | operand << 8 | length << 24 for the instruction at address in bank,
+	 * decoded on first use
+	 */
+	private synchronized int decode(int bank, int address) {
+		int[] table = banks[bankIndex(bank)];
+		int offset = address & 0x3FFF;
+		int entry = table[offset];
+		if ((entry & DECODED) == 0) {
+			ByteBuffer rom = cartridge.bank(bank);
+			int op = rom.get(offset) & 0xFF;
+			int length = CPU.length(op);
+			int operand = 0;
+			//an instruction running off the end of the bank reads FF, whatever is mapped next is unknown
+			if (length > 1) operand = offset + 1 < Cartridge.BANK_SIZE ? rom.get(offset + 1) & 0xFF : 0xFF;
+			if (length > 2) operand |= (offset + 2 < Cartridge.BANK_SIZE ? rom.get(offset + 2) & 0xFF : 0xFF) << 8;
+			entry = DECODED | length << 24 | operand << 8 | op;
+			table[offset] |= entry;
+		}
+		return entry;
+	}
+
+	/**
+	 * follow control flow from every pending entry point
+	 */
+	public synchronized void analyze() {
+		while (!pending.isEmpty()) {
+			int key = pending.poll();
+			follow(key >>> 16, key & 0xFFFF);
+		}
+	}
+
+	/**
+	 * mark instructions as code from address on, until something ends the path
+	 */
+	private void follow(int bank, int address) {
+		int[] table = banks[bank];
+		int selected = -1; //rom bank this path switched to, -1 if unknown
+		int a = -1; //value loaded into A, -1 if unknown
+		while (true) {
+			int offset = address & 0x3FFF;
+			if ((table[offset] & CODE) != 0) {
+				return;
+			}
+			int entry = decode(bank, address);
+			table[offset] |= CODE;
+			codeCount++;
+			int op = entry & 0xFF;
+			int operand = entry >>> 8 & 0xFFFF;
+			int next = address + (entry >>> 24 & 3);
+
+			if (op == 0x3E) {
+				a = operand;
+			} else if (op == 0xEA && operand >= 0x2000 && operand < 0x4000 && a >= 0) {
+				selected = a == 0 ? 1 : a; //bank 0 selects bank 1
+			} else if (WRITES_A[op]) {
+				a = -1;
+			}
+
+			switch (op) {
+			case 0x18: // JR r8
+				target(bank, selected, (next + (byte) operand) & 0xFFFF, "jump");
+				return;
+			case 0xC3: // JP a16
+				target(bank, selected, operand, "jump");
+				return;
+			case 0x20: case 0x28: case 0x30: case 0x38: // JR cc, r8
+				target(bank, selected, (next + (byte) operand) & 0xFFFF, "jump");
+				break;
+			case 0xC2: case 0xCA: case 0xD2: case 0xDA: // JP cc, a16
+				target(bank, selected, operand, "jump");
+				break;
+			case 0xC4: case 0xCC: case 0xD4: case 0xDC: case 0xCD: // CALL
+				target(bank, selected, operand, "call");
+				break;
+			case 0xC9: case 0xD9: case 0xE9: // RET, RETI, JP HL
+				return;
+			default:
+				if ((op & 0xC7) == 0xC7) {
+					target(bank, selected, op & 0x38, "call"); // RST
+				} else if (op >= 0xC0 && HIGH[op - 0xC0] == null) {
+					return; //ran into data
+				}
+			}
+			if ((next & 0x3FFF) < offset || next >= 0x8000 || (bank == 0 && next >= 0x4000)) {
+				return; //off the end of the bank
+			}
+			address = next;
+		}
+	}
+
+	/**
+	 * queue a jump or call target and give it a label unless it has one
+	 * @param selected bank the path switched to, -1 if unknown
+	 */
+	private void target(int bank, int selected, int address, String kind) {
+		int targetBank;
+		if (address < 0x4000) {
+			targetBank = 0;
+		} else if (address >= 0x8000) {
+			return; //code copied to ram, nothing to follow in the rom
+		} else if (bank != 0) {
+			targetBank = bank;
+		} else if (selected >= 0) {
+			targetBank = bankIndex(selected);
+		} else {
+			return; //bank unknown
+		}
+		StringBuilder name = new StringBuilder(12).append(kind).append('_');
+		hex(name, targetBank, 2);
+		name.append('_');
+		hex(name, address, 4);
+		labels.merge(key(targetBank, address), name.toString(), (old, added) -> old.startsWith("jump_") && added.startsWith("call_") ? added : old);
+		flagLabel(targetBank, address);
+		if ((banks[targetBank][address & 0x3FFF] & CODE) == 0) {
+			pending.add(key(targetBank, address));
+		}
+	}
+
+	/**
+	 * @return instructions reached by analyze so far
+	 */
+	public synchronized int getCodeCount() {
+		return codeCount;
+	}
+
+	/**
+	 * @return the rom instruction at address as text, decoded through the shared table
+	 * @param bank rom bank, only used for 4000-7FFF
+	 */
+	public String instruction(int bank, int address) {
+		if (address < 0x4000) {
+			bank = 0;
+		}
+		int entry = decode(bank, address);
+		return text(bank, address, entry & 0xFF, entry >>> 8 & 0xFFFF);
+	}
+
+	/**
+	 * @return the instruction at address as the cpu would see it now, rom from the
+	 * shared table with the bank that is mapped, anything else read live
+	 */
+	public String disassemble(Memory memory, int address) {
+		if (address < 0x8000) {
+			return instruction(memory.getRomBank(), address);
+		}
+		int op = memory.peek(address);
+		int operand = 0;
+		int length = CPU.length(op);
+		if (length > 1) operand = memory.peek(address + 1);
+		if (length > 2) operand |= memory.peek(address + 2) << 8;
+		return text(0, address, op, operand);
+	}
+
+	/**
+	 * @param bank rom bank the instruction is in, names targets in 4000-7FFF
+	 * @param operand immediate, the second byte for CB opcodes
+	 */
+	public String text(int bank, int pc, int op, int operand) {
+		StringBuilder out = new StringBuilder(24);
+		appendText(out, bank, pc, op, operand);
+		return out.toString();
+	}
+
+	private void appendText(StringBuilder out, int bank, int pc, int op, int operand) {
+		if (op == 0xCB) {
+			out.append(CB_MNEMONICS[operand & 0xFF]);
+			return;
+		}
+		out.append(PREFIXES[op]);
+		switch (KINDS[op]) {
+		case D8:
+			out.append('$');
+			hex(out, operand, 2);
+			break;
+		case D16: //often an address, e.g. LD HL, wSomething
+		case A16:
+			address(out, bank, operand);
+			break;
+		case A8:
+			address(out, bank, 0xFF00 | operand);
+			break;
+		case R8:
+			address(out, bank, (pc + 2 + (byte) operand) & 0xFFFF);
+			break;
+		case E8:
+			out.append((byte) operand < 0 ? '-' : '+').append(Math.abs((byte) operand));
+			break;
+		}
+		out.append(SUFFIXES[op]);
+	}
+
+	private void address(StringBuilder out, int bank, int address) {
+		String name = address >= 0xFF00 ? IO_NAMES[address & 0xFF] : null;
+		if (name == null) {
+			//from bank 0 there is no telling which bank 4000-7FFF is
+			name = address >= 0x4000 && address < 0x8000 && bank == 0 ? null : labels.get(key(bank, address));
+		}
+		if (name != null) {
+			out.append(name);
+		} else {
+			out.append('$');
+			hex(out, address, 4);
+		}
+	}
+
+	private static void hex(StringBuilder out, int value, int digits) {
+		for (int shift = (digits - 1) * 4; shift >= 0; shift -= 4) {
+			out.append(DIGITS[value >> shift & 0xF]);
+		}
+	}
+
+	/**
+	 * analyze, then write the listing of every bank to a file
+	 */
+	public void write(Path file) throws IOException {
+		try (BufferedWriter out = Files.newBufferedWriter(file)) {
+			write(out);
+		}
+	}
+
+	/**
+	 * analyze, then stream the listing out a line at a time, code as instructions
+	 * and everything else as db lines of up to 16 bytes
+	 */
+	public synchronized void write(Writer out) throws IOException {
+		analyze();
+		StringBuilder line = new StringBuilder(96);
+		line.append("; ").append(cartridge.getTitle()).append(", ").append(banks.length).append(" banks, ")
+				.append(codeCount).append(" instructions found\n");
+		out.append(line);
+		for (int bank = 0; bank < banks.length; bank++) {
+			int[] table = banks[bank];
+			ByteBuffer rom = cartridge.bank(bank);
+			int base = bank == 0 ? 0 : 0x4000;
+			line.setLength(0);
+			line.append("\n; bank ");
+			hex(line, bank, 2);
+			out.append(line).append('\n');
+			int offset = 0;
+			while (offset < Cartridge.BANK_SIZE) {
+				int address = base + offset;
+				if ((table[offset] & LABELED) != 0) {
+					out.append(labels.get(key(bank, address))).append(":\n");
+				}
+				line.setLength(0);
+				line.append("  ");
+				hex(line, bank, 2);
+				line.append(':');
+				hex(line, address, 4);
+				line.append("  ");
+				int entry = table[offset];
+				if ((entry & CODE) != 0) {
+					int length = entry >>> 24 & 3;
+					for (int i = 0; i < 3; i++) {
+						if (i < length && offset + i < Cartridge.BANK_SIZE) {
+							hex(line, rom.get(offset + i), 2);
+							line.append(' ');
+						} else {
+							line.append("   ");
+						}
+					}
+					line.append(' ');
+					appendText(line, bank, address, entry & 0xFF, entry >>> 8 & 0xFFFF);
+					offset += length;
+				} else {
+					//data up to the next code or label
+					line.append("db ");
+					int end = offset;
+					do {
+						if (end > offset) line.append(", ");
+						line.append('$');
+						hex(line, rom.get(end), 2);
+						end++;
+					} while (end < Cartridge.BANK_SIZE && end - offset < 16 && (table[end] & (CODE | LABELED)) == 0);
+					offset = end;
+				}
+				out.append(line).append('\n');
+			}
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length == 0) {
+			System.out.println("usage: java debug.Disassembler rom.gb [listing.asm]");
+			return;
+		}
+		long start = System.nanoTime();
+		Disassembler disassembler = of(Cartridge.open(args[0]));
+		Path listing = Paths.get(args.length > 1 ? args[1] : args[0].replaceFirst("\\.[^.]*$", "") + ".asm");
+		disassembler.write(listing);
+		System.out.printf("%d instructions in %d banks to %s, %.0f ms%n", disassembler.getCodeCount(),
+				disassembler.banks.length, listing, (System.nanoTime() - start) / 1e6);
+	}
+}
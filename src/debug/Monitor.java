@@ -0,0 +1,217 @@
+package debug;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import cpu.CPU;
+import memory.InterruptController;
+import memory.Memory;
+
+/**
+ * Live throughput metrics for one emulator instance, published as the JMX
+ * MBean gbasm:type=Emulator,name=... and as a gbasm.Throughput flight
+ * recorder event every second.
+ *
+ * The emulation thread does nothing extra: the cpu and memory already keep
+ * plain counters, and a shared background thread samples them once a second
+ * to work out the rates. Values read that way may be a moment stale, which
+ * is fine for monitoring.
+ *
+ * usage: Monitor monitor = Monitor.register("name", cpu, memory); ... monitor.close();
+ */
+public class Monitor implements MonitorMBean, AutoCloseable {
+	private static final long INTERVAL_MS = 1000;
+	private static final int SOURCES = 5;
+	private static final double CLOCK_RATE = 4194304; //T-cycles per emulated second
+
+	//one sampling thread for every instance in the process
+	private static final ScheduledExecutorService SAMPLER = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread thread = new Thread(r, "gbasm-monitor");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private static final List<Monitor> MONITORS = new CopyOnWriteArrayList<>();
+
+	static {
+		SAMPLER.scheduleAtFixedRate(() -> {
+			for (Monitor monitor : MONITORS) {
+				monitor.sample();
+			}
+		}, INTERVAL_MS, INTERVAL_MS, TimeUnit.MILLISECONDS);
+	}
+
+	private final String name;
+	private final CPU cpu;
+	private final Memory memory;
+	private final ObjectName objectName;
+
+	//previous sample, only touched by the sampling thread
+	private long lastNanos;
+	private long lastInstructions;
+	private long lastCycles;
+	private long lastHalted;
+	private long lastBankSwitches;
+	private final long[] lastTaken = new long[SOURCES];
+
+	private volatile double instructionsPerSecond;
+	private volatile double speed;
+	private volatile double haltRatio;
+
+	private Monitor(String name, CPU cpu, Memory memory) throws JMException {
+		this.name = name;
+		this.cpu = cpu;
+		this.memory = memory;
+		this.objectName = new ObjectName("gbasm:type=Emulator,name=" + ObjectName.quote(name));
+		lastNanos = System.nanoTime();
+		lastInstructions = cpu.getInstructionCount();
+		lastCycles = cpu.getCycles();
+		lastHalted = cpu.getHaltedCycles();
+		lastBankSwitches = memory.getBankSwitches();
+		for (int i = 0; i < SOURCES; i++) {
+			lastTaken[i] = memory.getInterrupts().getTaken(i);
+		}
+	}
+
+	/**
+	 * start monitoring an instance
+	 * @param name shown in JMX and in the events, unique per process
+	 * @throws IllegalStateException if the MBean cannot be registered, e.g. the name is taken
+	 */
+	public static Monitor register(String name, CPU cpu, Memory memory) {
+		try {
+			Monitor monitor = new Monitor(name, cpu, memory);
+			ManagementFactory.getPlatformMBeanServer().registerMBean(monitor, monitor.objectName);
+			MONITORS.add(monitor);
+			return monitor;
+		} catch (JMException e) {
+			throw new IllegalStateException("Could not register monitor " + name, e);
+		}
+	}
+
+	/**
+	 * stop sampling and remove the MBean
+	 */
+	@Override
+	public void close() {
+		MONITORS.remove(this);
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			if (server.isRegistered(objectName)) {
+				server.unregisterMBean(objectName);
+			}
+		} catch (JMException e) {
+			//already gone
+		}
+	}
+
+	private void sample() {
+		long nanos = System.nanoTime();
+		long instructions = cpu.getInstructionCount();
+		long cycles = cpu.getCycles();
+		long halted = cpu.getHaltedCycles();
+		long bankSwitches = memory.getBankSwitches();
+		InterruptController interrupts = memory.getInterrupts();
+
+		double seconds = (nanos - lastNanos) / 1e9;
+		long emulated = cycles - lastCycles;
+		instructionsPerSecond = (instructions - lastInstructions) / seconds;
+		speed = emulated / (CLOCK_RATE * seconds);
+		haltRatio = emulated == 0 ? 0 : (double) (halted - lastHalted) / emulated;
+
+		ThroughputEvent event = new ThroughputEvent();
+		if (event.shouldCommit()) {
+			event.instance = name;
+			event.instructionsPerSecond = instructionsPerSecond;
+			event.speed = speed;
+			event.framesPerSecond = getFramesPerSecond();
+			event.bankSwitches = bankSwitches - lastBankSwitches;
+			event.vblankInterrupts = interrupts.getTaken(InterruptController.VBLANK) - lastTaken[0];
+			event.lcdInterrupts = interrupts.getTaken(InterruptController.LCD) - lastTaken[1];
+			event.timerInterrupts = interrupts.getTaken(InterruptController.TIMER) - lastTaken[2];
+			event.serialInterrupts = interrupts.getTaken(InterruptController.SERIAL) - lastTaken[3];
+			event.joypadInterrupts = interrupts.getTaken(InterruptController.JOYPAD) - lastTaken[4];
+			event.haltRatio = haltRatio;
+			event.commit();
+		}
+
+		lastNanos = nanos;
+		lastInstructions = instructions;
+		lastCycles = cycles;
+		lastHalted = halted;
+		lastBankSwitches = bankSwitches;
+		for (int i = 0; i < SOURCES; i++) {
+			lastTaken[i] = interrupts.getTaken(i);
+		}
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public long getInstructions() {
+		return cpu.getInstructionCount();
+	}
+
+	@Override
+	public long getCycles() {
+		return cpu.getCycles();
+	}
+
+	@Override
+	public long getFrames() {
+		return cpu.getCycles() / CPU.CYCLES_PER_FRAME;
+	}
+
+	@Override
+	public long getBankSwitches() {
+		return memory.getBankSwitches();
+	}
+
+	@Override
+	public long getHaltedCycles() {
+		return cpu.getHaltedCycles();
+	}
+
+	@Override
+	public long[] getInterruptsTaken() {
+		long[] taken = new long[SOURCES];
+		for (int i = 0; i < SOURCES; i++) {
+			taken[i] = memory.getInterrupts().getTaken(i);
+		}
+		return taken;
+	}
+
+	@Override
+	public double getInstructionsPerSecond() {
+		return instructionsPerSecond;
+	}
+
+	@Override
+	public double getSpeed() {
+		return speed;
+	}
+
+	@Override
+	public double getFramesPerSecond() {
+		return speed * CLOCK_RATE / CPU.CYCLES_PER_FRAME;
+	}
+
+	@Override
+	public double getHaltRatio() {
+		return haltRatio;
+	}
+
+	@Override
+	public boolean isBehindRealTime() {
+		return speed < 1.0;
+	}
+}
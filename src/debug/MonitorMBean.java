@@ -0,0 +1,43 @@
+package debug;
+
+/**
+ * JMX view of one emulator instance, see Monitor. Totals count from power on,
+ * rates cover the last sampling interval (one second).
+ */
+public interface MonitorMBean {
+	String getName();
+
+	long getInstructions();
+
+	long getCycles();
+
+	long getFrames();
+
+	long getBankSwitches();
+
+	long getHaltedCycles();
+
+	/**
+	 * @return interrupts serviced per source: VBlank, LCD, Timer, Serial, Joypad
+	 */
+	long[] getInterruptsTaken();
+
+	double getInstructionsPerSecond();
+
+	/**
+	 * @return emulated time over wall time, 1.0 is real time
+	 */
+	double getSpeed();
+
+	double getFramesPerSecond();
+
+	/**
+	 * @return share of emulated time the cpu sat in HALT or STOP
+	 */
+	double getHaltRatio();
+
+	/**
+	 * @return true if the instance ran slower than real time over the last interval
+	 */
+	boolean isBehindRealTime();
+}
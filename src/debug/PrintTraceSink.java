@@ -0,0 +1,24 @@
+package debug;
+
+import java.io.PrintStream;
+
+/**
+ * Formats every record as it arrives, handy for short debugging sessions.
+ */
+public class PrintTraceSink implements TraceSink {
+	private final PrintStream out;
+
+	public PrintTraceSink(PrintStream out) {
+		this.out = out;
+	}
+
+	@Override
+	public void instruction(int pc, int opcode, int af, int bc, int de, int hl, int sp) {
+		out.println(Trace.formatInstruction(pc, opcode, af, bc, de, hl, sp));
+	}
+
+	@Override
+	public void event(int event, int pc, int value) {
+		out.println(Trace.formatEvent(event, pc, value));
+	}
+}
@@ -0,0 +1,452 @@
+package debug;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Execution profile of a running cpu, attached with CPU.setProfiler.
+ *
+ * The cpu only reports block entries (one array increment each), so blocks
+ * keep running whole while profiling. The shape of every block is noted
+ * the first time it is entered, again for ram blocks whenever the cpu hands
+ * over a new block after the code was rewritten, and the entries are turned
+ * into per instruction and per opcode counts when a report is asked for. A
+ * block left early for an event still counts all of its instructions, so
+ * the counts are a close estimate rather than exact. Instructions the cpu
+ * runs one at a time (runUntil, a breakpoint inside a block, uncached code)
+ * are counted in tables of their own, so a block start that also ran alone
+ * keeps its full shape.
+ *
+ * CALL, RST, interrupt entry and RET/RETI maintain a shadow call stack.
+ * Clock cycles between two of them are charged to the routine on top, per
+ * distinct stack, which is what the collapsed stack export is made of.
+ * Frames are matched by SP, so routines that drop their return address
+ * and jump elsewhere are unwound by the next RET further up.
+ *
+ * Routines are keyed bank << 16 | address, RAM and bank 0 have bank 0.
+ * With a Disassembler set, reports name them after its labels and show
+ * the instruction at each hot spot.
+ */
+public class Profiler {
+	public static final int INTERRUPT = 1 << 30; //routine key flag for interrupt entry
+	private static final int MAX_DEPTH = 256;
+
+	//block entries by start address, rom per bank, ram from 8000
+	private final long[][] romEntries = new long[0x200][];
+	private final long[] ramEntries = new long[0x8000];
+	//block layout for each start seen, {start, ends..., ops..., operands...}
+	private final Map<Integer, int[]> shapes = new HashMap<>();
+	private final int[][] ramBlocks = new int[0x8000][]; //ends of the block each ram shape was taken from
+
+	//instructions run one at a time, indexed like the block entries, with op | operand << 8 of the last one run
+	private final long[][] romSingles = new long[0x200][];
+	private final int[][] romSingleCodes = new int[0x200][];
+	private final long[] ramSingles = new long[0x8000];
+	private final int[] ramSingleCodes = new int[0x8000];
+
+	//call tree, node 0 is the root
+	private int[] nodeRoutine = new int[256];
+	private int[] nodeParent = new int[256];
+	private int[] nodeChild = new int[256];
+	private int[] nodeSibling = new int[256];
+	private long[] nodeSelf = new long[256]; //cycles spent with this exact stack
+	private long[] nodeCalls = new long[256];
+	private int nodeCount = 1;
+
+	private final int[] stackNode = new int[MAX_DEPTH];
+	private final int[] stackSp = new int[MAX_DEPTH]; //SP right after the return address was pushed
+	private int depth;
+	private int overflow; //calls past MAX_DEPTH, not tracked
+	private long lastTime = -1;
+
+	private Disassembler disassembler; //null for plain addresses in reports
+
+	/**
+	 * an empty profile, hand it to CPU.setProfiler to start counting
+	 */
+	public Profiler() {
+	}
+
+	/**
+	 * a block is about to run
+	 * @param bank rom bank of the block, 0 for bank 0 and ram
+	 * @param pc first instruction
+	 * @param ends PC after each instruction
+	 * @param ops opcode of each instruction
+	 * @param operands immediate of each instruction, the second byte for CB opcodes
+	 */
+	public void block(int bank, int pc, int[] ends, int[] ops, int[] operands) {
+		if (pc < 0x8000) {
+			//rom blocks never change, the first shape holds
+			if (rom(bank)[pc & 0x3FFF]++ == 0) {
+				shape(bank, pc, ends, ops, operands);
+			}
+		} else {
+			int index = pc - 0x8000;
+			ramEntries[index]++;
+			//each block object is decoded once, a new one means the code may be new
+			if (ramBlocks[index] != ends) {
+				ramBlocks[index] = ends;
+				shape(bank, pc, ends, ops, operands);
+			}
+		}
+	}
+
+	private void shape(int bank, int pc, int[] ends, int[] ops, int[] operands) {
+		int n = ops.length;
+		int[] shape = new int[1 + n * 3];
+		shape[0] = pc;
+		System.arraycopy(ends, 0, shape, 1, n);
+		System.arraycopy(ops, 0, shape, 1 + n, n);
+		System.arraycopy(operands, 0, shape, 1 + n * 2, n);
+		shapes.put(key(bank, pc), shape);
+	}
+
+	/**
+	 * a single instruction run outside any block
+	 * @param operand immediate of the instruction, the second byte for CB opcodes
+	 */
+	public void instruction(int bank, int pc, int op, int operand) {
+		if (pc < 0x8000) {
+			int index = pc & 0x3FFF;
+			long[] counts = romSingles[bank];
+			if (counts == null) {
+				counts = romSingles[bank] = new long[0x4000];
+				romSingleCodes[bank] = new int[0x4000];
+			}
+			counts[index]++;
+			romSingleCodes[bank][index] = op | operand << 8;
+		} else {
+			ramSingles[pc - 0x8000]++;
+			ramSingleCodes[pc - 0x8000] = op | operand << 8;
+		}
+	}
+
+	private interface SingleVisitor {
+		void visit(int key, long count, int code);
+	}
+
+	/**
+	 * call visitor for every instruction that ran on its own
+	 */
+	private void forEachSingle(SingleVisitor visitor) {
+		for (int bank = 0; bank < romSingles.length; bank++) {
+			long[] counts = romSingles[bank];
+			if (counts == null) continue;
+			int[] codes = romSingleCodes[bank];
+			for (int index = 0; index < counts.length; index++) {
+				if (counts[index] != 0) {
+					visitor.visit(key(bank, bank == 0 ? index : 0x4000 | index), counts[index], codes[index]);
+				}
+			}
+		}
+		for (int index = 0; index < ramSingles.length; index++) {
+			if (ramSingles[index] != 0) {
+				visitor.visit(key(0, 0x8000 + index), ramSingles[index], ramSingleCodes[index]);
+			}
+		}
+	}
+
+	/**
+	 * @param disassembler labels and instruction text for the reports, null for plain addresses
+	 */
+	public void setDisassembler(Disassembler disassembler) {
+		this.disassembler = disassembler;
+	}
+
+	/**
+	 * give every rom block that ran to a disassembler as an entry point, so it
+	 * also finds code only reached through jump tables and far calls
+	 */
+	public void addEntries(Disassembler disassembler) {
+		for (int key : shapes.keySet()) {
+			if ((key & 0xFFFF) < 0x8000) {
+				disassembler.addEntry(key >>> 16, key & 0xFFFF);
+			}
+		}
+		forEachSingle((key, count, code) -> {
+			if ((key & 0xFFFF) < 0x8000) {
+				disassembler.addEntry(key >>> 16, key & 0xFFFF);
+			}
+		});
+	}
+
+	private long[] rom(int bank) {
+		long[] table = romEntries[bank];
+		if (table == null) {
+			table = romEntries[bank] = new long[0x4000];
+		}
+		return table;
+	}
+
+	private static int key(int bank, int pc) {
+		return bank << 16 | pc;
+	}
+
+	/**
+	 * CALL, RST or interrupt entry, after the return address was pushed
+	 * @param routine key of the target, INTERRUPT set for interrupt entry
+	 * @param sp SP after the push
+	 * @param now clock at the instruction
+	 */
+	public void call(int routine, int sp, long now) {
+		charge(now);
+		if (depth == MAX_DEPTH) {
+			overflow++;
+			return;
+		}
+		int parent = depth == 0 ? 0 : stackNode[depth - 1];
+		int node = child(parent, routine);
+		nodeCalls[node]++;
+		stackNode[depth] = node;
+		stackSp[depth] = sp;
+		depth++;
+	}
+
+	/**
+	 * RET or RETI that was taken
+	 * @param sp SP before the return address was popped
+	 */
+	public void ret(int sp, long now) {
+		charge(now);
+		if (overflow > 0) {
+			overflow--;
+			return;
+		}
+		//everything called from below this return address is finished too
+		while (depth > 0 && stackSp[depth - 1] <= sp) {
+			depth--;
+		}
+	}
+
+	private void charge(long now) {
+		if (lastTime >= 0) {
+			nodeSelf[depth == 0 ? 0 : stackNode[depth - 1]] += now - lastTime;
+		}
+		lastTime = now;
+	}
+
+	/**
+	 * @return the tree node for routine called from parent, created on first use
+	 */
+	private int child(int parent, int routine) {
+		for (int node = nodeChild[parent]; node != 0; node = nodeSibling[node]) {
+			if (nodeRoutine[node] == routine) {
+				return node;
+			}
+		}
+		if (nodeCount == nodeRoutine.length) {
+			int size = nodeCount * 2;
+			nodeRoutine = Arrays.copyOf(nodeRoutine, size);
+			nodeParent = Arrays.copyOf(nodeParent, size);
+			nodeChild = Arrays.copyOf(nodeChild, size);
+			nodeSibling = Arrays.copyOf(nodeSibling, size);
+			nodeSelf = Arrays.copyOf(nodeSelf, size);
+			nodeCalls = Arrays.copyOf(nodeCalls, size);
+		}
+		int node = nodeCount++;
+		nodeRoutine[node] = routine;
+		nodeParent[node] = parent;
+		nodeSibling[node] = nodeChild[parent];
+		nodeChild[parent] = node;
+		return node;
+	}
+
+	/**
+	 * forget everything counted so far
+	 */
+	public void clear() {
+		for (long[] table : romEntries) {
+			if (table != null) Arrays.fill(table, 0);
+		}
+		Arrays.fill(ramEntries, 0);
+		shapes.clear();
+		Arrays.fill(ramBlocks, null);
+		for (long[] table : romSingles) {
+			if (table != null) Arrays.fill(table, 0);
+		}
+		Arrays.fill(ramSingles, 0);
+		Arrays.fill(nodeChild, 0);
+		Arrays.fill(nodeSelf, 0);
+		Arrays.fill(nodeCalls, 0);
+		nodeCount = 1;
+		depth = 0;
+		overflow = 0;
+		lastTime = -1;
+	}
+
+	/**
+	 * @return executions per instruction, indexed by bank << 16 | pc like the routine keys
+	 */
+	public Map<Integer, Long> getInstructionCounts() {
+		Map<Integer, Long> counts = new HashMap<>();
+		for (Map.Entry<Integer, int[]> entry : shapes.entrySet()) {
+			int bank = entry.getKey() >>> 16;
+			int[] shape = entry.getValue();
+			long entries = entries(bank, shape[0]);
+			if (entries == 0) continue;
+			int n = (shape.length - 1) / 3;
+			for (int i = 0; i < n; i++) {
+				int pc = i == 0 ? shape[0] : shape[i];
+				counts.merge(key(bank, pc), entries, Long::sum);
+			}
+		}
+		forEachSingle((key, count, code) -> counts.merge(key, count, Long::sum));
+		return counts;
+	}
+
+	/**
+	 * @return executions per opcode, 0-255 plain and 256-511 for the CB prefixed ones
+	 */
+	public long[] getOpcodeCounts() {
+		long[] counts = new long[512];
+		for (Map.Entry<Integer, int[]> entry : shapes.entrySet()) {
+			int[] shape = entry.getValue();
+			long entries = entries(entry.getKey() >>> 16, shape[0]);
+			int n = (shape.length - 1) / 3;
+			for (int i = 0; i < n; i++) {
+				int op = shape[1 + n + i];
+				counts[op == 0xCB ? 256 + (shape[1 + n * 2 + i] & 0xFF) : op] += entries;
+			}
+		}
+		forEachSingle((key, count, code) -> {
+			int op = code & 0xFF;
+			counts[op == 0xCB ? 256 + (code >>> 8 & 0xFF) : op] += count;
+		});
+		return counts;
+	}
+
+	private long entries(int bank, int pc) {
+		if (pc >= 0x8000) return ramEntries[pc - 0x8000];
+		long[] table = romEntries[bank];
+		return table == null ? 0 : table[pc & 0x3FFF];
+	}
+
+	/**
+	 * @return routine key to cycles spent in it (self, not counting callees)
+	 */
+	public Map<Integer, Long> getRoutineCycles() {
+		Map<Integer, Long> cycles = new HashMap<>();
+		for (int node = 1; node < nodeCount; node++) {
+			cycles.merge(nodeRoutine[node], nodeSelf[node], Long::sum);
+		}
+		return cycles;
+	}
+
+	/**
+	 * @return the routine's label if the disassembler has one, its address otherwise
+	 */
+	private String name(int routine) {
+		if (disassembler != null) {
+			String label = (routine & INTERRUPT) != 0 ? disassembler.label(0, routine & 0xFF)
+					: disassembler.label(routine >>> 16, routine & 0xFFFF);
+			if (label != null) {
+				return label;
+			}
+		}
+		return routineName(routine);
+	}
+
+	/**
+	 * @return the instruction at key as text, rom from the disassembler's table and ram
+	 * from the shape it was recorded in
+	 */
+	private String instruction(int key) {
+		int bank = key >>> 16;
+		int pc = key & 0xFFFF;
+		if (pc < 0x8000) {
+			return disassembler.instruction(bank, pc);
+		}
+		for (Map.Entry<Integer, int[]> entry : shapes.entrySet()) {
+			int[] shape = entry.getValue();
+			if (shape[0] < 0x8000) continue;
+			int n = (shape.length - 1) / 3;
+			for (int i = 0; i < n; i++) {
+				if ((i == 0 ? shape[0] : shape[i]) == pc) {
+					return disassembler.text(0, pc, shape[1 + n + i], shape[1 + n * 2 + i]);
+				}
+			}
+		}
+		if (ramSingles[pc - 0x8000] != 0) {
+			int code = ramSingleCodes[pc - 0x8000];
+			return disassembler.text(0, pc, code & 0xFF, code >>> 8);
+		}
+		return "";
+	}
+
+	public static String routineName(int routine) {
+		if ((routine & INTERRUPT) != 0) {
+			return String.format("int_%02X", routine & 0xFF);
+		}
+		return String.format("%02X:%04X", routine >>> 16, routine & 0xFFFF);
+	}
+
+	/**
+	 * hottest instructions, opcodes and routines as text
+	 * @param top lines per section
+	 */
+	public void writeReport(PrintStream out, int top) {
+		Map<Integer, Long> instructions = getInstructionCounts();
+		long total = 0;
+		for (long count : instructions.values()) total += count;
+		out.printf("%d instructions%n%nhot spots:%n", total);
+		for (Map.Entry<Integer, Long> entry : top(instructions, top)) {
+			out.printf("  %-8s %12d  %5.2f%%", routineName(entry.getKey()), entry.getValue(), 100.0 * entry.getValue() / total);
+			if (disassembler != null) {
+				out.print("  " + instruction(entry.getKey()));
+			}
+			out.println();
+		}
+
+		long[] opcodes = getOpcodeCounts();
+		Map<Integer, Long> byOpcode = new HashMap<>();
+		for (int op = 0; op < opcodes.length; op++) {
+			if (opcodes[op] != 0) byOpcode.put(op, opcodes[op]);
+		}
+		out.printf("%nopcodes:%n");
+		for (Map.Entry<Integer, Long> entry : top(byOpcode, top)) {
+			int op = entry.getKey();
+			String name = op >= 256 ? String.format("CB %02X", op - 256) : String.format("%02X", op);
+			out.printf("  %-8s %12d  %5.2f%%%n", name, entry.getValue(), 100.0 * entry.getValue() / total);
+		}
+
+		Map<Integer, Long> routines = getRoutineCycles();
+		long cycles = nodeSelf[0];
+		for (long value : routines.values()) cycles += value;
+		out.printf("%nroutines by self cycles:%n");
+		for (Map.Entry<Integer, Long> entry : top(routines, top)) {
+			out.printf("  %-16s %12d  %5.2f%%%n", name(entry.getKey()), entry.getValue(), 100.0 * entry.getValue() / cycles);
+		}
+	}
+
+	private static List<Map.Entry<Integer, Long>> top(Map<Integer, Long> counts, int top) {
+		List<Map.Entry<Integer, Long>> entries = new ArrayList<>(counts.entrySet());
+		entries.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+		return entries.subList(0, Math.min(top, entries.size()));
+	}
+
+	/**
+	 * one line per distinct call stack, "root;caller;callee cycles", the input
+	 * format of flamegraph.pl and most flame graph viewers
+	 */
+	public void writeCollapsed(PrintStream out) {
+		StringBuilder line = new StringBuilder();
+		int[] path = new int[MAX_DEPTH + 1];
+		for (int node = 0; node < nodeCount; node++) {
+			if (nodeSelf[node] == 0) continue;
+			int length = 0;
+			for (int n = node; n != 0; n = nodeParent[n]) {
+				path[length++] = n;
+			}
+			line.setLength(0);
+			line.append("gb");
+			for (int i = length - 1; i >= 0; i--) {
+				line.append(';').append(name(nodeRoutine[path[i]]));
+			}
+			out.append(line).append(' ').println(nodeSelf[node]);
+		}
+	}
+}
@@ -0,0 +1,74 @@
+package debug;
+
+import java.io.PrintStream;
+
+/**
+ * Keeps the last N records packed into a long[] ring, two longs per record.
+ * Nothing is formatted until dump() is called, so recording never allocates.
+ *
+ * record layout:
+ * word 0 = kind(8) | opcode or event(8) | pc(16) | sp(16) | af(16)
+ * word 1 = bc(16) | de(16) | hl(16) for instructions, the event value otherwise
+ */
+public class RingTraceSink implements TraceSink {
+	private static final long KIND_INSTRUCTION = 0;
+	private static final long KIND_EVENT = 1;
+
+	private final long[] ring;
+	private final int mask;
+	private long count = 0;
+
+	/**
+	 * @param capacity number of records kept, rounded up to a power of two
+	 */
+	public RingTraceSink(int capacity) {
+		int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+		ring = new long[size * 2];
+		mask = size - 1;
+	}
+
+	@Override
+	public void instruction(int pc, int opcode, int af, int bc, int de, int hl, int sp) {
+		int slot = (int) (count++ & mask) << 1;
+		ring[slot] = KIND_INSTRUCTION << 56 | (long) opcode << 48 | (long) pc << 32 | (long) sp << 16 | af;
+		ring[slot + 1] = (long) bc << 32 | (long) de << 16 | hl;
+	}
+
+	@Override
+	public void event(int event, int pc, int value) {
+		int slot = (int) (count++ & mask) << 1;
+		ring[slot] = KIND_EVENT << 56 | (long) (event & 0xFF) << 48 | (long) pc << 32;
+		ring[slot + 1] = value;
+	}
+
+	/**
+	 * @return total records seen, including ones that were overwritten
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	public void clear() {
+		count = 0;
+	}
+
+	/**
+	 * format the buffered records, oldest first
+	 */
+	public void dump(PrintStream out) {
+		long size = mask + 1;
+		for (long i = Math.max(0, count - size); i < count; i++) {
+			int slot = (int) (i & mask) << 1;
+			long w0 = ring[slot];
+			long w1 = ring[slot + 1];
+			int code = (int) (w0 >>> 48) & 0xFF;
+			int pc = (int) (w0 >>> 32) & 0xFFFF;
+			if ((w0 >>> 56) == KIND_EVENT) {
+				out.println(Trace.formatEvent(code, pc, (int) w1));
+			} else {
+				out.println(Trace.formatInstruction(pc, code, (int) w0 & 0xFFFF, (int) (w1 >>> 32) & 0xFFFF,
+						(int) (w1 >>> 16) & 0xFFFF, (int) w1 & 0xFFFF, (int) (w0 >>> 16) & 0xFFFF));
+			}
+		}
+	}
+}
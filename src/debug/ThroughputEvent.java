@@ -0,0 +1,51 @@
+package debug;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder event committed by Monitor once per second for every
+ * monitored instance.
+ */
+@Name("gbasm.Throughput")
+@Label("Emulator Throughput")
+@Category("GBasm")
+@Description("Emulation speed of one instance over the last second")
+class ThroughputEvent extends Event {
+	@Label("Instance")
+	String instance;
+
+	@Label("Instructions per Second")
+	double instructionsPerSecond;
+
+	@Label("Speed")
+	@Description("Emulated time over wall time, 1.0 is real time")
+	double speed;
+
+	@Label("Frames per Second")
+	double framesPerSecond;
+
+	@Label("Bank Switches")
+	long bankSwitches;
+
+	@Label("VBlank Interrupts")
+	long vblankInterrupts;
+
+	@Label("LCD Interrupts")
+	long lcdInterrupts;
+
+	@Label("Timer Interrupts")
+	long timerInterrupts;
+
+	@Label("Serial Interrupts")
+	long serialInterrupts;
+
+	@Label("Joypad Interrupts")
+	long joypadInterrupts;
+
+	@Label("Halt Ratio")
+	@Description("Share of emulated time spent in HALT or STOP")
+	double haltRatio;
+}
@@ -0,0 +1,53 @@
+package debug;
+
+/**
+ * Trace levels and event ids shared by every TraceSink.
+ * The level is read once from -Dgbasm.trace (off, events, opcodes) so the
+ * checks in the cpu fold to a constant and disappear when tracing is off.
+ */
+public final class Trace {
+	public static final int OFF = 0;
+	public static final int EVENTS = 1; //interrupts and warnings
+	public static final int OPCODES = 2; //every executed instruction
+
+	public static final int LEVEL = parseLevel(System.getProperty("gbasm.trace", "events"));
+
+	//event ids
+	public static final int INTERRUPT = 1;
+	public static final int VBLANK_TRIGGERED = 2;
+	public static final int PC_ZERO = 3;
+	public static final int ILLEGAL_OPCODE = 4;
+
+	private Trace() {
+	}
+
+	private static int parseLevel(String level) {
+		switch (level.toLowerCase()) {
+		case "off": return OFF;
+		case "opcodes": return OPCODES;
+		default: return EVENTS;
+		}
+	}
+
+	/**
+	 * format an instruction record, only called when a sink is asked for text
+	 */
+	public static String formatInstruction(int pc, int opcode, int af, int bc, int de, int hl, int sp) {
+		return String.format("$%04X: %02X  AF=%04X BC=%04X DE=%04X HL=%04X SP=%04X", pc, opcode, af, bc, de, hl, sp);
+	}
+
+	public static String formatEvent(int event, int pc, int value) {
+		switch (event) {
+		case INTERRUPT:
+			return String.format("$%04X: interrupt %d, jumping to $%04X", pc, value, 0x40 + value * 8);
+		case VBLANK_TRIGGERED:
+			return String.format("$%04X: VBlank interrupt triggered", pc);
+		case PC_ZERO:
+			return "WARNING! PC jumped to 0x0000! Possible corruption has occurred!";
+		case ILLEGAL_OPCODE:
+			return String.format("$%04X: unknown opcode 0x%02X", pc, value);
+		default:
+			return String.format("$%04X: event %d (%X)", pc, event, value);
+		}
+	}
+}
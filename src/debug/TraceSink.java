@@ -0,0 +1,11 @@
+package debug;
+
+/**
+ * Receives trace records from the cpu. Implementations should not allocate
+ * in instruction(), it is called once per executed opcode when enabled.
+ */
+public interface TraceSink {
+	void instruction(int pc, int opcode, int af, int bc, int de, int hl, int sp);
+
+	void event(int event, int pc, int value);
+}
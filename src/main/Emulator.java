@@ -1,15 +1,39 @@
 package main;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.locks.LockSupport;
+
 import cpu.CPU;
+import debug.Monitor;
+import debug.PrintTraceSink;
 import memory.Memory;
+import sound.APU;
+import state.Movie;
+import video.PPU;
 
 public class Emulator {
-	public static void main(String[] args) {
+	private static final long FRAME_NANOS = 1_000_000_000L * CPU.CYCLES_PER_FRAME / APU.CLOCK_RATE;
+
+	/**
+	 * usage: java main.Emulator [-sav file.sav] runs the demo, keeping cartridge ram in the .sav if given
+	 *        java main.Emulator -record|-replay ... see runMovie
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length > 0 && !args[0].equals("-sav")) {
+			runMovie(args);
+			return;
+		}
 		Memory memory = new Memory(); //set virtual ram
 		memory.loadROM("pokeRed.gb"); //set to test.gb to test real rom s
+		if (args.length > 1) {
+			memory.loadSave(args[1]); //battery backed ram, ignored for carts without one
+		}
 		
 		CPU cpu = new CPU();
 		cpu.setMemory(memory);
+		cpu.setTraceSink(new PrintTraceSink(System.out)); //-Dgbasm.trace=opcodes for every instruction
 
 		/*
 		 * memory.write(0x40, 0x3E); memory.write(0x41, 0x55); memory.write(0x42, 0xC9);
@@ -24,7 +48,96 @@ public class Emulator {
 		/* runCPU(cpu); */
 	}
 	
+	/**
+	 * record input into a movie or replay one, from power on and without the .sav
+	 * so the run depends on nothing but the rom and the input.
+	 *
+	 * usage: java main.Emulator -record movie.gbm [-frames N] [-hash N] [-script input.txt] rom.gb
+	 *        java main.Emulator -replay movie.gbm [-turbo] rom.gb
+	 * replays run at real time unless -turbo lets them go as fast as the host can
+	 */
+	public static void runMovie(String[] args) throws IOException {
+		Path record = null;
+		Path replay = null;
+		int frames = 3600;
+		int hashInterval = 60;
+		boolean turbo = false;
+		String rom = null;
+		String script = null;
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i]) {
+			case "-record": record = Paths.get(args[++i]); break;
+			case "-replay": replay = Paths.get(args[++i]); break;
+			case "-frames": frames = Integer.parseInt(args[++i]); break;
+			case "-hash": hashInterval = Integer.parseInt(args[++i]); break;
+			case "-turbo": turbo = true; break;
+			case "-script": script = args[++i]; break;
+			default: rom = args[i];
+			}
+		}
+		if (rom == null || (record == null) == (replay == null)) {
+			System.out.println("usage: java main.Emulator -record movie.gbm [-frames N] [-hash N] [-script input.txt] rom.gb");
+			System.out.println("       java main.Emulator -replay movie.gbm [-turbo] rom.gb");
+			return;
+		}
+		InputScript input = script != null ? InputScript.load(script) : InputScript.NONE;
+
+		Memory memory = new Memory();
+		memory.loadROM(rom);
+		if (memory.getCartridge() == null) {
+			System.out.println("Could not load " + rom);
+			return;
+		}
+		CPU cpu = new CPU();
+		cpu.setMemory(memory);
+		new PPU(memory, cpu.getScheduler());
+		new APU(memory, cpu.getScheduler());
+		Monitor monitor = Monitor.register(record != null ? "record" : "replay", cpu, memory);
+
+		long start = System.nanoTime();
+		try {
+			if (record != null) {
+				try (Movie.Recorder recorder = new Movie.Recorder(record, memory, hashInterval)) {
+					for (int frame = 0; frame < frames; frame++) {
+						int buttons = input.buttonsAt(frame);
+						memory.setButtons(buttons);
+						cpu.runFrame();
+						recorder.frame(buttons, cpu);
+					}
+				}
+				System.out.printf("Recorded %d frames to %s%n", frames, record);
+			} else {
+				try (Movie.Player player = new Movie.Player(replay, memory)) {
+					long due = start;
+					while (player.hasNext()) {
+						memory.setButtons(player.nextButtons());
+						cpu.runFrame();
+						if (!player.check(cpu)) {
+							System.out.printf("Replay diverged at frame %d%n", player.getFrame());
+							break;
+						}
+						if (!turbo) {
+							due += FRAME_NANOS;
+							long wait = due - System.nanoTime();
+							if (wait > 0) LockSupport.parkNanos(wait);
+						}
+					}
+					frames = player.getFrame();
+					if (player.getDivergedAt() < 0) {
+						System.out.printf("Replayed %d frames, %d state hashes matched%n", frames, player.getChecked());
+					}
+				}
+			}
+		} finally {
+			monitor.close();
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.printf("%.2f s, %.0f fps, %.1fx real time%n", seconds, frames / seconds,
+				(double) frames * CPU.CYCLES_PER_FRAME / APU.CLOCK_RATE / seconds);
+	}
+
 	public static void testInterrupts(CPU cpu, Memory memory) {
+		cpu.setIME(true);
 		cpu.triggerVBlank();
 		System.out.println("IE: " + Integer.toHexString(memory.read(0xFFFF)));
 		System.out.println("IF: " + Integer.toHexString(memory.read(0xFF0F)));
@@ -62,14 +175,12 @@ public class Emulator {
 	public static void runCPU(CPU cpu) {
 		int instructionCount = 0;
 		while (true) {
-		    byte opcode = cpu.fetch();  // Fetch the next instruction
-		    if (opcode == (byte) 0x76) { // HALT condition
-		        System.out.println("CPU halted at address: " + "0x" + Integer.toHexString(instructionCount));
+		    cpu.step();
+		    if (cpu.isHalted()) {
+		        System.out.println("CPU halted at address: " + "0x" + Integer.toHexString(cpu.getPC() - 1));
 		        break;
 		    }
 		    
-		    cpu.execute(opcode);  // Execute the opcode
-		    
 		    instructionCount++;
 		    if (instructionCount > 0x35) { // To avoid infinite loops during testing
 		        System.out.println("Instruction count exceeded, breaking the loop.");
@@ -0,0 +1,285 @@
+package main;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+import cpu.CPU;
+import debug.Disassembler;
+import debug.Monitor;
+import debug.Profiler;
+import memory.Memory;
+import sound.APU;
+import sound.AudioRing;
+import sound.WavWriter;
+import video.PPU;
+
+/**
+ * Runs many independent emulator instances in parallel without a display.
+ * Every job builds its own Memory and CPU on a pool thread and hands back an
+ * immutable Result, nothing mutable is shared between instances
+ * (roms mapped by several jobs share the read only Cartridge mapping).
+ * Each running instance shows up as a debug.Monitor MBean named rom#n.
+ *
+ * usage: java main.HeadlessRunner [-frames N] [-threads N] [-repeat N] [-dump dir] [-wav dir] [-profile dir] [-script input.txt] rom.gb ...
+ * a -script applies to the rom right after it
+ */
+public class HeadlessRunner {
+	private static final AtomicInteger instances = new AtomicInteger();
+
+	public static class Job {
+		final String romPath;
+		final InputScript input;
+		final int frames;
+		final Path wav; //where to record the sound, null for none
+		final Path profile; //where to write the profile, null for none
+
+		public Job(String romPath, InputScript input, int frames) {
+			this(romPath, input, frames, null, null);
+		}
+
+		/**
+		 * @param profile file name prefix for the .txt report and .collapsed stacks
+		 */
+		public Job(String romPath, InputScript input, int frames, Path wav, Path profile) {
+			this.romPath = romPath;
+			this.input = input;
+			this.frames = frames;
+			this.wav = wav;
+			this.profile = profile;
+		}
+	}
+
+	public static class Result {
+		private final Job job;
+		private final long cycles;
+		private final long stateHash;
+		private final int[] frame;
+		private final byte[] serialOutput;
+		private final long nanos;
+
+		Result(Job job, long cycles, long stateHash, int[] frame, byte[] serialOutput, long nanos) {
+			this.job = job;
+			this.cycles = cycles;
+			this.stateHash = stateHash;
+			this.frame = frame;
+			this.serialOutput = serialOutput;
+			this.nanos = nanos;
+		}
+
+		public String getRomPath() {
+			return job.romPath;
+		}
+
+		public int getFrames() {
+			return job.frames;
+		}
+
+		public long getCycles() {
+			return cycles;
+		}
+
+		public long getStateHash() {
+			return stateHash;
+		}
+
+		/**
+		 * @return copy of the last frame the PPU finished, ARGB
+		 */
+		public int[] getFrame() {
+			return frame.clone();
+		}
+
+		/**
+		 * @return CRC32 of the last frame's pixels, to compare runs at a glance
+		 */
+		public long getFrameHash() {
+			CRC32 crc = new CRC32();
+			for (int pixel : frame) {
+				crc.update(pixel);
+			}
+			return crc.getValue();
+		}
+
+		public String getSerialOutput() {
+			return new String(serialOutput, StandardCharsets.ISO_8859_1);
+		}
+
+		public long getNanos() {
+			return nanos;
+		}
+	}
+
+	/**
+	 * run one job to completion on the calling thread
+	 */
+	public static Result run(Job job) throws IOException {
+		long start = System.nanoTime();
+		Memory memory = new Memory();
+		memory.loadROM(job.romPath);
+		if (memory.getCartridge() == null) {
+			throw new IllegalArgumentException("Could not load " + job.romPath);
+		}
+		CPU cpu = new CPU();
+		cpu.setMemory(memory);
+		PPU ppu = new PPU(memory, cpu.getScheduler());
+		APU apu = new APU(memory, cpu.getScheduler());
+		Profiler profiler = null;
+		if (job.profile != null) {
+			profiler = new Profiler();
+			profiler.setDisassembler(Disassembler.of(memory.getCartridge()));
+			cpu.setProfiler(profiler);
+		}
+		WavWriter wav = null;
+		if (job.wav != null) {
+			AudioRing ring = new AudioRing(1 << 18);
+			apu.setOutput(ring);
+			wav = new WavWriter(ring, job.wav);
+		}
+
+		Monitor monitor = Monitor.register(Paths.get(job.romPath).getFileName() + "#" + instances.incrementAndGet(), cpu, memory);
+		try {
+			for (int frame = 0; frame < job.frames; frame++) {
+				memory.setButtons(job.input.buttonsAt(frame));
+				cpu.runFrame();
+			}
+		} finally {
+			monitor.close();
+			if (wav != null) {
+				apu.flush();
+				wav.close();
+			}
+		}
+		if (profiler != null) {
+			writeProfile(profiler, Disassembler.of(memory.getCartridge()), job.profile);
+		}
+		return new Result(job, cpu.getCycles(), cpu.stateHash(), ppu.getFrame().clone(), memory.getSerialOutput(), System.nanoTime() - start);
+	}
+
+	/**
+	 * run every job on a fork join pool, results come back in job order
+	 * @param threads pool size, usually the core count
+	 */
+	public static List<Result> runAll(List<Job> jobs, int threads) {
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			List<ForkJoinTask<Result>> tasks = new ArrayList<>();
+			for (Job job : jobs) {
+				tasks.add(pool.submit(() -> run(job)));
+			}
+			List<Result> results = new ArrayList<>();
+			for (ForkJoinTask<Result> task : tasks) {
+				results.add(task.join());
+			}
+			return results;
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	private static void writeProfile(Profiler profiler, Disassembler disassembler, Path prefix) throws IOException {
+		//label what ran, the listing is shared so later reports and listings get it too
+		profiler.addEntries(disassembler);
+		disassembler.analyze();
+		try (PrintStream out = new PrintStream(Files.newOutputStream(Paths.get(prefix + ".txt")))) {
+			profiler.writeReport(out, 40);
+		}
+		try (PrintStream out = new PrintStream(Files.newOutputStream(Paths.get(prefix + ".collapsed")))) {
+			profiler.writeCollapsed(out);
+		}
+	}
+
+	/**
+	 * write a frame as a binary PPM (P6), readable by most image viewers
+	 */
+	public static void writePPM(int[] frame, Path path) throws IOException {
+		try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(path))) {
+			out.write(("P6\n" + PPU.WIDTH + " " + PPU.HEIGHT + "\n255\n").getBytes(StandardCharsets.US_ASCII));
+			for (int pixel : frame) {
+				out.write(pixel >> 16);
+				out.write(pixel >> 8);
+				out.write(pixel);
+			}
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		int frames = 600;
+		int threads = Runtime.getRuntime().availableProcessors();
+		int repeat = 1;
+		Path dump = null;
+		Path wavs = null;
+		Path profiles = null;
+		List<String> roms = new ArrayList<>();
+		List<String> scripts = new ArrayList<>(); //input script of each rom, null for none
+		String script = null;
+
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i]) {
+			case "-frames": frames = Integer.parseInt(args[++i]); break;
+			case "-threads": threads = Integer.parseInt(args[++i]); break;
+			case "-repeat": repeat = Integer.parseInt(args[++i]); break;
+			case "-dump": dump = Paths.get(args[++i]); break;
+			case "-wav": wavs = Paths.get(args[++i]); break;
+			case "-profile": profiles = Paths.get(args[++i]); break;
+			case "-script": script = args[++i]; break;
+			default:
+				roms.add(args[i]);
+				scripts.add(script);
+				script = null;
+			}
+		}
+		if (roms.isEmpty()) {
+			System.out.println("usage: java main.HeadlessRunner [-frames N] [-threads N] [-repeat N] [-dump dir] [-wav dir] [-profile dir] [-script input.txt] rom.gb ...");
+			return;
+		}
+
+		List<Job> jobs = new ArrayList<>();
+		for (int j = 0; j < roms.size(); j++) {
+			String romPath = roms.get(j);
+			InputScript input = scripts.get(j) != null ? InputScript.load(scripts.get(j)) : InputScript.NONE;
+			for (int r = 0; r < repeat; r++) {
+				String name = jobs.size() + "_" + Paths.get(romPath).getFileName();
+				Path wav = wavs == null ? null : wavs.resolve(name + ".wav");
+				Path profile = profiles == null ? null : profiles.resolve(name);
+				jobs.add(new Job(romPath, input, frames, wav, profile));
+			}
+		}
+
+		if (wavs != null) {
+			Files.createDirectories(wavs);
+		}
+		if (profiles != null) {
+			Files.createDirectories(profiles);
+		}
+		long start = System.nanoTime();
+		List<Result> results = runAll(jobs, threads);
+		long wall = System.nanoTime() - start;
+
+		if (dump != null) {
+			Files.createDirectories(dump);
+		}
+		long totalCycles = 0;
+		for (int i = 0; i < results.size(); i++) {
+			Result result = results.get(i);
+			totalCycles += result.getCycles();
+			System.out.printf("%-24s %6d frames  hash %016x  frame %08x  %7.1f ms  serial: %s%n", result.getRomPath(), result.getFrames(),
+					result.getStateHash(), result.getFrameHash(), result.getNanos() / 1e6, result.getSerialOutput().trim());
+			if (dump != null) {
+				writePPM(result.frame, dump.resolve(i + "_" + Paths.get(result.getRomPath()).getFileName() + ".ppm"));
+			}
+		}
+		System.out.printf("%d instances on %d threads in %.1f ms, %.1fx real time%n", results.size(), threads, wall / 1e6,
+				(double) totalCycles / (4194304.0 * wall / 1e9));
+	}
+}
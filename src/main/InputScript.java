@@ -0,0 +1,68 @@
+package main;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import memory.Joypad;
+
+/**
+ * Joypad input for headless runs, indexed by frame. One "frame buttons"
+ * entry per line and the buttons stay held until the next entry, '#' starts a comment.
+ *
+ * 120 START
+ * 126 -
+ * 300 A+RIGHT
+ *
+ * Scripts are immutable so one can be shared by any number of instances.
+ */
+public class InputScript {
+	public static final InputScript NONE = new InputScript(new int[0], new int[0]);
+
+	private final int[] frames; //sorted
+	private final int[] buttons;
+
+	private InputScript(int[] frames, int[] buttons) {
+		this.frames = frames;
+		this.buttons = buttons;
+	}
+
+	public static InputScript load(String path) throws IOException {
+		return parse(Files.readAllLines(Paths.get(path)));
+	}
+
+	public static InputScript parse(List<String> lines) {
+		List<int[]> entries = new ArrayList<>();
+		for (String line : lines) {
+			int comment = line.indexOf('#');
+			if (comment >= 0) line = line.substring(0, comment);
+			line = line.trim();
+			if (line.isEmpty()) continue;
+
+			String[] parts = line.split("\\s+", 2);
+			int frame = Integer.parseInt(parts[0]);
+			int mask = parts.length > 1 ? Joypad.parse(parts[1]) : 0;
+			entries.add(new int[] {frame, mask});
+		}
+		entries.sort((a, b) -> Integer.compare(a[0], b[0]));
+
+		int[] frames = new int[entries.size()];
+		int[] buttons = new int[entries.size()];
+		for (int i = 0; i < frames.length; i++) {
+			frames[i] = entries.get(i)[0];
+			buttons[i] = entries.get(i)[1];
+		}
+		return new InputScript(frames, buttons);
+	}
+
+	/**
+	 * @return the buttons held during the given frame
+	 */
+	public int buttonsAt(int frame) {
+		int index = Arrays.binarySearch(frames, frame);
+		if (index < 0) index = -index - 2; //last entry before this frame
+		return index < 0 ? 0 : buttons[index];
+	}
+}
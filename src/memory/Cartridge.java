@@ -0,0 +1,166 @@
+package memory;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A ROM image mapped straight from disk. Every 16kb bank is exposed as a
+ * read only slice of the one mapping, so switching banks is just picking
+ * another slice and nothing is ever copied.
+ * Images are cached by path, every emulator instance running the same rom
+ * shares the same mapping.
+ */
+public class Cartridge {
+	public static final int BANK_SIZE = 0x4000;
+	public static final int PAGES_PER_BANK = BANK_SIZE / Memory.PAGE_SIZE;
+
+	private static final ConcurrentHashMap<Path, Cartridge> OPEN = new ConcurrentHashMap<>();
+
+	private final Path path;
+	private final MappedByteBuffer image;
+	private final ByteBuffer[] banks;
+	private final ByteBuffer[][] pages; //banks cut into Memory.PAGE_SIZE slices for the page tables
+	private final int bankMask; //-1 when the bank count is not a power of two
+
+	private Cartridge(Path path) throws IOException {
+		this.path = path;
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			int size = (int) Math.min(channel.size(), Integer.MAX_VALUE);
+			if (size < 0x150) {
+				throw new IOException(path + " is too small to be a GB rom (" + size + " bytes)");
+			}
+			image = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		}
+
+		//pad the last bank out so a truncated image still has whole banks
+		int count = Math.max(2, (image.capacity() + BANK_SIZE - 1) / BANK_SIZE);
+		banks = new ByteBuffer[count];
+		for (int i = 0; i < count; i++) {
+			int start = i * BANK_SIZE;
+			if (start + BANK_SIZE <= image.capacity()) {
+				banks[i] = image.slice(start, BANK_SIZE);
+			} else {
+				//direct like the mapped banks, so the page tables see one buffer type
+				ByteBuffer partial = ByteBuffer.allocateDirect(BANK_SIZE);
+				for (int b = 0; b < BANK_SIZE; b++) {
+					partial.put(b, start + b < image.capacity() ? image.get(start + b) : (byte) 0xFF);
+				}
+				banks[i] = partial.asReadOnlyBuffer();
+			}
+		}
+		bankMask = Integer.bitCount(count) == 1 ? count - 1 : -1;
+		
+		pages = new ByteBuffer[count][PAGES_PER_BANK];
+		for (int i = 0; i < count; i++) {
+			for (int p = 0; p < PAGES_PER_BANK; p++) {
+				pages[i][p] = banks[i].slice(p * Memory.PAGE_SIZE, Memory.PAGE_SIZE);
+			}
+		}
+	}
+
+	/**
+	 * map a rom, or reuse the mapping if another instance already opened it
+	 * @param filePath path to the .gb file
+	 * @return the shared cartridge image
+	 * @throws IOException if the file can't be opened or mapped
+	 */
+	public static Cartridge open(String filePath) throws IOException {
+		Path path = Paths.get(filePath).toAbsolutePath().normalize();
+		try {
+			return OPEN.computeIfAbsent(path, p -> {
+				try {
+					return new Cartridge(p);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * @param bank bank number, out of range numbers wrap like the rom address lines do
+	 * @return read only view of the 16kb bank
+	 */
+	public ByteBuffer bank(int bank) {
+		return banks[bankMask >= 0 ? bank & bankMask : bank % banks.length];
+	}
+
+	/**
+	 * @param bank bank number, wrapped the same way as bank()
+	 * @return the bank split into page sized views, shared between instances
+	 */
+	public ByteBuffer[] pages(int bank) {
+		return pages[bankMask >= 0 ? bank & bankMask : bank % banks.length];
+	}
+
+	public int getBankCount() {
+		return banks.length;
+	}
+
+	public int getSize() {
+		return image.capacity();
+	}
+
+	public Path getPath() {
+		return path;
+	}
+
+	/**
+	 * @return raw cartridge type byte at $0147
+	 */
+	public int getType() {
+		return image.get(0x0147) & 0xFF;
+	}
+
+	/**
+	 * @return external ram size in bytes from the header byte at $0149
+	 */
+	public int getRamSize() {
+		switch (image.get(0x0149) & 0xFF) {
+		case 0x01: return 0x800;
+		case 0x02: return 0x2000;
+		case 0x03: return 0x8000;
+		case 0x04: return 0x20000;
+		case 0x05: return 0x10000;
+		default: return 0;
+		}
+	}
+
+	/**
+	 * @return global checksum from the header at $014E, used to tell roms apart
+	 */
+	public int getChecksum() {
+		return ((image.get(0x014E) & 0xFF) << 8) | (image.get(0x014F) & 0xFF);
+	}
+
+	/**
+	 * @return true if the cartridge type has a battery keeping its ram alive
+	 */
+	public boolean hasBattery() {
+		switch (getType()) {
+		case 0x03: case 0x06: case 0x09: case 0x0D: case 0x0F: case 0x10:
+		case 0x13: case 0x1B: case 0x1E: case 0x22: case 0xFF:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	public String getTitle() {
+		StringBuilder title = new StringBuilder();
+		for (int i = 0x0134; i <= 0x0143; i++) {
+			int c = image.get(i) & 0xFF;
+			if (c == 0) break;
+			title.append((char) c);
+		}
+		return title.toString();
+	}
+}
@@ -0,0 +1,181 @@
+package memory;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Cartridge ram at A000-BFFF, kept apart from the 64kb array as 8kb banks
+ * in one array the page tables point into. Battery backed carts can map it
+ * onto their .sav file, game saves are then plain array writes and a
+ * background thread copies the dirty pages into the mapping and forces
+ * them out to disk, so the emulation thread never waits on I/O.
+ */
+public class ExternalRam implements Closeable {
+	public static final int BANK_SIZE = 0x2000;
+	private static final int PAGES_PER_BANK = BANK_SIZE / Memory.PAGE_SIZE;
+	private static final long FLUSH_INTERVAL_MS = 1000;
+
+	//one flush thread for every instance in the process
+	private static final ScheduledExecutorService FLUSHER = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread thread = new Thread(r, "sram-flush");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private final byte[] data;
+	private final MappedByteBuffer file; //null when not backed by a .sav
+	private final int pageCount;
+	private final int bankCount;
+
+	//one bit per page written since the last flush, set by the emulation thread
+	private final AtomicLongArray dirty;
+	private final ScheduledFuture<?> flushTask;
+
+	/**
+	 * plain in-memory ram, nothing is persisted
+	 * @param size ram size in bytes from the cartridge header, at least one page
+	 */
+	public ExternalRam(int size) {
+		this(size, null);
+	}
+
+	private ExternalRam(int size, MappedByteBuffer file) {
+		this.data = new byte[size];
+		this.file = file;
+		if (file != null) {
+			file.get(0, data);
+		}
+		//carts with 2kb of ram mirror it across the 8kb window
+		pageCount = size / Memory.PAGE_SIZE;
+		bankCount = Math.max(1, size / BANK_SIZE);
+		dirty = new AtomicLongArray((pageCount + 63) / 64);
+		flushTask = file == null ? null : FLUSHER.scheduleWithFixedDelay(this::flush, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS,
+				TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * map the ram onto a .sav file, creating or growing it if needed
+	 * @param sav path to the save file
+	 * @param size ram size in bytes from the cartridge header
+	 */
+	public static ExternalRam map(Path sav, int size) throws IOException {
+		try (FileChannel channel = FileChannel.open(sav, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE)) {
+			MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+			return new ExternalRam(size, mapped);
+		}
+	}
+
+	public int getSize() {
+		return data.length;
+	}
+
+	public boolean isPersistent() {
+		return file != null;
+	}
+
+	/**
+	 * @return the ram, for the read page table
+	 */
+	byte[] getData() {
+		return data;
+	}
+
+	/**
+	 * @param bank ram bank, wraps around on carts with fewer banks
+	 * @param page 256 byte page inside the 8kb bank window
+	 * @return where that page starts in getData()
+	 */
+	int offset(int bank, int page) {
+		return index(bank, page) << Memory.PAGE_SHIFT;
+	}
+
+	private int index(int bank, int page) {
+		return ((bank % bankCount) * PAGES_PER_BANK + page) % pageCount;
+	}
+
+	/**
+	 * write through the handler page so the page gets marked dirty
+	 * @param offset offset inside the 8kb bank window
+	 */
+	void write(int bank, int offset, int value) {
+		int index = index(bank, offset >> Memory.PAGE_SHIFT);
+		data[(index << Memory.PAGE_SHIFT) | (offset & (Memory.PAGE_SIZE - 1))] = (byte) value;
+
+		long bit = 1L << (index & 63);
+		if ((dirty.getPlain(index >> 6) & bit) == 0) {
+			dirty.getAndAccumulate(index >> 6, bit, (a, b) -> a | b);
+		}
+	}
+
+	/**
+	 * @return true if something was written since the last flush
+	 */
+	public boolean isDirty() {
+		for (int i = 0; i < dirty.length(); i++) {
+			if (dirty.get(i) != 0) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * copy the dirty pages into the .sav mapping and force them out, runs on
+	 * the flush thread but is safe to call from anywhere
+	 */
+	public void flush() {
+		for (int word = 0; word < dirty.length(); word++) {
+			long bits = dirty.getAndSet(word, 0);
+			while (bits != 0) {
+				int index = word * 64 + Long.numberOfTrailingZeros(bits);
+				bits &= bits - 1;
+				if (file != null) {
+					int start = index * Memory.PAGE_SIZE;
+					file.put(start, data, start, Memory.PAGE_SIZE);
+					file.force(start, Memory.PAGE_SIZE);
+				}
+			}
+		}
+	}
+
+	/**
+	 * stop the periodic flush and write out anything left
+	 */
+	@Override
+	public void close() {
+		if (flushTask != null) {
+			flushTask.cancel(false);
+		}
+		//a write racing the flush thread can leave its page marked clean, so copy all of it once more
+		markDirty();
+		flush();
+	}
+
+	private void markDirty() {
+		for (int i = 0; i < pageCount; i++) {
+			dirty.getAndAccumulate(i >> 6, 1L << (i & 63), (a, b) -> a | b);
+		}
+	}
+
+	void saveState(ByteBuffer out) {
+		out.putInt(data.length);
+		out.put(data);
+	}
+
+	void loadState(ByteBuffer in) {
+		int size = in.getInt();
+		if (size != data.length) {
+			throw new IllegalStateException("Save state has " + size + " bytes of cartridge ram, expected " + data.length);
+		}
+		in.get(data);
+		markDirty(); //everything may have changed
+	}
+}
@@ -0,0 +1,157 @@
+package memory;
+
+import cpu.Scheduler;
+
+/**
+ * IE ($FFFF), IF ($FF0F) and the cpu's master enable IME. The enabled and
+ * requested sources are kept in one precomputed mask, so the cpu only has to
+ * test a single field, and only when the attention event says something
+ * changed.
+ */
+public class InterruptController {
+	public static final int VBLANK = 0;
+	public static final int LCD = 1;
+	public static final int TIMER = 2;
+	public static final int SERIAL = 3;
+	public static final int JOYPAD = 4;
+
+	private int IE = 0;
+	private int IF = 0;
+	private int pending = 0; //IE & IF, the sources that would be serviced
+	private boolean IME = false;
+	private final long[] taken = new long[5]; //interrupts serviced per source, for monitoring
+
+	//scheduled whenever IE, IF or IME change so the cpu takes a look
+	private Scheduler scheduler;
+	private Scheduler.Event attention;
+
+	//EI turns IME on only after the instruction following it
+	private final Scheduler.Event enable = new Scheduler.Event() {
+		@Override
+		public void fire(long time) {
+			IME = true;
+			changed();
+		}
+	};
+
+	/**
+	 * owned by Memory, see Memory.getInterrupts
+	 */
+	InterruptController() {
+	}
+
+	/**
+	 * @param scheduler clock the cpu runs on
+	 * @param attention event to schedule when the cpu has to look at interrupts again
+	 */
+	public void setAttention(Scheduler scheduler, Scheduler.Event attention) {
+		this.scheduler = scheduler;
+		this.attention = attention;
+	}
+
+	public int getIE() {
+		return IE;
+	}
+
+	public void setIE(int value) {
+		IE = value & 0xFF;
+		changed();
+	}
+
+	public int getIF() {
+		return IF;
+	}
+
+	public void setIF(int value) {
+		IF = value & 0xFF;
+		changed();
+	}
+
+	/**
+	 * raise an interrupt source, sets its IF bit
+	 * @param bit 0 = VBlank, 1 = LCD, 2 = Timer, 3 = Serial, 4 = Joypad
+	 */
+	public void request(int bit) {
+		IF |= 1 << bit;
+		changed();
+	}
+
+	/**
+	 * @return mask of sources both enabled and requested, 0 if there is nothing to do
+	 */
+	public int getPending() {
+		return pending;
+	}
+
+	public boolean isIME() {
+		return IME;
+	}
+
+	/**
+	 * set IME straight away, for RETI and state loads. Cancels a delayed EI
+	 */
+	public void setIME(boolean value) {
+		cancelEnable();
+		IME = value;
+		changed();
+	}
+
+	/**
+	 * EI, IME goes on once the clock reaches the given time
+	 * @param time end of the instruction following EI
+	 */
+	public void enableAt(long time) {
+		if (!IME && scheduler != null) {
+			scheduler.schedule(enable, time);
+		}
+	}
+
+	/**
+	 * @return true between an EI and the point IME actually goes on
+	 */
+	public boolean isEnabling() {
+		return enable.isScheduled();
+	}
+
+	/**
+	 * DI, also undoes an EI that has not taken effect yet
+	 */
+	public void disable() {
+		cancelEnable();
+		IME = false;
+	}
+
+	/**
+	 * take the highest priority pending source: clear its IF bit and IME
+	 * @return the vector to jump to
+	 */
+	public int acknowledge() {
+		int bit = Integer.numberOfTrailingZeros(pending);
+		IF &= ~(1 << bit);
+		IME = false;
+		taken[bit]++;
+		changed();
+		return 0x40 + bit * 8;
+	}
+
+	/**
+	 * @param bit 0 = VBlank, 1 = LCD, 2 = Timer, 3 = Serial, 4 = Joypad
+	 * @return times that source was serviced since power on
+	 */
+	public long getTaken(int bit) {
+		return taken[bit];
+	}
+
+	private void cancelEnable() {
+		if (scheduler != null) {
+			scheduler.cancel(enable);
+		}
+	}
+
+	private void changed() {
+		pending = IE & IF & 0x1F;
+		if (attention != null) {
+			scheduler.schedule(attention, scheduler.now());
+		}
+	}
+}
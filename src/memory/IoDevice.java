@@ -0,0 +1,35 @@
+package memory;
+import java.nio.ByteBuffer;
+
+/**
+ * Hardware living in the FF00-FF7F register range (PPU, timer, sound).
+ * Memory hands it every read and write of the addresses it is mapped at,
+ * and appends its state to save states after its own.
+ */
+public interface IoDevice {
+
+	int read(int address);
+
+	void write(int address, int value);
+
+	default void saveState(ByteBuffer out) {
+	}
+
+	/**
+	 * read back what saveState wrote, the clock has already been restored
+	 */
+	default void loadState(ByteBuffer in) {
+	}
+
+	/**
+	 * the cpu executed STOP, the clock keeps going but the device freezes
+	 */
+	default void stop() {
+	}
+
+	/**
+	 * STOP ended, carry on from the current clock
+	 */
+	default void resume() {
+	}
+}
@@ -0,0 +1,73 @@
+package memory;
+
+/**
+ * The JOYP register at $FF00. Buttons are held as a bit mask,
+ * a set bit means pressed (the register itself is active low).
+ */
+public class Joypad {
+	public static final int RIGHT = 0x01;
+	public static final int LEFT = 0x02;
+	public static final int UP = 0x04;
+	public static final int DOWN = 0x08;
+	public static final int A = 0x10;
+	public static final int B = 0x20;
+	public static final int SELECT = 0x40;
+	public static final int START = 0x80;
+
+	private static final String[] NAMES = {"RIGHT", "LEFT", "UP", "DOWN", "A", "B", "SELECT", "START"};
+
+	private int buttons = 0;
+	private int select = 0x30; //bit 4 = directions, bit 5 = buttons, 0 selects
+
+	/**
+	 * owned by Memory, see Memory.getJoypad
+	 */
+	Joypad() {
+	}
+
+	public int read() {
+		int low = 0x0F;
+		if ((select & 0x10) == 0) low &= ~buttons & 0x0F;
+		if ((select & 0x20) == 0) low &= ~(buttons >> 4) & 0x0F;
+		return 0xC0 | select | low;
+	}
+
+	public void write(int value) {
+		select = value & 0x30;
+	}
+
+	/**
+	 * @param pressed mask of held buttons
+	 * @return true if a button went down, which raises the joypad interrupt
+	 */
+	public boolean setButtons(int pressed) {
+		int newlyPressed = pressed & ~buttons;
+		buttons = pressed & 0xFF;
+		return newlyPressed != 0;
+	}
+
+	public int getButtons() {
+		return buttons;
+	}
+
+	/**
+	 * @param names button names split by commas or '+', like "A+RIGHT", "-" or "" for none
+	 * @return the button mask
+	 */
+	public static int parse(String names) {
+		int mask = 0;
+		for (String name : names.toUpperCase().split("[,+]")) {
+			name = name.trim();
+			if (name.isEmpty() || name.equals("-") || name.equals("NONE")) continue;
+			int bit = -1;
+			for (int i = 0; i < NAMES.length; i++) {
+				if (NAMES[i].equals(name)) bit = i;
+			}
+			if (bit < 0) {
+				throw new IllegalArgumentException("Unknown button: " + name);
+			}
+			mask |= 1 << bit;
+		}
+		return mask;
+	}
+}
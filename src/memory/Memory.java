@@ -1,30 +1,102 @@
 package memory;
-import java.io.File;
-import java.io.FileInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntConsumer;
+import java.util.zip.CRC32C;
 
+/**
+ * The memory bus. Every 256 byte page of the address space has an entry in
+ * a read table and a write table pointing straight at its backing store:
+ * a ram array (the 64kb array or cartridge ram) plus the page's offset in it,
+ * or for reads a page of the mapped rom. Keeping to those two shapes leaves
+ * the access sites monomorphic. A page with neither is a handler page,
+ * those go through readSlow/writeSlow (MBC registers, disabled cartridge ram, I/O).
+ * Bank switches only swap page pointers.
+ *
+ * Ram pages holding cached code are turned into handler pages too, the first
+ * write to one hands it back and tells the cpu to drop its blocks. So is
+ * tile data (8000-97FF) once a PPU wants to hear about writes to it.
+ *
+ * Watched pages are handler pages as well, with their real mapping put aside
+ * so the handler can do the access and then tell the watch listener. Pages
+ * nobody watches keep the direct path.
+ */
 public class Memory {
-	private byte[] memory = new byte[0x10000]; //64kb of memory
-	
+	public static final int PAGE_SHIFT = 8;
+	public static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+	private static final int PAGE_COUNT = 0x10000 >> PAGE_SHIFT;
+
+	private final byte[] memory = new byte[0x10000]; //64kb of memory
+
+	//page tables, ram as array and offset, rom as a slice of the mapped image
+	private final byte[][] readRam = new byte[PAGE_COUNT][];
+	private final int[] readOffsets = new int[PAGE_COUNT];
+	private final ByteBuffer[] readRom = new ByteBuffer[PAGE_COUNT];
+	private final byte[][] writeRam = new byte[PAGE_COUNT][];
+	private final int[] writeOffsets = new int[PAGE_COUNT];
+
+	//mapped rom, null until a rom is loaded
+	private Cartridge cartridge;
+	private ExternalRam externalRam; //null if the cartridge has no ram
+	private boolean externalRamMapped = false;
+
 	private int romBank = 1;
 	private int ramBank = 0;
-	
+
 	private boolean ramEnabled = false;
 	private boolean bankingMode = false;
-	
+
 	private int mbcType = 0;
+
+	private final InterruptController interrupts = new InterruptController();
+	
+	//FF00-FF7F registers handled by other components, indexed by address & 0x7F
+	private final IoDevice[] io = new IoDevice[0x80];
+	private final List<IoDevice> devices = new ArrayList<>(); //each once, in the order they were mapped
+	private int deviceSignature; //CRC32C of the device class names in that order
+	private ByteBuffer hashBuffer; //save state bytes for checksum, grown on demand
+	private boolean stopped; //the cpu is in STOP, devices are frozen
 	
-	private int IE = 0;
-	private int IF= 0;
+	private IntConsumer tileWriteHook; //told about writes to 8000-97FF
+	private boolean oamBlocked; //OAM DMA in progress
+	private long bankSwitches; //rom bank mappings since power on, for monitoring
 	
+	//pages a debugger watches, and what they would be mapped to otherwise
+	private final boolean[] readWatched = new boolean[PAGE_COUNT];
+	private final boolean[] writeWatched = new boolean[PAGE_COUNT];
+	private final byte[][] watchedReadRam = new byte[PAGE_COUNT][];
+	private final int[] watchedReadOffsets = new int[PAGE_COUNT];
+	private final ByteBuffer[] watchedReadRom = new ByteBuffer[PAGE_COUNT];
+	private final byte[][] watchedWriteRam = new byte[PAGE_COUNT][];
+	private final int[] watchedWriteOffsets = new int[PAGE_COUNT];
+	private WatchListener watchListener;
+	
+	//ram pages the cpu has decoded code from, and who to tell when they are written
+	private final boolean[] codePages = new boolean[PAGE_COUNT];
+	private IntConsumer codeWriteHook;
+	private int codeEpoch = 0; //bumped whenever code the cpu may have decoded changes
+	
+	private final Joypad joypad = new Joypad();
+	private final ByteArrayOutputStream serialOutput = new ByteArrayOutputStream();
+
+	public Memory() {
+		mapPages();
+	}
+
 	public void loadROM(String filePath) {
-		try(FileInputStream fis = new FileInputStream(new File(filePath))) {
-			int bytesRead = fis.read(memory, 0x0000, Math.min(fis.available(), 0x8000));
-			System.out.println("Loaded " + bytesRead + " bytes into available memory.");
-			
-			mbcType = memory[0x0147] & 0xFF;
+		try {
+			cartridge = Cartridge.open(filePath);
+			System.out.println("Mapped " + cartridge.getSize() + " bytes (" + cartridge.getBankCount() + " banks) of " + cartridge.getTitle());
+
+			mbcType = cartridge.getType();
 			//detect MBC type at $0147;
-			
+
 			switch(mbcType) {
 			case 0x00:
 				System.out.println("ROM uses NO MBC (Simple 32kb ROM).");
@@ -39,94 +111,611 @@ public class Memory {
 				break;
 			default :
 				System.out.println("Unknown or unsupported MBC Type: " + Integer.toHexString(mbcType) + " is this a valid GB rom?");
-			} 
-			
+			}
+
+			romBank = 1;
+			ramBank = 0;
+			ramEnabled = false;
+			closeSave();
+			externalRam = cartridge.getRamSize() > 0 ? new ExternalRam(cartridge.getRamSize()) : null;
+			mapPages();
 		} catch (IOException e) {
 			System.err.println("Error loading ROM: " + e.getMessage());
 		}
 	}
+
+	public Cartridge getCartridge() {
+		return cartridge;
+	}
+	
+	/**
+	 * back the cartridge ram with a .sav file, its contents become the current ram.
+	 * only does something for battery backed carts, call after loadROM
+	 * @param savePath path to the .sav file, created if missing
+	 */
+	public void loadSave(String savePath) {
+		if (cartridge == null || externalRam == null || !cartridge.hasBattery()) {
+			return;
+		}
+		try {
+			ExternalRam mapped = ExternalRam.map(Paths.get(savePath), cartridge.getRamSize());
+			externalRam.close();
+			externalRam = mapped;
+			mapExternalRam();
+			System.out.println("Using save file " + savePath);
+		} catch (IOException e) {
+			System.err.println("Error loading save: " + e.getMessage());
+		}
+	}
 	
+	/**
+	 * flush and detach the .sav file, if there is one
+	 */
+	public void closeSave() {
+		if (externalRam != null) {
+			externalRam.close();
+		}
+	}
 	
+	public ExternalRam getExternalRam() {
+		return externalRam;
+	}
 	
-	public int read(int address) {
-		//handle IE and IF registers-
-		if (address == 0xFFFF) return IE;
-		if (address == 0xFF0F) return IF;
-		
-		//read bytes
-		if(address >= 0 && address < memory.length) {
-			return memory[address] & 0xFF;
-		} else if (address >= 0x4000 && address <= 0x7FFF) {
-			//banked rom header
-			int newAddress = (romBank * 0x4000) + (address - 0x4000);
-			return memory[newAddress] & 0xFF;
-		} else if (address >= 0xA000 && address <= 0xBFFF && ramEnabled) {
-			//banked ram read
-			int ramAddr = (ramBank * 0x2000) + (address - 0xA000);
-			return memory[ramAddr] & 0xFF;
+	/**
+	 * hand the registers first-last (inclusive) to a device
+	 */
+	public void mapIo(int first, int last, IoDevice device) {
+		for (int address = first; address <= last; address++) {
+			io[address & 0x7F] = device;
+		}
+		if (!devices.contains(device)) {
+			devices.add(device);
+			CRC32C crc = new CRC32C();
+			for (IoDevice mapped : devices) {
+				crc.update(mapped.getClass().getName().getBytes(StandardCharsets.UTF_8));
+			}
+			deviceSignature = (int) crc.getValue();
+		}
+	}
+	
+	/**
+	 * @return number of devices whose state goes into save states
+	 */
+	public int getDeviceCount() {
+		return devices.size();
+	}
+	
+	/**
+	 * @return hash of which devices are mapped and in what order, save states of another set don't fit
+	 */
+	public int getDeviceSignature() {
+		return deviceSignature;
+	}
+	
+	/**
+	 * freeze or restart the io devices for STOP
+	 */
+	public void setStopped(boolean value) {
+		if (value == stopped) {
+			return;
+		}
+		stopped = value;
+		for (IoDevice device : devices) {
+			if (value) {
+				device.stop();
+			} else {
+				device.resume();
+			}
+		}
+	}
+	
+	/**
+	 * @return the mapped devices by class name, in the order their state is saved
+	 */
+	public String getDeviceNames() {
+		StringBuilder names = new StringBuilder();
+		for (IoDevice device : devices) {
+			if (names.length() > 0) names.append(", ");
+			names.append(device.getClass().getSimpleName());
+		}
+		return names.toString();
+	}
+	
+	/**
+	 * route writes to tile data (8000-97FF) through the handler so the hook
+	 * hears about every one, used by the PPU to keep its decoded tiles fresh
+	 * @param hook called with the address after the byte is stored
+	 */
+	public void setTileWriteHook(IntConsumer hook) {
+		this.tileWriteHook = hook;
+		mapPages();
+	}
+	
+	/**
+	 * @return view of 8000-9FFF
+	 */
+	public ByteBuffer getVideoRam() {
+		return ByteBuffer.wrap(memory, 0x8000, 0x2000).slice();
+	}
+	
+	/**
+	 * @return view of the sprite attribute table, FE00-FE9F
+	 */
+	public ByteBuffer getOam() {
+		return ByteBuffer.wrap(memory, 0xFE00, 0xA0).slice();
+	}
+	
+	/**
+	 * OAM DMA, copy 160 bytes from source to FE00 in one go
+	 */
+	void copyToOam(int source) {
+		int page = source >>> PAGE_SHIFT;
+		if (readRam[page] != null && page < 0xFE) {
+			System.arraycopy(readRam[page], readOffsets[page], memory, 0xFE00, 0xA0);
+		} else if (readRom[page] != null) {
+			readRom[page].get(0, memory, 0xFE00, 0xA0);
+		} else {
+			for (int i = 0; i < 0xA0; i++) {
+				memory[0xFE00 + i] = (byte) read(source + i);
+			}
+		}
+	}
+
+	/**
+	 * while blocked, FE00-FEFF goes through the handler, reads return FF and writes are dropped
+	 */
+	void setOamBlocked(boolean blocked) {
+		oamBlocked = blocked;
+		mapRead(0xFE, blocked ? null : memory, 0xFE00, null);
+		mapWrite(0xFE, blocked ? null : memory, 0xFE00);
+	}
+
+	/**
+	 * @param listener told about every access to a watched page
+	 */
+	public void setWatchListener(WatchListener listener) {
+		this.watchListener = listener;
+	}
+	
+	/**
+	 * send a page's reads and/or writes through the watch listener, or stop doing so
+	 * @param page address >> PAGE_SHIFT
+	 */
+	public void watchPage(int page, boolean reads, boolean writes) {
+		if (reads != readWatched[page]) {
+			boolean was = readWatched[page];
+			byte[] ram = was ? watchedReadRam[page] : readRam[page];
+			int offset = was ? watchedReadOffsets[page] : readOffsets[page];
+			ByteBuffer rom = was ? watchedReadRom[page] : readRom[page];
+			readWatched[page] = reads;
+			watchedReadRam[page] = null;
+			watchedReadRom[page] = null;
+			mapRead(page, ram, offset, rom);
+		}
+		if (writes != writeWatched[page]) {
+			boolean was = writeWatched[page];
+			byte[] ram = was ? watchedWriteRam[page] : writeRam[page];
+			int offset = was ? watchedWriteOffsets[page] : writeOffsets[page];
+			writeWatched[page] = writes;
+			watchedWriteRam[page] = null;
+			mapWrite(page, ram, offset);
+		}
+	}
+	
+	/**
+	 * every page table entry is set through here and mapWrite, so watched
+	 * pages stay on the handler whatever gets mapped under them
+	 * @param ram array backing a ram page, or null
+	 * @param offset where the page starts in ram
+	 * @param rom rom page when ram is null, both null for a handler page
+	 */
+	private void mapRead(int page, byte[] ram, int offset, ByteBuffer rom) {
+		if (readWatched[page]) {
+			watchedReadRam[page] = ram;
+			watchedReadOffsets[page] = offset;
+			watchedReadRom[page] = rom;
+			readRam[page] = null;
+			readRom[page] = null;
+		} else {
+			readRam[page] = ram;
+			readOffsets[page] = offset;
+			readRom[page] = rom;
+		}
+	}
+	
+	private void mapWrite(int page, byte[] ram, int offset) {
+		if (writeWatched[page]) {
+			watchedWriteRam[page] = ram;
+			watchedWriteOffsets[page] = offset;
+			writeRam[page] = null;
+		} else {
+			writeRam[page] = ram;
+			writeOffsets[page] = offset;
+		}
+	}
+
+	/**
+	 * @return IE, IF and IME
+	 */
+	public InterruptController getInterrupts() {
+		return interrupts;
+	}
+	
+	/**
+	 * raise an interrupt source, sets its IF bit
+	 * @param bit 0 = VBlank, 1 = LCD, 2 = Timer, 3 = Serial, 4 = Joypad
+	 */
+	public void requestInterrupt(int bit) {
+		interrupts.request(bit);
+	}
+	
+	/**
+	 * @param hook called with the page number when a protected code page is written
+	 */
+	public void setCodeWriteHook(IntConsumer hook) {
+		this.codeWriteHook = hook;
+	}
+	
+	/**
+	 * trap writes to a C000-DFFF or FF80-FFFE page holding decoded code,
+	 * the hook fires once on the next write to it (echo ram included)
+	 */
+	public void protectCode(int page) {
+		codePages[page] = true;
+		mapWrite(page, null, 0);
+		if (page >= 0xC0 && page < 0xDE) {
+			mapWrite(page + 0x20, null, 0);
+		}
+	}
+	
+	private void releaseCode(int page) {
+		codePages[page] = false;
+		codeEpoch++;
+		if (page != 0xFF) {
+			mapWrite(page, memory, page << PAGE_SHIFT);
+			if (page >= 0xC0 && page < 0xDE) {
+				mapWrite(page + 0x20, memory, page << PAGE_SHIFT);
+			}
+		}
+		if (codeWriteHook != null) {
+			codeWriteHook.accept(page);
 		}
-		return 0xFF; // unmapped memory
 	}
 	
+	/**
+	 * @return counter that changes whenever the code seen at some address may have changed
+	 * (rom bank switch, write to a protected code page, state load)
+	 */
+	public int getCodeEpoch() {
+		return codeEpoch;
+	}
+	
+	/**
+	 * @return times the 4000-7FFF window was remapped since power on
+	 */
+	public long getBankSwitches() {
+		return bankSwitches;
+	}
+	
+	/**
+	 * @return bank mapped at 4000-7FFF
+	 */
+	public int getRomBank() {
+		return romBank;
+	}
+	
+	public Joypad getJoypad() {
+		return joypad;
+	}
+	
+	/**
+	 * update the held buttons, pressing a new one raises the joypad interrupt
+	 * @param buttons mask of Joypad button bits
+	 */
+	public void setButtons(int buttons) {
+		if (joypad.setButtons(buttons)) {
+			requestInterrupt(4);
+		}
+	}
+	
+	/**
+	 * @return every byte the game has sent out of the serial port so far
+	 */
+	public byte[] getSerialOutput() {
+		return serialOutput.toByteArray();
+	}
+	
+	/**
+	 * @return CRC32C over exactly what saveState writes: the 64kb array, interrupt registers,
+	 * banking, cartridge ram and io device state
+	 */
+	public long checksum() {
+		int size = memory.length + 0x400 + (externalRam == null ? 0 : externalRam.getSize() + 4);
+		if (hashBuffer == null || hashBuffer.capacity() < size) {
+			hashBuffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+		}
+		hashBuffer.clear();
+		saveState(hashBuffer);
+		CRC32C crc = new CRC32C();
+		crc.update(hashBuffer.flip());
+		return crc.getValue();
+	}
+	
+	/**
+	 * append the memory array, interrupt registers and banking state to a save state
+	 */
+	public void saveState(ByteBuffer out) {
+		out.put(memory);
+		out.put((byte) interrupts.getIE()).put((byte) interrupts.getIF());
+		out.putShort((short) romBank).put((byte) ramBank);
+		out.put((byte) (ramEnabled ? 1 : 0)).put((byte) (bankingMode ? 1 : 0));
+		out.put((byte) joypad.read());
+		if (externalRam != null) {
+			externalRam.saveState(out);
+		}
+		for (IoDevice device : devices) {
+			device.saveState(out);
+		}
+	}
+	
+	/**
+	 * read back what saveState wrote and rebuild the page tables
+	 */
+	public void loadState(ByteBuffer in) {
+		in.get(memory);
+		interrupts.setIE(in.get());
+		interrupts.setIF(in.get());
+		romBank = in.getShort() & 0xFFFF;
+		ramBank = in.get() & 0xFF;
+		ramEnabled = in.get() != 0;
+		bankingMode = in.get() != 0;
+		joypad.write(in.get());
+		if (externalRam != null) {
+			externalRam.loadState(in);
+		}
+		for (IoDevice device : devices) {
+			device.loadState(in);
+			if (stopped) {
+				device.stop();
+			}
+		}
+		mapPages();
+		//all of ram changed under any cached code
+		for (int page = 0; page < PAGE_COUNT; page++) {
+			if (codePages[page]) releaseCode(page);
+		}
+	}
+	
+	/**
+	 * build both page tables from scratch
+	 */
+	private void mapPages() {
+		for (int page = 0; page < PAGE_COUNT; page++) {
+			mapRead(page, memory, page << PAGE_SHIFT, null);
+			mapWrite(page, memory, page << PAGE_SHIFT);
+		}
+		//echo ram, E000-FDFF mirrors C000-DDFF
+		for (int page = 0xE0; page < 0xFE; page++) {
+			mapRead(page, memory, (page - 0x20) << PAGE_SHIFT, null);
+			mapWrite(page, memory, (page - 0x20) << PAGE_SHIFT);
+		}
+		//I/O, HRAM and IE
+		mapRead(0xFF, null, 0, null);
+		mapWrite(0xFF, null, 0);
+		if (oamBlocked) {
+			mapRead(0xFE, null, 0, null);
+			mapWrite(0xFE, null, 0);
+		}
+		if (tileWriteHook != null) {
+			for (int page = 0x80; page < 0x98; page++) {
+				mapWrite(page, null, 0);
+			}
+		}
+		for (int page = 0; page < PAGE_COUNT; page++) {
+			if (codePages[page]) protectCode(page);
+		}
+
+		if (cartridge != null) {
+			ByteBuffer[] bank0 = cartridge.pages(0);
+			for (int page = 0; page < Cartridge.PAGES_PER_BANK; page++) {
+				mapRead(page, null, 0, bank0[page]);
+			}
+			//rom writes are MBC register writes
+			for (int page = 0x00; page < 0x80; page++) {
+				mapWrite(page, null, 0);
+			}
+			mapRomBank();
+			mapExternalRam();
+		}
+	}
+
+	/**
+	 * point the switchable rom window at the current bank, no data is copied
+	 */
+	private void mapRomBank() {
+		codeEpoch++;
+		bankSwitches++;
+		ByteBuffer[] bank = cartridge.pages(romBank);
+		for (int page = 0; page < Cartridge.PAGES_PER_BANK; page++) {
+			mapRead(0x40 + page, null, 0, bank[page]);
+		}
+	}
+
+	/**
+	 * map reads of A000-BFFF to the selected ram bank, or to the handler while ram is disabled.
+	 * writes always take the handler so ExternalRam can track dirty pages
+	 */
+	private void mapExternalRam() {
+		externalRamMapped = externalRam != null && mbcType != 0 && ramEnabled && ramBank < 0x04;
+		for (int page = 0; page < 0x20; page++) {
+			if (externalRamMapped) {
+				mapRead(0xA0 + page, externalRam.getData(), externalRam.offset(ramBank, page), null);
+			} else {
+				mapRead(0xA0 + page, null, 0, null);
+			}
+			mapWrite(0xA0 + page, null, 0);
+		}
+	}
+
+	public int read(int address) {
+		int page = (address >>> PAGE_SHIFT) & 0xFF;
+		byte[] ram = readRam[page];
+		if (ram != null) {
+			return ram[readOffsets[page] + (address & 0xFF)] & 0xFF;
+		}
+		ByteBuffer rom = readRom[page];
+		if (rom != null) {
+			return rom.get(address & 0xFF) & 0xFF;
+		}
+		return readSlow(address & 0xFFFF);
+	}
+
 	public void write(int address, int value) {
-		//handle IE and IF registers-
-		if (address == 0xFFFF) IE = value & 0xFF;
-		if (address == 0xFF0F) IF = value & 0xFF;
-		
-		// RAM Enable Register
-		if (address >= 0x0000 && address <= 0x1FFF) {
-			ramEnabled = (value & 0x0F) == 0x0A;
-		} else if (address >= 0x2000 && address <= 0x3FFF) {
-			// ROM Bank select
-			romBank = value & 0x1F;
-			if (romBank == 0) romBank = 1; //bank 0 is == to 1 in MBC1
-		} else if (address >= 0x4000 && address <= 0x5FFF) {
-			//RAM Bank select OR Upper ROM Bank Bits
-			if (bankingMode) {
-				ramBank = value & 0x03; // 2-bit RAM Bank no.
+		int page = (address >>> PAGE_SHIFT) & 0xFF;
+		byte[] ram = writeRam[page];
+		if (ram != null) {
+			ram[writeOffsets[page] + (address & 0xFF)] = (byte) value;
+		} else {
+			writeSlow(address & 0xFFFF, value & 0xFF);
+		}
+	}
+
+	/**
+	 * read without the watch listener hearing about it, for debuggers and code decoding
+	 */
+	public int peek(int address) {
+		address &= 0xFFFF;
+		int page = address >>> PAGE_SHIFT;
+		boolean watched = readWatched[page];
+		byte[] ram = watched ? watchedReadRam[page] : readRam[page];
+		if (ram != null) {
+			return ram[(watched ? watchedReadOffsets[page] : readOffsets[page]) + (address & 0xFF)] & 0xFF;
+		}
+		ByteBuffer rom = watched ? watchedReadRom[page] : readRom[page];
+		if (rom != null) {
+			return rom.get(address & 0xFF) & 0xFF;
+		}
+		return readHandler(address);
+	}
+
+	private int readSlow(int address) {
+		if (readWatched[address >>> PAGE_SHIFT] && watchListener != null) {
+			int value = peek(address);
+			watchListener.read(address, value);
+			return value;
+		}
+		return readHandler(address);
+	}
+
+	private void writeSlow(int address, int value) {
+		int page = address >>> PAGE_SHIFT;
+		if (writeWatched[page] && watchListener != null) {
+			byte[] ram = watchedWriteRam[page];
+			if (ram != null) {
+				ram[watchedWriteOffsets[page] + (address & 0xFF)] = (byte) value;
 			} else {
-				romBank |= (value & 0x03) << 5; //extend ROM bank 
+				writeHandler(address, value);
 			}
-		} else if (address >= 0x6000 && address <= 0x7FFF) {
-			//Banking mode select
-			bankingMode = (value & 0x01) != 0;
-		} else if (address >= 0xA000 && address <= 0xBFFF && ramEnabled) {
-			//RAM bank write
-			int ramAddr = (ramBank * 0x2000) + (address - 0xA000);
-			memory[ramAddr] = (byte) value;
-		} 
-		
-		if(mbcType == 3) {
-			if(address >= 0x0000 && address <= 0x1FFF) {
-				//enable or disable ram
-				ramEnabled = (value & 0x0F) == 0x0A;
-			} else if (address >= 0x2000 && address <= 0x3FFF) {
+			watchListener.write(address, value);
+			return;
+		}
+		writeHandler(address, value);
+	}
+
+	private int readHandler(int address) {
+		if (address >= 0xFF00) {
+			//handle IE and IF registers-
+			if (address == 0xFFFF) return interrupts.getIE();
+			if (address == 0xFF0F) return interrupts.getIF();
+			if (address == 0xFF00) return joypad.read();
+			IoDevice device = address < 0xFF80 ? io[address & 0x7F] : null;
+			if (device != null) return device.read(address);
+			return memory[address] & 0xFF;
+		}
+		return 0xFF; // disabled cartridge ram, MBC3 RTC registers or OAM during DMA
+	}
+
+	private void writeHandler(int address, int value) {
+		if (address < 0x8000) {
+			writeMBC(address, value);
+		} else if (address < 0x9800) {
+			memory[address] = (byte) value;
+			tileWriteHook.accept(address);
+		} else if (address >= 0xFF00) {
+			//handle IE and IF registers-
+			if (address == 0xFFFF) {
+				interrupts.setIE(value);
+			} else if (address == 0xFF0F) {
+				interrupts.setIF(value);
+			} else if (address == 0xFF00) {
+				joypad.write(value);
+			} else if (address < 0xFF80 && io[address & 0x7F] != null) {
+				io[address & 0x7F].write(address, value);
+			} else if (address >= 0xFF80 && codePages[0xFF]) {
+				memory[address] = (byte) value;
+				releaseCode(0xFF);
+			} else if (address == 0xFF02 && (value & 0x81) == 0x81) {
+				//serial transfer on the internal clock, there is no link partner
+				//so the byte is captured and 0xFF shifted back in straight away
+				serialOutput.write(memory[0xFF01]);
+				memory[0xFF01] = (byte) 0xFF;
+				memory[0xFF02] = (byte) (value & 0x7F);
+				requestInterrupt(3);
+			} else {
+				memory[address] = (byte) value;
+			}
+		} else if (address >= 0xA000 && address <= 0xBFFF) {
+			if (externalRamMapped) {
+				externalRam.write(ramBank, address - 0xA000, value);
+			}
+			//writes to disabled cartridge ram are dropped
+		} else if (address >= 0xFE00) {
+			//OAM during DMA, the cpu cannot reach it
+		} else {
+			//protected code page, echo ram writes land in C000-DDFF
+			int target = address >= 0xE000 ? address - 0x2000 : address;
+			memory[target] = (byte) value;
+			releaseCode(target >>> PAGE_SHIFT);
+		}
+	}
+
+	/**
+	 * MBC register writes in the 0000-7FFF range
+	 */
+	private void writeMBC(int address, int value) {
+		if (mbcType == 0) return; //plain 32kb rom, nothing to switch
+
+		if (address <= 0x1FFF) {
+			// RAM Enable Register
+			ramEnabled = (value & 0x0F) == 0x0A;
+			mapExternalRam();
+		} else if (address <= 0x3FFF) {
+			if (mbcType == 3) {
 				//rom bank select (7bit, 0x01-0x7F)
 				romBank = value & 0x7F;
 				if (romBank == 0) romBank = 1;
-				System.out.println("MBC3 ROM Bank switched to: " + romBank);
-			} else if (address >= 0x4000 && address >= 0x5FFF) {
-				//Ram bank sel or RTC reg sel
+			} else {
+				// ROM Bank select, low 5 bits
+				int low = value & 0x1F;
+				if (low == 0) low = 1; //bank 0 is == to 1 in MBC1
+				romBank = (romBank & 0x60) | low;
+			}
+			mapRomBank();
+		} else if (address <= 0x5FFF) {
+			if (mbcType == 3) {
+				//Ram bank sel, 0x08-0x0C select the RTC registers
 				ramBank = value & 0x0F;
-				if (ramBank >= 0x08) {
-					System.out.println("MBC3 selected RTC register: " + ramBank);
-				} else {
-					System.out.println("MBC3 RAM Bank switched to: " + ramBank);
-				}
-			} else if (address >= 0x6000 && address <= 0x7FFF) {
-				//latch clock data - implement later
-				System.out.println("MBC3 RTC Latch: " + value);
-			} else if (address >= 0xA000 && address <= 0xBFFF && ramEnabled) {
-				int ramAddr = (ramBank * 0x2000) + (address - 0xA000);
-				memory[ramAddr] = (byte) value;
+				mapExternalRam();
+			} else if (bankingMode) {
+				ramBank = value & 0x03; // 2-bit RAM Bank no.
+				mapExternalRam();
+			} else {
+				romBank = (romBank & 0x1F) | ((value & 0x03) << 5); //extend ROM bank
+				mapRomBank();
 			}
-		}
-		
-		//edge case to default memory write-
-		else if(address >= 0 && address < memory.length) {
-			memory[address] = (byte) (value & 0xFF);
-		} else {
-			System.out.println("Invalid write access at address: " + Integer.toHexString(address) + " with write value: " + Integer.toHexString(value));
+		} else if (mbcType != 3) {
+			//Banking mode select, MBC3 uses this range to latch the RTC
+			bankingMode = (value & 0x01) != 0;
 		}
 	}
 }
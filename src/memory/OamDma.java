@@ -0,0 +1,70 @@
+package memory;
+import java.nio.ByteBuffer;
+
+import cpu.Scheduler;
+
+/**
+ * OAM DMA (FF46). The 160 bytes are copied in one go the moment the register
+ * is written, straight out of the source page's buffer. What the game can
+ * observe of the transfer is OAM being unreachable while it runs, so OAM
+ * reads as FF and ignores writes for the 640 cycles the hardware takes,
+ * ended by a scheduled event.
+ */
+public final class OamDma implements IoDevice {
+	public static final int CYCLES = 640; //160 bytes, one per M-cycle
+
+	private final Memory memory;
+	private final Scheduler scheduler;
+	private int source; //last value written, high byte of the source address
+
+	private final Scheduler.Event end = new Scheduler.Event() {
+		@Override
+		public void fire(long time) {
+			memory.setOamBlocked(false);
+		}
+	};
+
+	public OamDma(Memory memory, Scheduler scheduler) {
+		this.memory = memory;
+		this.scheduler = scheduler;
+		memory.mapIo(0xFF46, 0xFF46, this);
+	}
+
+	/**
+	 * @return true while a transfer is keeping the cpu out of OAM
+	 */
+	public boolean isActive() {
+		return end.isScheduled();
+	}
+
+	@Override
+	public int read(int address) {
+		return source;
+	}
+
+	@Override
+	public void write(int address, int value) {
+		source = value;
+		memory.copyToOam(value << 8);
+		memory.setOamBlocked(true);
+		scheduler.schedule(end, scheduler.now() + CYCLES);
+	}
+
+	@Override
+	public void saveState(ByteBuffer out) {
+		out.put((byte) source);
+		out.putShort((short) (isActive() ? end.getTime() - scheduler.now() : 0));
+	}
+
+	@Override
+	public void loadState(ByteBuffer in) {
+		source = in.get() & 0xFF;
+		int remaining = in.getShort();
+		memory.setOamBlocked(remaining > 0);
+		if (remaining > 0) {
+			scheduler.schedule(end, scheduler.now() + remaining);
+		} else {
+			scheduler.cancel(end);
+		}
+	}
+}
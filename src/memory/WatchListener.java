@@ -0,0 +1,18 @@
+package memory;
+
+/**
+ * Told about every access to a watched page, see Memory.watchPage.
+ * Pages are 256 bytes, narrowing it down to single addresses is up to the listener.
+ */
+public interface WatchListener {
+
+	/**
+	 * @param value the byte that was read
+	 */
+	void read(int address, int value);
+
+	/**
+	 * called after the byte was stored
+	 */
+	void write(int address, int value);
+}
@@ -5,4 +5,12 @@
  * 
  */
 module GBasm {
-}
\ No newline at end of file
+	requires java.management;
+	requires jdk.jfr;
+
+	//the debugger, profiler and monitor are handed a CPU and its Memory.
+	//Monitor is registered as a standard MBean, JMX introspects it reflectively
+	exports cpu;
+	exports memory;
+	exports debug;
+}
@@ -0,0 +1,278 @@
+package sound;
+import java.nio.ByteBuffer;
+
+import cpu.Scheduler;
+import memory.IoDevice;
+import memory.Memory;
+
+/**
+ * The four DMG sound channels behind NR10-NR52 and wave ram.
+ *
+ * Nothing runs per cycle. The channels are brought up to date in one batch
+ * whenever a register is written and on every frame sequencer step (512 Hz),
+ * which is also the only event the APU keeps scheduled. A batch produces the
+ * 44.1 kHz stereo samples for the cycles it covers and pushes them into an
+ * AudioRing for another thread to play or record. Without a ring the
+ * channels keep their registers, length counters and envelopes but no
+ * samples are made at all.
+ *
+ * usage: new APU(memory, cpu.getScheduler()).setOutput(new AudioRing(1 << 16))
+ */
+public class APU implements IoDevice {
+	public static final int SAMPLE_RATE = 44100;
+	public static final int CLOCK_RATE = 4194304; //T-cycles per second
+
+	private static final int SEQUENCER_CYCLES = CLOCK_RATE / 512;
+	private static final int BATCH = 1024; //stereo samples are flushed to the ring in blocks this size
+
+	//bits that read back as 1 in FF10-FF2F, the write only parts of each register
+	private static final int[] READ_MASKS = {
+			0x80, 0x3F, 0x00, 0xFF, 0xBF, //NR10-NR14
+			0xFF, 0x3F, 0x00, 0xFF, 0xBF, //NR20-NR24
+			0x7F, 0xFF, 0x9F, 0xFF, 0xBF, //NR30-NR34
+			0xFF, 0xFF, 0x00, 0x00, 0xBF, //NR40-NR44
+			0x00, 0x00, 0x70, //NR50-NR52
+			0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF //unused
+	};
+
+	private final Scheduler scheduler;
+
+	private final SquareChannel square1 = new SquareChannel(true);
+	private final SquareChannel square2 = new SquareChannel(false);
+	private final WaveChannel wave = new WaveChannel();
+	private final NoiseChannel noise = new NoiseChannel();
+	private final Channel[] channels = {square1, square2, wave, noise};
+
+	private final int[] registers = new int[0x20]; //FF10-FF2F as written
+	private boolean power = true;
+	private int sequencerStep;
+	private boolean stopped; //STOP halts the channels, samples keep coming as silence
+
+	private long lastUpdate; //clock the channels are up to date with
+	private long sampleCount; //samples made since sampleBase, sample n falls at cycle n * CLOCK_RATE / SAMPLE_RATE
+	private long sampleBase;
+
+	private AudioRing output;
+	private final short[] batch = new short[BATCH * 2];
+	private int batchSize;
+
+	private final Scheduler.Event sequencer = new Scheduler.Event() {
+		@Override
+		public void fire(long time) {
+			update(time);
+			stepSequencer();
+			flush();
+			scheduler.schedule(this, time + SEQUENCER_CYCLES);
+		}
+	};
+
+	public APU(Memory memory, Scheduler scheduler) {
+		this.scheduler = scheduler;
+		memory.mapIo(0xFF10, 0xFF3F, this);
+		//values after the boot rom
+		registers[0x14] = 0x77; //NR50
+		registers[0x15] = 0xF3; //NR51
+		lastUpdate = sampleBase = scheduler.now();
+		scheduler.schedule(sequencer, scheduler.now() + SEQUENCER_CYCLES);
+	}
+
+	/**
+	 * @param ring where samples go, interleaved left and right, or null to stop making them
+	 */
+	public APU setOutput(AudioRing ring) {
+		update(scheduler.now());
+		output = ring;
+		sampleBase = lastUpdate;
+		sampleCount = 0;
+		batchSize = 0;
+		return this;
+	}
+
+	/**
+	 * synthesize everything up to time and push it to the ring
+	 */
+	public void flush() {
+		update(scheduler.now());
+		if (batchSize > 0) {
+			output.offer(batch, 0, batchSize);
+			batchSize = 0;
+		}
+	}
+
+	/**
+	 * bring the channels up to time, making the samples that fall before it
+	 */
+	private void update(long time) {
+		if (output == null) {
+			lastUpdate = time;
+			return;
+		}
+		while (true) {
+			long sampleTime = sampleBase + (sampleCount + 1) * CLOCK_RATE / SAMPLE_RATE;
+			if (sampleTime > time) {
+				break;
+			}
+			advance((int) (sampleTime - lastUpdate));
+			lastUpdate = sampleTime;
+			sampleCount++;
+			mix();
+		}
+		advance((int) (time - lastUpdate));
+		lastUpdate = time;
+	}
+
+	private void advance(int cycles) {
+		if (cycles <= 0 || stopped) return;
+		for (Channel channel : channels) {
+			if (channel.enabled) {
+				channel.advance(cycles);
+			}
+		}
+	}
+
+	private void mix() {
+		int left = 0;
+		int right = 0;
+		if (power && !stopped) {
+			int panning = registers[0x15];
+			for (int i = 0; i < 4; i++) {
+				int sample = channels[i].output();
+				if ((panning & (0x10 << i)) != 0) left += sample;
+				if ((panning & (0x01 << i)) != 0) right += sample;
+			}
+			//4 channels of +-15 times a master volume of 1-8 stays inside 16 bits at 64x
+			left *= (((registers[0x14] >> 4) & 7) + 1) * 64;
+			right *= ((registers[0x14] & 7) + 1) * 64;
+		}
+		batch[batchSize++] = (short) left;
+		batch[batchSize++] = (short) right;
+		if (batchSize == batch.length) {
+			output.offer(batch, 0, batchSize);
+			batchSize = 0;
+		}
+	}
+
+	/**
+	 * 512 Hz: length at 256 Hz, sweep at 128 Hz, envelopes at 64 Hz
+	 */
+	private void stepSequencer() {
+		if (power) {
+			if ((sequencerStep & 1) == 0) {
+				for (Channel channel : channels) {
+					channel.clockLength();
+				}
+			}
+			if (sequencerStep == 2 || sequencerStep == 6) {
+				int frequency = square1.clockSweep();
+				if (frequency >= 0) {
+					registers[0x03] = frequency & 0xFF;
+					registers[0x04] = (registers[0x04] & ~0x07) | (frequency >> 8);
+				}
+			}
+			if (sequencerStep == 7) {
+				square1.clockEnvelope();
+				square2.clockEnvelope();
+				noise.clockEnvelope();
+			}
+		}
+		sequencerStep = (sequencerStep + 1) & 7;
+	}
+
+	@Override
+	public int read(int address) {
+		if (address >= 0xFF30) {
+			return wave.ram[address - 0xFF30] & 0xFF;
+		}
+		int index = address - 0xFF10;
+		if (address == 0xFF26) {
+			int status = power ? 0x80 : 0;
+			for (int i = 0; i < 4; i++) {
+				if (channels[i].enabled) status |= 1 << i;
+			}
+			return status | READ_MASKS[index];
+		}
+		return registers[index] | READ_MASKS[index];
+	}
+
+	@Override
+	public void write(int address, int value) {
+		update(scheduler.now());
+		if (address >= 0xFF30) {
+			wave.ram[address - 0xFF30] = (byte) value;
+			return;
+		}
+		int index = address - 0xFF10;
+		if (address == 0xFF26) {
+			boolean on = (value & 0x80) != 0;
+			if (power && !on) {
+				powerOff();
+			} else if (!power && on) {
+				sequencerStep = 0;
+			}
+			power = on;
+			return;
+		}
+		if (!power || index >= 0x17) {
+			return; //registers are read only while powered off
+		}
+		registers[index] = value;
+		if (index < 0x14) {
+			channels[index / 5].write(index % 5, value);
+		}
+	}
+
+	private void powerOff() {
+		for (int i = 0; i < 0x16; i++) {
+			registers[i] = 0;
+			if (i < 0x14) {
+				channels[i / 5].write(i % 5, 0);
+			}
+		}
+		for (Channel channel : channels) {
+			channel.enabled = false;
+		}
+	}
+
+	@Override
+	public void stop() {
+		update(scheduler.now());
+		stopped = true;
+		scheduler.cancel(sequencer);
+	}
+
+	@Override
+	public void resume() {
+		update(scheduler.now());
+		stopped = false;
+		scheduler.schedule(sequencer, scheduler.now() + SEQUENCER_CYCLES);
+	}
+
+	@Override
+	public void saveState(ByteBuffer out) {
+		update(scheduler.now());
+		for (int register : registers) {
+			out.put((byte) register);
+		}
+		out.put((byte) (power ? 1 : 0)).put((byte) sequencerStep);
+		for (Channel channel : channels) {
+			channel.saveState(out);
+		}
+		out.putLong(sequencer.getTime());
+	}
+
+	@Override
+	public void loadState(ByteBuffer in) {
+		for (int i = 0; i < registers.length; i++) {
+			registers[i] = in.get() & 0xFF;
+		}
+		power = in.get() != 0;
+		sequencerStep = in.get();
+		for (Channel channel : channels) {
+			channel.loadState(in);
+		}
+		scheduler.schedule(sequencer, in.getLong());
+		//start the sample clock over from the restored time
+		lastUpdate = sampleBase = scheduler.now();
+		sampleCount = 0;
+	}
+}
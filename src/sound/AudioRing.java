@@ -0,0 +1,79 @@
+package sound;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single producer, single consumer ring of 16 bit samples between the
+ * emulation thread and whatever plays or records them. Neither side ever
+ * waits: the producer drops what does not fit, the consumer takes what is
+ * there. Each side only reads the other's index when its own cached copy
+ * says the ring looks full (or empty).
+ */
+public final class AudioRing {
+	private final short[] samples;
+	private final int mask;
+
+	private final AtomicLong written = new AtomicLong(); //advanced by the producer only
+	private final AtomicLong read = new AtomicLong(); //advanced by the consumer only
+
+	private long readCache; //producer's last look at read
+	private long writtenCache; //consumer's last look at written
+
+	private long dropped;
+
+	/**
+	 * @param capacity in samples, rounded up to a power of two
+	 */
+	public AudioRing(int capacity) {
+		int size = capacity <= 2 ? 2 : Integer.highestOneBit(capacity - 1) << 1;
+		samples = new short[size];
+		mask = size - 1;
+	}
+
+	public int capacity() {
+		return samples.length;
+	}
+
+	/**
+	 * producer side, copy in as many samples as fit
+	 * @return samples taken, the rest are counted as dropped
+	 */
+	public int offer(short[] source, int offset, int count) {
+		long head = written.getPlain();
+		if (head + count - readCache > samples.length) {
+			readCache = read.getAcquire();
+		}
+		int fits = (int) Math.min(count, samples.length - (head - readCache));
+		int index = (int) (head & mask);
+		int first = Math.min(fits, samples.length - index);
+		System.arraycopy(source, offset, samples, index, first);
+		System.arraycopy(source, offset + first, samples, 0, fits - first);
+		written.setRelease(head + fits);
+		dropped += count - fits;
+		return fits;
+	}
+
+	/**
+	 * consumer side, copy out whatever is there up to count samples
+	 * @return samples copied, 0 if the ring is empty
+	 */
+	public int poll(short[] target, int offset, int count) {
+		long tail = read.getPlain();
+		if (writtenCache - tail < count) {
+			writtenCache = written.getAcquire();
+		}
+		int available = (int) Math.min(count, writtenCache - tail);
+		int index = (int) (tail & mask);
+		int first = Math.min(available, samples.length - index);
+		System.arraycopy(samples, index, target, offset, first);
+		System.arraycopy(samples, 0, target, offset + first, available - first);
+		read.setRelease(tail + available);
+		return available;
+	}
+
+	/**
+	 * @return samples the producer had to throw away, read from the producer thread
+	 */
+	public long getDropped() {
+		return dropped;
+	}
+}
@@ -0,0 +1,111 @@
+package sound;
+import java.nio.ByteBuffer;
+
+/**
+ * What the four channels have in common: the length counter, the volume
+ * envelope (unused by the wave channel) and the frequency timer. Timers are
+ * only advanced in bulk, by however many cycles passed since the last sample.
+ */
+abstract class Channel {
+	boolean enabled; //NR52 status bit
+	boolean dacOn;
+
+	int length; //length counter, counts down at 256 Hz
+	boolean lengthEnabled;
+	final int maxLength;
+
+	int volume;
+	int envelopeVolume; //initial volume from NRx2
+	boolean envelopeUp;
+	int envelopePeriod;
+	int envelopeTimer;
+
+	int timer; //cycles until the next waveform step
+
+	Channel(int maxLength) {
+		this.maxLength = maxLength;
+	}
+
+	/**
+	 * @param register 0-4 for NRx0-NRx4
+	 */
+	abstract void write(int register, int value);
+
+	/**
+	 * run the frequency timer forward
+	 */
+	abstract void advance(int cycles);
+
+	/**
+	 * @return current amplitude, -15 to 15, 0 when the channel is off
+	 */
+	abstract int output();
+
+	void trigger() {
+		enabled = dacOn;
+		if (length == 0) {
+			length = maxLength;
+		}
+		volume = envelopeVolume;
+		envelopeTimer = envelopePeriod;
+	}
+
+	void writeLength(int value) {
+		length = maxLength - value;
+	}
+
+	void writeEnvelope(int value) {
+		envelopeVolume = value >> 4;
+		envelopeUp = (value & 0x08) != 0;
+		envelopePeriod = value & 0x07;
+		dacOn = (value & 0xF8) != 0;
+		if (!dacOn) {
+			enabled = false;
+		}
+	}
+
+	/**
+	 * NRx4 bits 6 and 7, shared by every channel
+	 */
+	void writeControl(int value) {
+		lengthEnabled = (value & 0x40) != 0;
+		if ((value & 0x80) != 0) {
+			trigger();
+		}
+	}
+
+	void clockLength() {
+		if (lengthEnabled && length > 0 && --length == 0) {
+			enabled = false;
+		}
+	}
+
+	void clockEnvelope() {
+		if (envelopePeriod != 0 && --envelopeTimer <= 0) {
+			envelopeTimer = envelopePeriod;
+			if (envelopeUp && volume < 15) volume++;
+			else if (!envelopeUp && volume > 0) volume--;
+		}
+	}
+
+	void saveState(ByteBuffer out) {
+		out.put((byte) ((enabled ? 1 : 0) | (dacOn ? 2 : 0) | (lengthEnabled ? 4 : 0) | (envelopeUp ? 8 : 0)));
+		out.putShort((short) length);
+		out.put((byte) volume).put((byte) envelopeVolume).put((byte) envelopePeriod).put((byte) envelopeTimer);
+		out.putInt(timer);
+	}
+
+	void loadState(ByteBuffer in) {
+		int flags = in.get();
+		enabled = (flags & 1) != 0;
+		dacOn = (flags & 2) != 0;
+		lengthEnabled = (flags & 4) != 0;
+		envelopeUp = (flags & 8) != 0;
+		length = in.getShort();
+		volume = in.get();
+		envelopeVolume = in.get();
+		envelopePeriod = in.get();
+		envelopeTimer = in.get();
+		timer = in.getInt();
+	}
+}
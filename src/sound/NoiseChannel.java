@@ -0,0 +1,77 @@
+package sound;
+import java.nio.ByteBuffer;
+
+/**
+ * Channel 4, white noise from a 15 (or 7) bit linear feedback shift register.
+ */
+final class NoiseChannel extends Channel {
+	private static final int[] DIVISORS = {8, 16, 32, 48, 64, 80, 96, 112};
+
+	private int clockShift;
+	private boolean narrow; //7 bit mode
+	private int divisor;
+	private int lfsr = 0x7FFF;
+
+	NoiseChannel() {
+		super(64);
+	}
+
+	private int period() {
+		return DIVISORS[divisor] << clockShift;
+	}
+
+	@Override
+	void write(int register, int value) {
+		switch (register) {
+		case 1: writeLength(value & 0x3F); break;
+		case 2: writeEnvelope(value); break;
+		case 3:
+			clockShift = value >> 4;
+			narrow = (value & 0x08) != 0;
+			divisor = value & 0x07;
+			break;
+		case 4: writeControl(value); break;
+		}
+	}
+
+	@Override
+	void trigger() {
+		super.trigger();
+		timer = period();
+		lfsr = 0x7FFF;
+	}
+
+	@Override
+	void advance(int cycles) {
+		timer -= cycles;
+		while (timer <= 0) {
+			timer += period();
+			int bit = (lfsr ^ (lfsr >> 1)) & 1;
+			lfsr = (lfsr >> 1) | (bit << 14);
+			if (narrow) {
+				lfsr = (lfsr & ~0x40) | (bit << 6);
+			}
+		}
+	}
+
+	@Override
+	int output() {
+		if (!enabled) return 0;
+		return (lfsr & 1) == 0 ? volume : -volume;
+	}
+
+	@Override
+	void saveState(ByteBuffer out) {
+		super.saveState(out);
+		out.put((byte) clockShift).put((byte) (narrow ? 1 : 0)).put((byte) divisor).putShort((short) lfsr);
+	}
+
+	@Override
+	void loadState(ByteBuffer in) {
+		super.loadState(in);
+		clockShift = in.get();
+		narrow = in.get() != 0;
+		divisor = in.get();
+		lfsr = in.getShort();
+	}
+}
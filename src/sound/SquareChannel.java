@@ -0,0 +1,140 @@
+package sound;
+import java.nio.ByteBuffer;
+
+/**
+ * Channels 1 and 2, a square wave with four duty cycles. Channel 1 also has
+ * the frequency sweep.
+ */
+final class SquareChannel extends Channel {
+	//one row per duty setting, 12.5%, 25%, 50% and 75%
+	private static final int[] DUTY = {0b00000001, 0b10000001, 0b10000111, 0b01111110};
+
+	private final boolean hasSweep;
+
+	private int duty;
+	private int frequency; //11 bits from NRx3 and NRx4
+	private int position; //step in the duty cycle, 0-7
+
+	private int sweepPeriod;
+	private boolean sweepDown;
+	private int sweepShift;
+	private int sweepTimer;
+	private boolean sweepEnabled;
+	private int shadowFrequency;
+
+	SquareChannel(boolean hasSweep) {
+		super(64);
+		this.hasSweep = hasSweep;
+	}
+
+	private int period() {
+		return (2048 - frequency) * 4;
+	}
+
+	@Override
+	void write(int register, int value) {
+		switch (register) {
+		case 0:
+			sweepPeriod = (value >> 4) & 0x07;
+			sweepDown = (value & 0x08) != 0;
+			sweepShift = value & 0x07;
+			break;
+		case 1:
+			duty = value >> 6;
+			writeLength(value & 0x3F);
+			break;
+		case 2: writeEnvelope(value); break;
+		case 3: frequency = (frequency & 0x700) | value; break;
+		case 4:
+			frequency = (frequency & 0xFF) | ((value & 0x07) << 8);
+			writeControl(value);
+			break;
+		}
+	}
+
+	@Override
+	void trigger() {
+		super.trigger();
+		timer = period();
+		if (hasSweep) {
+			shadowFrequency = frequency;
+			sweepTimer = sweepPeriod != 0 ? sweepPeriod : 8;
+			sweepEnabled = sweepPeriod != 0 || sweepShift != 0;
+			if (sweepShift != 0) {
+				sweep(); //overflow check only
+			}
+		}
+	}
+
+	/**
+	 * @return the next sweep frequency, disables the channel when it overflows
+	 */
+	private int sweep() {
+		int delta = shadowFrequency >> sweepShift;
+		int next = sweepDown ? shadowFrequency - delta : shadowFrequency + delta;
+		if (next > 2047) {
+			enabled = false;
+		}
+		return next;
+	}
+
+	/**
+	 * 128 Hz step from the frame sequencer
+	 * @return the new frequency if the sweep changed it, -1 otherwise
+	 */
+	int clockSweep() {
+		if (!hasSweep || --sweepTimer > 0) {
+			return -1;
+		}
+		sweepTimer = sweepPeriod != 0 ? sweepPeriod : 8;
+		if (!sweepEnabled || sweepPeriod == 0) {
+			return -1;
+		}
+		int next = sweep();
+		if (next > 2047 || sweepShift == 0) {
+			return -1;
+		}
+		shadowFrequency = frequency = next;
+		sweep();
+		return next;
+	}
+
+	@Override
+	void advance(int cycles) {
+		timer -= cycles;
+		if (timer <= 0) {
+			int period = period();
+			int steps = -timer / period + 1;
+			timer += steps * period;
+			position = (position + steps) & 7;
+		}
+	}
+
+	@Override
+	int output() {
+		if (!enabled) return 0;
+		return (DUTY[duty] >> (7 - position) & 1) != 0 ? volume : -volume;
+	}
+
+	@Override
+	void saveState(ByteBuffer out) {
+		super.saveState(out);
+		out.put((byte) duty).putShort((short) frequency).put((byte) position);
+		out.put((byte) sweepPeriod).put((byte) (sweepDown ? 1 : 0)).put((byte) sweepShift).put((byte) sweepTimer);
+		out.put((byte) (sweepEnabled ? 1 : 0)).putShort((short) shadowFrequency);
+	}
+
+	@Override
+	void loadState(ByteBuffer in) {
+		super.loadState(in);
+		duty = in.get();
+		frequency = in.getShort();
+		position = in.get();
+		sweepPeriod = in.get();
+		sweepDown = in.get() != 0;
+		sweepShift = in.get();
+		sweepTimer = in.get();
+		sweepEnabled = in.get() != 0;
+		shadowFrequency = in.getShort();
+	}
+}
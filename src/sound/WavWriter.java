@@ -0,0 +1,104 @@
+package sound;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Consumer for headless runs: drains an AudioRing on its own thread into a
+ * 16 bit stereo PCM .wav file. The sizes in the header are filled in on close.
+ */
+public class WavWriter implements Closeable {
+	private static final int HEADER_SIZE = 44;
+	private static final long IDLE_NANOS = 2_000_000; //wait when the ring is empty
+
+	private final AudioRing ring;
+	private final FileChannel file;
+	private final Thread thread;
+	private volatile boolean running = true;
+
+	private final short[] chunk = new short[4096];
+	private final ByteBuffer bytes = ByteBuffer.allocate(chunk.length * 2).order(ByteOrder.LITTLE_ENDIAN);
+	private long dataSize;
+	private IOException failure;
+
+	public WavWriter(AudioRing ring, Path path) throws IOException {
+		this.ring = ring;
+		this.file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		file.write(header(0));
+		thread = new Thread(this::drainLoop, "wav-writer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void drainLoop() {
+		try {
+			while (running) {
+				if (drain() == 0) {
+					LockSupport.parkNanos(IDLE_NANOS);
+				}
+			}
+			while (drain() > 0) {
+				//whatever the producer left before close
+			}
+		} catch (IOException e) {
+			failure = e;
+		}
+	}
+
+	/**
+	 * @return samples written
+	 */
+	private int drain() throws IOException {
+		int count = ring.poll(chunk, 0, chunk.length);
+		if (count > 0) {
+			bytes.clear();
+			bytes.asShortBuffer().put(chunk, 0, count);
+			bytes.limit(count * 2);
+			while (bytes.hasRemaining()) {
+				file.write(bytes);
+			}
+			dataSize += count * 2;
+		}
+		return count;
+	}
+
+	private static ByteBuffer header(long dataSize) {
+		int channels = 2;
+		int rate = APU.SAMPLE_RATE;
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(0x46464952).putInt((int) (36 + dataSize)).putInt(0x45564157); //"RIFF" size "WAVE"
+		header.putInt(0x20746D66).putInt(16).putShort((short) 1).putShort((short) channels); //"fmt " PCM
+		header.putInt(rate).putInt(rate * channels * 2).putShort((short) (channels * 2)).putShort((short) 16);
+		header.putInt(0x61746164).putInt((int) dataSize); //"data"
+		return header.flip();
+	}
+
+	/**
+	 * stop after draining what the producer already wrote, then fix up the header.
+	 * Call from the producer thread once it stopped producing
+	 */
+	@Override
+	public void close() throws IOException {
+		running = false;
+		LockSupport.unpark(thread);
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		try {
+			if (failure != null) {
+				throw failure;
+			}
+			file.write(header(dataSize), 0);
+		} finally {
+			file.close();
+		}
+	}
+}
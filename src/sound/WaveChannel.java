@@ -0,0 +1,84 @@
+package sound;
+import java.nio.ByteBuffer;
+
+/**
+ * Channel 3, plays the 32 four bit samples in wave ram (FF30-FF3F).
+ */
+final class WaveChannel extends Channel {
+	final byte[] ram = new byte[16];
+
+	private int shift = 4; //NR32 volume as a right shift, 4 mutes
+	private int frequency;
+	private int position; //sample index, 0-31
+
+	WaveChannel() {
+		super(256);
+	}
+
+	private int period() {
+		return (2048 - frequency) * 2;
+	}
+
+	@Override
+	void write(int register, int value) {
+		switch (register) {
+		case 0:
+			dacOn = (value & 0x80) != 0;
+			if (!dacOn) {
+				enabled = false;
+			}
+			break;
+		case 1: writeLength(value); break;
+		case 2:
+			int code = (value >> 5) & 0x03;
+			shift = code == 0 ? 4 : code - 1;
+			break;
+		case 3: frequency = (frequency & 0x700) | value; break;
+		case 4:
+			frequency = (frequency & 0xFF) | ((value & 0x07) << 8);
+			writeControl(value);
+			break;
+		}
+	}
+
+	@Override
+	void trigger() {
+		super.trigger();
+		timer = period();
+		position = 0;
+	}
+
+	@Override
+	void advance(int cycles) {
+		timer -= cycles;
+		if (timer <= 0) {
+			int period = period();
+			int steps = -timer / period + 1;
+			timer += steps * period;
+			position = (position + steps) & 31;
+		}
+	}
+
+	@Override
+	int output() {
+		if (!enabled) return 0;
+		int sample = ram[position >> 1];
+		sample = (position & 1) == 0 ? (sample >> 4) & 0x0F : sample & 0x0F;
+		return ((sample >> shift) << 1) - (15 >> shift);
+	}
+
+	@Override
+	void saveState(ByteBuffer out) {
+		super.saveState(out);
+		out.put(ram).put((byte) shift).putShort((short) frequency).put((byte) position);
+	}
+
+	@Override
+	void loadState(ByteBuffer in) {
+		super.loadState(in);
+		in.get(ram);
+		shift = in.get();
+		frequency = in.getShort();
+		position = in.get();
+	}
+}
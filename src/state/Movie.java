@@ -0,0 +1,257 @@
+package state;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import cpu.CPU;
+import memory.Memory;
+
+/**
+ * Joypad input per frame from power on, written as it is played and read back
+ * as it is replayed, so neither side holds the whole movie in memory.
+ * Every hashInterval frames the recorder also writes the cpu's state hash,
+ * which the player compares against to catch the first frame a replay
+ * stops matching the recording.
+ *
+ * layout: magic "GBMV" | version | rom checksum | hash interval, then records:
+ * 1 frames buttons (a run of frames with the same buttons), 2 frame hash, 0 end.
+ * Counts are varints, the header ints and hashes are big endian.
+ */
+public final class Movie {
+	public static final int MAGIC = 0x47424D56; //"GBMV"
+	public static final int VERSION = 2;
+
+	private static final int END = 0;
+	private static final int INPUT = 1;
+	private static final int HASH = 2;
+
+	private Movie() {
+	}
+
+	private static int romChecksum(Memory memory) {
+		return memory.getCartridge() == null ? 0 : memory.getCartridge().getChecksum();
+	}
+
+	/**
+	 * usage: setButtons, runFrame, then frame(buttons, cpu) for every frame, close at the end
+	 */
+	public static class Recorder implements Closeable {
+		private final DataOutputStream out;
+		private final int hashInterval;
+		private int frame; //frames recorded so far
+		private int runButtons = -1;
+		private int runLength;
+
+		/**
+		 * @param hashInterval frames between state hashes, 0 for none
+		 */
+		public Recorder(Path file, Memory memory, int hashInterval) throws IOException {
+			this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)));
+			this.hashInterval = hashInterval;
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(romChecksum(memory));
+			writeVarint(out, hashInterval);
+		}
+
+		/**
+		 * record a frame that was just run
+		 * @param buttons the buttons held during it
+		 */
+		public void frame(int buttons, CPU cpu) throws IOException {
+			if (buttons != runButtons) {
+				flushRun();
+				runButtons = buttons;
+			}
+			runLength++;
+			frame++;
+			if (hashInterval > 0 && frame % hashInterval == 0) {
+				flushRun();
+				out.writeByte(HASH);
+				writeVarint(out, frame);
+				out.writeLong(cpu.stateHash());
+			}
+		}
+
+		public int getFrames() {
+			return frame;
+		}
+
+		private void flushRun() throws IOException {
+			if (runLength > 0) {
+				out.writeByte(INPUT);
+				writeVarint(out, runLength);
+				out.writeByte(runButtons);
+				runLength = 0;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			flushRun();
+			out.writeByte(END);
+			out.close();
+		}
+	}
+
+	/**
+	 * usage: while hasNext, setButtons(nextButtons()), runFrame, then check(cpu)
+	 */
+	public static class Player implements Closeable {
+		private final DataInputStream in;
+		private final int hashInterval;
+		private int frame; //frames handed out so far
+		private int runButtons;
+		private int runLeft;
+		private boolean ended;
+
+		private int hashFrame = -1; //frame of the next hash to compare
+		private long hash;
+		private int checked;
+		private int divergedAt = -1;
+
+		/**
+		 * @throws IllegalStateException if the file is not a movie or was recorded on another rom
+		 */
+		public Player(Path file, Memory memory) throws IOException {
+			InputStream stream = new BufferedInputStream(Files.newInputStream(file));
+			this.in = new DataInputStream(stream);
+			try {
+				if (in.readInt() != MAGIC) {
+					throw new IllegalStateException("Not a movie: " + file);
+				}
+				int version = in.readInt();
+				if (version != VERSION) {
+					throw new IllegalStateException("Unsupported movie version " + version);
+				}
+				int checksum = in.readInt();
+				if (checksum != romChecksum(memory)) {
+					throw new IllegalStateException("Movie is for a different rom (checksum " + Integer.toHexString(checksum) + ")");
+				}
+				hashInterval = readVarint(in);
+				readRecords();
+			} catch (IOException | RuntimeException e) {
+				in.close();
+				throw e;
+			}
+		}
+
+		public boolean hasNext() {
+			return runLeft > 0;
+		}
+
+		/**
+		 * @return buttons for the next frame
+		 */
+		public int nextButtons() {
+			runLeft--;
+			frame++;
+			return runButtons;
+		}
+
+		/**
+		 * compare against the recording after the frame from nextButtons was run
+		 * @return false if this frame's hash differs from the recorded one
+		 */
+		public boolean check(CPU cpu) throws IOException {
+			if (runLeft == 0) {
+				readRecords();
+			}
+			if (frame != hashFrame) {
+				return true;
+			}
+			checked++;
+			hashFrame = -1;
+			if (cpu.stateHash() == hash) {
+				return true;
+			}
+			if (divergedAt < 0) {
+				divergedAt = frame;
+			}
+			return false;
+		}
+
+		/**
+		 * read up to the next run of input, picking up the hash in front of it
+		 */
+		private void readRecords() throws IOException {
+			while (runLeft == 0 && !ended) {
+				int type;
+				try {
+					type = in.readUnsignedByte();
+				} catch (EOFException e) {
+					type = END; //recording cut short, play what there is
+				}
+				switch (type) {
+				case INPUT:
+					runLeft = readVarint(in);
+					runButtons = in.readUnsignedByte();
+					break;
+				case HASH:
+					hashFrame = readVarint(in);
+					hash = in.readLong();
+					break;
+				case END:
+					ended = true;
+					break;
+				default:
+					throw new IOException("Bad movie record " + type);
+				}
+			}
+		}
+
+		public int getFrame() {
+			return frame;
+		}
+
+		public int getHashInterval() {
+			return hashInterval;
+		}
+
+		/**
+		 * @return hashes compared so far
+		 */
+		public int getChecked() {
+			return checked;
+		}
+
+		/**
+		 * @return first frame whose hash did not match, -1 if the replay is in sync
+		 */
+		public int getDivergedAt() {
+			return divergedAt;
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+
+	private static void writeVarint(OutputStream out, int value) throws IOException {
+		while ((value & ~0x7F) != 0) {
+			out.write((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+
+	private static int readVarint(DataInputStream in) throws IOException {
+		int value = 0;
+		for (int shift = 0; ; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+	}
+}
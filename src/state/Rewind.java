@@ -0,0 +1,242 @@
+package state;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import cpu.CPU;
+import memory.Memory;
+
+/**
+ * Rewind history in a fixed amount of memory. Every interval frames the
+ * machine is captured as a SaveState and stored as the XOR of it and the
+ * capture before, run length encoded. Most of the 64kb does not change in
+ * a second of play, so an entry is usually a few kb of zero runs.
+ *
+ * Only the newest capture is kept whole. Entries are backward deltas, so
+ * stepping back is one decode and XOR each, and when the ring is full the
+ * oldest entries are simply dropped.
+ *
+ * usage: call frame(cpu, memory) after every frame, rewind(cpu, memory) to step back
+ */
+public class Rewind {
+	private final int interval;
+	private int frameCount;
+
+	private final SaveState scratch = new SaveState();
+	private byte[] latest = new byte[0]; //newest capture, whole
+	private int latestLength = -1; //-1 when there is nothing to go back to
+	private byte[] current = new byte[0];
+	private byte[] encoded = new byte[0];
+
+	//ring of encoded deltas, entry i turns capture i back into capture i - 1
+	private final byte[] ring;
+	private int[] starts = new int[64];
+	private int[] lengths = new int[64];
+	private int first; //index of the oldest entry in starts
+	private int count;
+	private int used; //bytes of ring in use
+
+	/**
+	 * @param interval frames between captures
+	 * @param capacity bytes for the encoded history, the newest capture is kept on top of it
+	 */
+	public Rewind(int interval, int capacity) {
+		this.interval = interval;
+		this.ring = new byte[capacity];
+	}
+
+	/**
+	 * count a frame and capture if one is due
+	 */
+	public void frame(CPU cpu, Memory memory) {
+		if (++frameCount >= interval) {
+			frameCount = 0;
+			capture(cpu, memory);
+		}
+	}
+
+	/**
+	 * capture right now and push the previous capture back into the history
+	 */
+	public void capture(CPU cpu, Memory memory) {
+		scratch.capture(cpu, memory);
+		ByteBuffer data = scratch.getData();
+		int length = data.remaining();
+		if (current.length < length) {
+			current = new byte[length];
+		}
+		data.get(current, 0, length);
+		if (latestLength >= 0) {
+			push(encode(current, length, latest, latestLength));
+		}
+		byte[] swap = latest;
+		latest = current;
+		current = swap;
+		latestLength = length;
+	}
+
+	/**
+	 * put the machine back to the newest capture and drop it, so the next call
+	 * goes further back
+	 * @return false if there is nothing left to rewind to
+	 */
+	public boolean rewind(CPU cpu, Memory memory) {
+		if (latestLength < 0) {
+			return false;
+		}
+		scratch.setData(ByteBuffer.wrap(latest, 0, latestLength));
+		scratch.restore(cpu, memory);
+		frameCount = 0;
+		if (count > 0) {
+			count--;
+			int index = (first + count) % starts.length;
+			latestLength = decode(starts[index]);
+			used -= lengths[index];
+		} else {
+			latestLength = -1;
+		}
+		return true;
+	}
+
+	/**
+	 * @return captures that rewind can still go back to
+	 */
+	public int size() {
+		return latestLength < 0 ? 0 : count + 1;
+	}
+
+	/**
+	 * @return bytes of history in use, not counting the newest capture
+	 */
+	public int bytesUsed() {
+		return used;
+	}
+
+	public void clear() {
+		latestLength = -1;
+		count = 0;
+		used = 0;
+		frameCount = 0;
+	}
+
+	/**
+	 * XOR of two captures as (zero run, literal count, literal bytes) triples of varints,
+	 * preceded by the older capture's length
+	 * @return encoded length, the bytes are in encoded
+	 */
+	private int encode(byte[] newer, int newerLength, byte[] older, int olderLength) {
+		int length = Math.max(newerLength, olderLength);
+		//worst case is all literals, plus headers
+		if (encoded.length < length + length / 64 + 16) {
+			encoded = new byte[length + length / 64 + 16];
+		}
+		int out = putVarint(encoded, 0, olderLength);
+		int i = 0;
+		while (i < length) {
+			int zeros = i;
+			while (i < length && xor(newer, newerLength, older, olderLength, i) == 0) i++;
+			zeros = i - zeros;
+			int literal = i;
+			//a literal run ends at the first pair of zero bytes, single zeros are cheaper inline
+			while (i < length && (xor(newer, newerLength, older, olderLength, i) != 0
+					|| (i + 1 < length && xor(newer, newerLength, older, olderLength, i + 1) != 0))) {
+				i++;
+			}
+			int literals = i - literal;
+			out = putVarint(encoded, out, zeros);
+			out = putVarint(encoded, out, literals);
+			for (int j = literal; j < i; j++) {
+				encoded[out++] = (byte) xor(newer, newerLength, older, olderLength, j);
+			}
+		}
+		return out;
+	}
+
+	private static int xor(byte[] a, int aLength, byte[] b, int bLength, int i) {
+		return (i < aLength ? a[i] : 0) ^ (i < bLength ? b[i] : 0);
+	}
+
+	/**
+	 * apply the entry at start of the ring to latest in place
+	 * @return length of the capture latest now holds
+	 */
+	private int decode(int start) {
+		int[] position = {start};
+		int length = getVarint(position);
+		int limit = Math.max(length, latestLength);
+		if (latest.length < limit) {
+			latest = Arrays.copyOf(latest, limit);
+		}
+		int i = 0;
+		while (i < limit) {
+			i += getVarint(position);
+			int literals = getVarint(position);
+			for (int j = 0; j < literals; j++) {
+				latest[i++] ^= ring[position[0]++ % ring.length];
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * append an encoded entry, evicting the oldest ones until it fits
+	 */
+	private void push(int length) {
+		if (length > ring.length) {
+			//a single entry bigger than the whole ring, history cannot go back past here
+			count = 0;
+			used = 0;
+			return;
+		}
+		while (used + length > ring.length) {
+			used -= lengths[first];
+			first = (first + 1) % starts.length;
+			count--;
+		}
+		if (count == starts.length) {
+			int[] newStarts = new int[starts.length * 2];
+			int[] newLengths = new int[lengths.length * 2];
+			for (int i = 0; i < count; i++) {
+				newStarts[i] = starts[(first + i) % starts.length];
+				newLengths[i] = lengths[(first + i) % lengths.length];
+			}
+			starts = newStarts;
+			lengths = newLengths;
+			first = 0;
+		}
+		int start = 0;
+		if (count > 0) {
+			int last = (first + count - 1) % starts.length;
+			start = (starts[last] + lengths[last]) % ring.length;
+		}
+		int tail = Math.min(length, ring.length - start);
+		System.arraycopy(encoded, 0, ring, start, tail);
+		System.arraycopy(encoded, tail, ring, 0, length - tail);
+		int index = (first + count) % starts.length;
+		starts[index] = start;
+		lengths[index] = length;
+		count++;
+		used += length;
+	}
+
+	private static int putVarint(byte[] out, int position, int value) {
+		while ((value & ~0x7F) != 0) {
+			out[position++] = (byte) (value | 0x80);
+			value >>>= 7;
+		}
+		out[position++] = (byte) value;
+		return position;
+	}
+
+	private int getVarint(int[] position) {
+		int value = 0;
+		int shift = 0;
+		while (true) {
+			int b = ring[position[0]++ % ring.length];
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+			shift += 7;
+		}
+	}
+}
@@ -0,0 +1,137 @@
+package state;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import cpu.CPU;
+import memory.Memory;
+
+/**
+ * A snapshot of the whole machine in one reusable direct buffer.
+ * Capturing is a handful of field writes plus bulk copies of the memory
+ * arrays, so a snapshot takes microseconds and never allocates.
+ *
+ * layout (little endian):
+ * magic "GBSS" (4) | version (4) | rom checksum (4) | device count (4) | device signature (4)
+ * | cartridge ram size (4) | body size (4) | cpu registers and clock | memory and banking state | io device state, in the order the devices were mapped
+ */
+public class SaveState {
+	public static final int MAGIC = 0x53534247; //"GBSS" read as a little endian int
+	public static final int VERSION = 6;
+	private static final int HEADER = 28;
+
+	private static final int CAPACITY = 0x40000; //room for the 64kb array plus cartridge ram
+
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(CAPACITY).order(ByteOrder.LITTLE_ENDIAN);
+
+	public SaveState() {
+		buffer.limit(0);
+	}
+
+	/**
+	 * overwrite this snapshot with the current machine state
+	 */
+	public void capture(CPU cpu, Memory memory) {
+		buffer.clear();
+		buffer.putInt(MAGIC).putInt(VERSION).putInt(romChecksum(memory));
+		buffer.putInt(memory.getDeviceCount()).putInt(memory.getDeviceSignature());
+		buffer.putInt(ramSize(memory)).putInt(0);
+		cpu.saveState(buffer);
+		memory.saveState(buffer);
+		buffer.putInt(HEADER - 4, buffer.position() - HEADER);
+		buffer.flip();
+	}
+
+	/**
+	 * put the machine back into the captured state
+	 * @throws IllegalStateException if nothing was captured, the data is not a save state,
+	 * is truncated or was saved with another rom, cartridge ram or io devices. All of that
+	 * is checked up front, so the machine is left untouched in that case
+	 */
+	public void restore(CPU cpu, Memory memory) {
+		ByteBuffer in = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		if (in.remaining() < HEADER || in.getInt() != MAGIC) {
+			throw new IllegalStateException("Not a save state");
+		}
+		int version = in.getInt();
+		if (version != VERSION) {
+			throw new IllegalStateException("Unsupported save state version " + version);
+		}
+		int checksum = in.getInt();
+		if (checksum != romChecksum(memory)) {
+			throw new IllegalStateException("Save state is for a different rom (checksum " + Integer.toHexString(checksum) + ")");
+		}
+		int devices = in.getInt();
+		if (devices != memory.getDeviceCount() || in.getInt() != memory.getDeviceSignature()) {
+			throw new IllegalStateException("Save state is for other io devices (" + devices + " saved, this machine has "
+					+ memory.getDeviceNames() + ")");
+		}
+		int ram = in.getInt();
+		if (ram != ramSize(memory)) {
+			throw new IllegalStateException("Save state has " + ram + " bytes of cartridge ram, expected " + ramSize(memory));
+		}
+		//the devices checked above always write the same number of bytes, so the length is all that is left
+		int body = in.getInt();
+		if (body != in.remaining()) {
+			throw new IllegalStateException("Save state is truncated (" + in.remaining() + " of " + body + " bytes)");
+		}
+		cpu.loadState(in);
+		memory.loadState(in);
+	}
+
+	private static int ramSize(Memory memory) {
+		return memory.getExternalRam() == null ? 0 : memory.getExternalRam().getSize();
+	}
+
+	private static int romChecksum(Memory memory) {
+		return memory.getCartridge() == null ? 0 : memory.getCartridge().getChecksum();
+	}
+
+	/**
+	 * @return read only view of the encoded snapshot
+	 */
+	public ByteBuffer getData() {
+		return buffer.asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	public int size() {
+		return buffer.limit();
+	}
+
+	/**
+	 * replace this snapshot with encoded bytes, e.g. from another instance
+	 */
+	public void setData(ByteBuffer data) {
+		if (data.remaining() > CAPACITY) {
+			throw new IllegalArgumentException("Save state too large: " + data.remaining() + " bytes");
+		}
+		buffer.clear();
+		buffer.put(data.duplicate());
+		buffer.flip();
+	}
+
+	public void writeTo(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer out = buffer.duplicate();
+			while (out.hasRemaining()) {
+				channel.write(out);
+			}
+		}
+	}
+
+	public void readFrom(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			if (channel.size() > CAPACITY) {
+				throw new IOException(file + " is too large to be a save state");
+			}
+			buffer.clear();
+			while (channel.read(buffer) > 0) {
+			}
+			buffer.flip();
+		}
+	}
+}
@@ -0,0 +1,394 @@
+package video;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import cpu.Scheduler;
+import memory.InterruptController;
+import memory.IoDevice;
+import memory.Memory;
+
+/**
+ * The DMG picture processor, driven by the cpu's scheduler. Each visible line
+ * costs two events: HBlank, where the whole line is drawn into the
+ * framebuffer, and the start of the next line. VBlank lines cost one. Mode 3
+ * has no event, STAT works out the mode from the clock when it is read.
+ *
+ * Tiles are decoded to one byte per pixel the first time they are drawn and
+ * stay decoded until Memory reports a write to their bytes in VRAM. Lines
+ * are drawn a tile row at a time, copied out of the decoded tiles.
+ *
+ * usage: new PPU(memory, cpu.getScheduler()), then getFrame() after each frame
+ */
+public class PPU implements IoDevice {
+	public static final int WIDTH = 160;
+	public static final int HEIGHT = 144;
+
+	private static final int LINE_CYCLES = 456;
+	private static final int OAM_CYCLES = 80; //mode 2
+	private static final int HBLANK_START = 252; //mode 3 is taken as a flat 172 cycles
+	private static final int LINES = 154;
+	private static final int TILE_COUNT = 384;
+
+	//DMG shades as ARGB, white to black
+	private static final int[] SHADES = {0xFFFFFFFF, 0xFFAAAAAA, 0xFF555555, 0xFF000000};
+
+	private final Scheduler scheduler;
+	private final InterruptController interrupts;
+	private final ByteBuffer vram;
+	private final ByteBuffer oam;
+
+	//registers, values after the boot rom
+	private int LCDC = 0x91;
+	private int STAT = 0; //only the interrupt select bits 3-6 are stored
+	private int SCY, SCX, LY, LYC, WY, WX;
+	private int BGP = 0xFC, OBP0 = 0xFF, OBP1 = 0xFF;
+
+	private int mode = 2; //0, 1 or 2 as set by the events, 3 is worked out on read
+	private long lineStart; //clock when the current line began
+	private int windowLine; //window rows drawn so far this frame
+	private boolean statLine; //STAT interrupt line, the interrupt fires on its rising edge
+	private long frames;
+
+	private final int[] frame = new int[WIDTH * HEIGHT];
+	private final int[] lineColors = new int[WIDTH]; //background color numbers of the line, for sprite priority
+	private final int[] lineShades = new int[4]; //BGP applied to SHADES for the line
+
+	//decoded tiles, 64 color numbers each
+	private final byte[] tiles = new byte[TILE_COUNT * 64];
+	private final boolean[] dirty = new boolean[TILE_COUNT];
+
+	//sprites on the current line
+	private final int[] lineSprites = new int[10];
+
+	private final Scheduler.Event hblank = new Scheduler.Event() {
+		@Override
+		public void fire(long time) {
+			renderLine(LY);
+			mode = 0;
+			statLine = lycSource(); //mode 3 has no STAT source of its own
+			updateStat();
+			scheduler.schedule(lineEnd, lineStart + LINE_CYCLES);
+		}
+	};
+
+	private final Scheduler.Event lineEnd = new Scheduler.Event() {
+		@Override
+		public void fire(long time) {
+			startLine(time, (LY + 1) % LINES);
+		}
+	};
+
+	public PPU(Memory memory, Scheduler scheduler) {
+		this.scheduler = scheduler;
+		this.interrupts = memory.getInterrupts();
+		this.vram = memory.getVideoRam();
+		this.oam = memory.getOam();
+		Arrays.fill(dirty, true);
+		memory.mapIo(0xFF40, 0xFF45, this);
+		memory.mapIo(0xFF47, 0xFF4B, this);
+		memory.setTileWriteHook(address -> dirty[(address - 0x8000) >> 4] = true);
+		startLine(scheduler.now(), 0);
+	}
+
+	/**
+	 * @return the framebuffer, ARGB, row by row. Reused, complete after every VBlank
+	 */
+	public int[] getFrame() {
+		return frame;
+	}
+
+	/**
+	 * @return frames finished since power on
+	 */
+	public long getFrameCount() {
+		return frames;
+	}
+
+	private void startLine(long time, int line) {
+		lineStart = time;
+		LY = line;
+		if (line < HEIGHT) {
+			mode = 2;
+			scheduler.schedule(hblank, time + HBLANK_START);
+		} else {
+			if (line == HEIGHT) {
+				frames++;
+				windowLine = 0;
+				interrupts.request(InterruptController.VBLANK);
+			}
+			mode = 1;
+			scheduler.schedule(lineEnd, time + LINE_CYCLES);
+		}
+		updateStat();
+	}
+
+	private boolean lycSource() {
+		return LY == LYC && (STAT & 0x40) != 0;
+	}
+
+	/**
+	 * re-evaluate the STAT interrupt line after a mode, LY or register change
+	 */
+	private void updateStat() {
+		boolean line = lcdOn() && (lycSource()
+				|| (mode == 0 && (STAT & 0x08) != 0)
+				|| (mode == 1 && (STAT & 0x10) != 0)
+				|| (mode == 2 && (STAT & 0x20) != 0));
+		if (line && !statLine) {
+			interrupts.request(InterruptController.LCD);
+		}
+		statLine = line;
+	}
+
+	private boolean lcdOn() {
+		return (LCDC & 0x80) != 0;
+	}
+
+	private int currentMode() {
+		if (!lcdOn()) return 0;
+		if (mode != 2) return mode;
+		return scheduler.now() - lineStart < OAM_CYCLES ? 2 : 3;
+	}
+
+	@Override
+	public int read(int address) {
+		switch (address) {
+		case 0xFF40: return LCDC;
+		case 0xFF41: return 0x80 | STAT | (LY == LYC ? 0x04 : 0) | currentMode();
+		case 0xFF42: return SCY;
+		case 0xFF43: return SCX;
+		case 0xFF44: return LY;
+		case 0xFF45: return LYC;
+		case 0xFF47: return BGP;
+		case 0xFF48: return OBP0;
+		case 0xFF49: return OBP1;
+		case 0xFF4A: return WY;
+		case 0xFF4B: return WX;
+		default: return 0xFF;
+		}
+	}
+
+	@Override
+	public void write(int address, int value) {
+		switch (address) {
+		case 0xFF40:
+			boolean wasOn = lcdOn();
+			LCDC = value;
+			if (wasOn && !lcdOn()) {
+				//LCD off, everything stops at line 0
+				scheduler.cancel(hblank);
+				scheduler.cancel(lineEnd);
+				LY = 0;
+				mode = 0;
+				statLine = false;
+			} else if (!wasOn && lcdOn()) {
+				windowLine = 0;
+				startLine(scheduler.now(), 0);
+			}
+			break;
+		case 0xFF41: STAT = value & 0x78; updateStat(); break;
+		case 0xFF42: SCY = value; break;
+		case 0xFF43: SCX = value; break;
+		case 0xFF45: LYC = value; updateStat(); break;
+		case 0xFF47: BGP = value; break;
+		case 0xFF48: OBP0 = value; break;
+		case 0xFF49: OBP1 = value; break;
+		case 0xFF4A: WY = value; break;
+		case 0xFF4B: WX = value; break;
+		default: break; //LY is read only
+		}
+	}
+
+	/**
+	 * @return offset of the decoded tile in tiles, decoding it if VRAM changed under it
+	 */
+	private int tile(int number) {
+		if (dirty[number]) {
+			int source = number << 4;
+			int target = number << 6;
+			for (int row = 0; row < 8; row++) {
+				int low = vram.get(source + row * 2) & 0xFF;
+				int high = vram.get(source + row * 2 + 1) & 0xFF;
+				for (int x = 0; x < 8; x++) {
+					int bit = 7 - x;
+					tiles[target + row * 8 + x] = (byte) (((low >> bit) & 1) | (((high >> bit) & 1) << 1));
+				}
+			}
+			dirty[number] = false;
+		}
+		return number << 6;
+	}
+
+	/**
+	 * @param index byte from a tile map
+	 * @return tile number 0-383, LCDC bit 4 picks 8000 unsigned or 8800 signed addressing
+	 */
+	private int mapTile(int index) {
+		return (LCDC & 0x10) != 0 ? index : 256 + (byte) index;
+	}
+
+	private void renderLine(int line) {
+		int offset = line * WIDTH;
+
+		if ((LCDC & 0x01) != 0) {
+			for (int color = 0; color < 4; color++) {
+				lineShades[color] = SHADES[(BGP >> (color << 1)) & 3];
+			}
+
+			//background
+			int map = (LCDC & 0x08) != 0 ? 0x1C00 : 0x1800;
+			int y = (line + SCY) & 0xFF;
+			renderTiles(map + (y >> 3) * 32, (y & 7) << 3, 0, SCX, offset);
+
+			//window, drawn over the background from WX - 7
+			int left = WX - 7;
+			if ((LCDC & 0x20) != 0 && line >= WY && left < WIDTH) {
+				map = (LCDC & 0x40) != 0 ? 0x1C00 : 0x1800;
+				int start = Math.max(0, left);
+				renderTiles(map + (windowLine >> 3) * 32, (windowLine & 7) << 3, start, start - left, offset);
+				windowLine++;
+			}
+		} else {
+			//background and window off, the line is blank
+			Arrays.fill(lineColors, 0);
+			Arrays.fill(frame, offset, offset + WIDTH, SHADES[0]);
+		}
+
+		if ((LCDC & 0x02) != 0) {
+			renderSprites(line, offset);
+		}
+	}
+
+	/**
+	 * draws one row of a tile map from x to the end of the line, a tile at a time
+	 * @param mapRow offset in VRAM of the map row
+	 * @param row offset of the pixel row within a decoded tile
+	 * @param scroll map pixel that lands on x
+	 */
+	private void renderTiles(int mapRow, int row, int x, int scroll, int offset) {
+		while (x < WIDTH) {
+			int pixels = tile(mapTile(vram.get(mapRow + ((scroll >> 3) & 31)) & 0xFF)) + row + (scroll & 7);
+			int count = Math.min(8 - (scroll & 7), WIDTH - x);
+			for (int i = 0; i < count; i++) {
+				int color = tiles[pixels + i];
+				lineColors[x + i] = color;
+				frame[offset + x + i] = lineShades[color];
+			}
+			x += count;
+			scroll += count;
+		}
+	}
+
+	private void renderSprites(int line, int offset) {
+		int height = (LCDC & 0x04) != 0 ? 16 : 8;
+
+		//the first 10 sprites in OAM order that cover this line
+		int count = 0;
+		for (int i = 0; i < 40 && count < 10; i++) {
+			int top = (oam.get(i * 4) & 0xFF) - 16;
+			if (line >= top && line < top + height) {
+				lineSprites[count++] = i;
+			}
+		}
+		//priority goes to the smaller X, then to the lower OAM index
+		for (int i = 1; i < count; i++) {
+			int sprite = lineSprites[i];
+			int x = oam.get(sprite * 4 + 1) & 0xFF;
+			int j = i - 1;
+			while (j >= 0 && (oam.get(lineSprites[j] * 4 + 1) & 0xFF) > x) {
+				lineSprites[j + 1] = lineSprites[j];
+				j--;
+			}
+			lineSprites[j + 1] = sprite;
+		}
+
+		//lowest priority first so the winners end up on top
+		for (int i = count - 1; i >= 0; i--) {
+			int base = lineSprites[i] * 4;
+			int top = (oam.get(base) & 0xFF) - 16;
+			int left = (oam.get(base + 1) & 0xFF) - 8;
+			int number = oam.get(base + 2) & 0xFF;
+			int attributes = oam.get(base + 3) & 0xFF;
+
+			int row = line - top;
+			if ((attributes & 0x40) != 0) row = height - 1 - row; //Y flip
+			if (height == 16) {
+				number = (number & 0xFE) + (row >> 3);
+				row &= 7;
+			}
+			int pixels = tile(number) + (row << 3);
+			int palette = (attributes & 0x10) != 0 ? OBP1 : OBP0;
+			boolean behind = (attributes & 0x80) != 0;
+			boolean flip = (attributes & 0x20) != 0;
+
+			for (int px = 0; px < 8; px++) {
+				int x = left + px;
+				if (x < 0 || x >= WIDTH) continue;
+				int color = tiles[pixels + (flip ? 7 - px : px)];
+				if (color == 0) continue; //transparent
+				if (behind && lineColors[x] != 0) continue;
+				frame[offset + x] = SHADES[(palette >> (color << 1)) & 3];
+			}
+		}
+	}
+
+	/**
+	 * the LCD stops with the cpu, blank at line 0 like when it is switched off
+	 */
+	@Override
+	public void stop() {
+		scheduler.cancel(hblank);
+		scheduler.cancel(lineEnd);
+		LY = 0;
+		mode = 0;
+		statLine = false;
+	}
+
+	@Override
+	public void resume() {
+		if (lcdOn()) {
+			windowLine = 0;
+			startLine(scheduler.now(), 0);
+		}
+	}
+
+	@Override
+	public void saveState(ByteBuffer out) {
+		out.put((byte) LCDC).put((byte) STAT).put((byte) SCY).put((byte) SCX).put((byte) LY).put((byte) LYC);
+		out.put((byte) BGP).put((byte) OBP0).put((byte) OBP1).put((byte) WY).put((byte) WX);
+		out.put((byte) mode).put((byte) windowLine).put((byte) (statLine ? 1 : 0));
+		out.putLong(lineStart).putLong(frames);
+	}
+
+	@Override
+	public void loadState(ByteBuffer in) {
+		LCDC = in.get() & 0xFF;
+		STAT = in.get() & 0xFF;
+		SCY = in.get() & 0xFF;
+		SCX = in.get() & 0xFF;
+		LY = in.get() & 0xFF;
+		LYC = in.get() & 0xFF;
+		BGP = in.get() & 0xFF;
+		OBP0 = in.get() & 0xFF;
+		OBP1 = in.get() & 0xFF;
+		WY = in.get() & 0xFF;
+		WX = in.get() & 0xFF;
+		mode = in.get();
+		windowLine = in.get() & 0xFF;
+		statLine = in.get() != 0;
+		lineStart = in.getLong();
+		frames = in.getLong();
+
+		//vram came back too, and the next event follows from the mode
+		Arrays.fill(dirty, true);
+		scheduler.cancel(hblank);
+		scheduler.cancel(lineEnd);
+		if (lcdOn()) {
+			if (mode == 2) {
+				scheduler.schedule(hblank, lineStart + HBLANK_START);
+			} else {
+				scheduler.schedule(lineEnd, lineStart + LINE_CYCLES);
+			}
+		}
+	}
+}
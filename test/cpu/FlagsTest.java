@@ -0,0 +1,118 @@
+package cpu;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+import memory.Memory;
+
+/**
+ * the lazily kept flags against flags computed eagerly, for every input
+ */
+class FlagsTest {
+
+	private static final int Z = 0x80, N = 0x40, H = 0x20, C = 0x10;
+
+	private final CPU cpu = new CPU();
+
+	FlagsTest() {
+		cpu.setMemory(new Memory());
+	}
+
+	/**
+	 * executes op from C000 with A=a, B=b and the given flags
+	 */
+	private void run(int op, int a, int b, int f) {
+		cpu.setPC(0xC000);
+		cpu.setA(a);
+		cpu.setB(b);
+		cpu.setF(f);
+		cpu.execute((byte) op);
+	}
+
+	private static int flags(int result, int n, boolean h, boolean c) {
+		return ((result & 0xFF) == 0 ? Z : 0) | n | (h ? H : 0) | (c ? C : 0);
+	}
+
+	private void check(String name, int a, int b, int f, int expectedA, int expectedF) {
+		if (cpu.getA() != expectedA || cpu.getF() != expectedF) {
+			assertEquals(String.format("%02X %02X F=%02X: A=%02X F=%02X", a, b, f, expectedA, expectedF),
+					String.format("%02X %02X F=%02X: A=%02X F=%02X", a, b, f, cpu.getA(), cpu.getF()), name);
+		}
+	}
+
+	@Test
+	void alu() {
+		for (int f = 0; f < 0x100; f += 0x10) {
+			int carry = (f & C) != 0 ? 1 : 0;
+			for (int a = 0; a < 0x100; a++) {
+				for (int b = 0; b < 0x100; b++) {
+					int r = a + b;
+					run(0x80, a, b, f);
+					check("ADD", a, b, f, r & 0xFF, flags(r, 0, (a & 0xF) + (b & 0xF) > 0xF, r > 0xFF));
+
+					r = a + b + carry;
+					run(0x88, a, b, f);
+					check("ADC", a, b, f, r & 0xFF, flags(r, 0, (a & 0xF) + (b & 0xF) + carry > 0xF, r > 0xFF));
+
+					r = a - b;
+					int sub = flags(r, N, (a & 0xF) < (b & 0xF), r < 0);
+					run(0x90, a, b, f);
+					check("SUB", a, b, f, r & 0xFF, sub);
+					run(0xB8, a, b, f);
+					check("CP", a, b, f, a, sub);
+
+					r = a - b - carry;
+					run(0x98, a, b, f);
+					check("SBC", a, b, f, r & 0xFF, flags(r, N, (a & 0xF) - (b & 0xF) - carry < 0, r < 0));
+				}
+			}
+		}
+	}
+
+	@Test
+	void incDec() {
+		for (int f = 0; f < 0x100; f += 0x10) {
+			boolean carry = (f & C) != 0;
+			for (int b = 0; b < 0x100; b++) {
+				run(0x04, 0x00, b, f);
+				assertEquals(b + 1 & 0xFF, cpu.getB());
+				check("INC", b, b, f, 0x00, flags(b + 1, 0, (b & 0xF) == 0xF, carry));
+
+				run(0x05, 0x00, b, f);
+				assertEquals(b - 1 & 0xFF, cpu.getB());
+				check("DEC", b, b, f, 0x00, flags(b - 1, N, (b & 0xF) == 0, carry));
+			}
+		}
+	}
+
+	@Test
+	void daa() {
+		for (int f = 0; f < 0x100; f += 0x10) {
+			boolean n = (f & N) != 0;
+			boolean h = (f & H) != 0;
+			boolean c = (f & C) != 0;
+			for (int a = 0; a < 0x100; a++) {
+				int r = a;
+				boolean carry = c;
+				if (!n) {
+					if (c || r > 0x99) {
+						r += 0x60;
+						carry = true;
+					}
+					if (h || (r & 0xF) > 9) {
+						r += 0x06;
+					}
+				} else {
+					if (c) {
+						r -= 0x60;
+					}
+					if (h) {
+						r -= 0x06;
+					}
+				}
+				run(0x27, a, 0x00, f);
+				check("DAA", a, 0x00, f, r & 0xFF, flags(r, n ? N : 0, false, carry));
+			}
+		}
+	}
+}
@@ -0,0 +1,84 @@
+package cpu;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import memory.Memory;
+
+class HaltTest {
+
+	private final Memory memory = new Memory();
+	private final CPU cpu = new CPU();
+
+	/**
+	 * code in work ram at C000, interrupts off
+	 */
+	private void load(int... code) {
+		for (int i = 0; i < code.length; i++) {
+			memory.write(0xC000 + i, code[i]);
+		}
+		cpu.setMemory(memory);
+		cpu.setPC(0xC000);
+		cpu.setIME(false);
+	}
+
+	/**
+	 * HALT with a timer interrupt pending and IME off, then INC A which is read twice
+	 */
+	private void haltBug() {
+		load(0x76, //C000 HALT
+				0x3C, //C001 INC A
+				0x18, 0xFE); //C002 JR C002
+		memory.write(0xFFFF, 0x04);
+		memory.write(0xFF0F, 0x04);
+		cpu.setA(0x00);
+	}
+
+	@Test
+	void haltBugCountsBothRunsUntil() {
+		haltBug();
+		assertTrue(cpu.runUntil(c -> c.getPC() == 0xC002, 100));
+		assertEquals(0x02, cpu.getA());
+		assertEquals(3, cpu.getInstructionCount());
+	}
+
+	@Test
+	void haltBugInRunFor() {
+		haltBug();
+		cpu.runFor(100);
+		assertEquals(0x02, cpu.getA());
+		assertEquals(0xC002, cpu.getPC());
+	}
+
+	@Test
+	void haltBugInStep() {
+		haltBug();
+		cpu.step();
+		cpu.step();
+		cpu.step();
+		assertEquals(0x02, cpu.getA());
+		assertEquals(0xC002, cpu.getPC());
+		assertEquals(3, cpu.getInstructionCount());
+	}
+
+	@Test
+	void stopFreezesTheDividerAndIgnoresAnOldJoypadRequest() {
+		load(0x10, 0x00, //C000 STOP
+				0x18, 0xFE); //C002 JR C002
+		memory.write(0xFFFF, 0x10);
+		memory.write(0xFF0F, 0x10);
+		cpu.runFor(CPU.CYCLES_PER_FRAME);
+		assertTrue(cpu.isHalted());
+		assertEquals(0xC002, cpu.getPC());
+		assertEquals(0x00, memory.read(0xFF04));
+		assertEquals(0x00, memory.read(0xFF0F) & 0x10);
+
+		//a button press wakes it, the divider starts over from 0
+		memory.write(0xFF0F, 0x10);
+		cpu.runFor(0x100);
+		assertFalse(cpu.isHalted());
+		assertEquals(0x01, memory.read(0xFF04));
+	}
+}
@@ -0,0 +1,224 @@
+package cpu;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import memory.Memory;
+
+class OpcodeTest {
+
+	//t-cycles per opcode with the branch not taken, 0 for the unused ones and the CB prefix
+	private static final int[] CYCLES = {
+			4, 12,  8,  8,  4,  4,  8,  4, 20,  8,  8,  8,  4,  4,  8,  4,
+			4, 12,  8,  8,  4,  4,  8,  4, 12,  8,  8,  8,  4,  4,  8,  4,
+			8, 12,  8,  8,  4,  4,  8,  4,  8,  8,  8,  8,  4,  4,  8,  4,
+			8, 12,  8,  8, 12, 12, 12,  4,  8,  8,  8,  8,  4,  4,  8,  4,
+			4,  4,  4,  4,  4,  4,  8,  4,  4,  4,  4,  4,  4,  4,  8,  4,
+			4,  4,  4,  4,  4,  4,  8,  4,  4,  4,  4,  4,  4,  4,  8,  4,
+			4,  4,  4,  4,  4,  4,  8,  4,  4,  4,  4,  4,  4,  4,  8,  4,
+			8,  8,  8,  8,  8,  8,  4,  8,  4,  4,  4,  4,  4,  4,  8,  4,
+			4,  4,  4,  4,  4,  4,  8,  4,  4,  4,  4,  4,  4,  4,  8,  4,
+			4,  4,  4,  4,  4,  4,  8,  4,  4,  4,  4,  4,  4,  4,  8,  4,
+			4,  4,  4,  4,  4,  4,  8,  4,  4,  4,  4,  4,  4,  4,  8,  4,
+			4,  4,  4,  4,  4,  4,  8,  4,  4,  4,  4,  4,  4,  4,  8,  4,
+			8, 12, 12, 16, 12, 16,  8, 16,  8, 16, 12,  0, 12, 24,  8, 16,
+			8, 12, 12,  0, 12, 16,  8, 16,  8, 16, 12,  0, 12,  0,  8, 16,
+			12, 12, 8,  0,  0, 16,  8, 16, 16,  4, 16,  0,  0,  0,  8, 16,
+			12, 12, 8,  4,  0, 16,  8, 16, 12,  8, 16,  4,  0,  0,  8, 16,
+	};
+
+	private static final int[] LENGTHS = {
+			1, 3, 1, 1, 1, 1, 2, 1, 3, 1, 1, 1, 1, 1, 2, 1,
+			2, 3, 1, 1, 1, 1, 2, 1, 2, 1, 1, 1, 1, 1, 2, 1,
+			2, 3, 1, 1, 1, 1, 2, 1, 2, 1, 1, 1, 1, 1, 2, 1,
+			2, 3, 1, 1, 1, 1, 2, 1, 2, 1, 1, 1, 1, 1, 2, 1,
+			1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1,
+			1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1,
+			1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1,
+			1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1,
+			1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1,
+			1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1,
+			1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1,
+			1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1,
+			1, 1, 3, 3, 3, 1, 2, 1, 1, 1, 3, 2, 3, 3, 2, 1,
+			1, 1, 3, 1, 3, 1, 2, 1, 1, 1, 3, 1, 3, 1, 2, 1,
+			2, 1, 1, 1, 1, 1, 2, 1, 2, 1, 3, 1, 1, 1, 2, 1,
+			2, 1, 1, 1, 1, 1, 2, 1, 2, 1, 3, 1, 1, 1, 2, 1,
+	};
+
+	/**
+	 * code in work ram at C000, stack and pointers in work ram too
+	 */
+	private static CPU load(int... code) {
+		Memory memory = new Memory();
+		for (int i = 0; i < code.length; i++) {
+			memory.write(0xC000 + i, code[i]);
+		}
+		CPU cpu = new CPU();
+		cpu.setMemory(memory);
+		cpu.setPC(0xC000);
+		cpu.setSP(0xDFF0);
+		cpu.setBC(0xC180);
+		cpu.setDE(0xC180);
+		cpu.setHL(0xC180);
+		return cpu;
+	}
+
+	private static int run(CPU cpu) {
+		return cpu.execute(cpu.fetch());
+	}
+
+	/**
+	 * runs A op n for an immediate alu opcode, returns A and F as AF
+	 */
+	private static int alu(int op, int a, int n, int f) {
+		CPU cpu = load(op, n);
+		cpu.setA(a);
+		cpu.setF(f);
+		run(cpu);
+		return cpu.getAF();
+	}
+
+	private static boolean conditional(int op) {
+		return (op & 0xE7) == 0x20 || (op & 0xE7) == 0xC0 || (op & 0xE7) == 0xC2 || (op & 0xE7) == 0xC4;
+	}
+
+	/**
+	 * F that fails the condition in bits 3-4 of a conditional opcode: NZ Z NC C
+	 */
+	private static int notTaken(int op) {
+		return new int[] {0x80, 0x00, 0x10, 0x00}[op >> 3 & 3];
+	}
+
+	private static int taken(int op) {
+		return new int[] {0x00, 0x80, 0x00, 0x10}[op >> 3 & 3];
+	}
+
+	@Test
+	void add() {
+		assertEquals(0x00B0, alu(0xC6, 0x3A, 0xC6, 0x00));
+		assertEquals(0x3B30, alu(0xC6, 0x3C, 0xFF, 0x00));
+		assertEquals(0x4E00, alu(0xC6, 0x3C, 0x12, 0x00));
+	}
+
+	@Test
+	void adc() {
+		assertEquals(0xF120, alu(0xCE, 0xE1, 0x0F, 0x10));
+		assertEquals(0x1D10, alu(0xCE, 0xE1, 0x3B, 0x10));
+		assertEquals(0x00B0, alu(0xCE, 0xE1, 0x1E, 0x10));
+	}
+
+	@Test
+	void sub() {
+		assertEquals(0x00C0, alu(0xD6, 0x3E, 0x3E, 0x00));
+		assertEquals(0x2F60, alu(0xD6, 0x3E, 0x0F, 0x00));
+		assertEquals(0xFE50, alu(0xD6, 0x3E, 0x40, 0x00));
+	}
+
+	@Test
+	void sbc() {
+		assertEquals(0x1040, alu(0xDE, 0x3B, 0x2A, 0x10));
+		assertEquals(0x00C0, alu(0xDE, 0x3B, 0x3A, 0x10));
+		assertEquals(0xEB70, alu(0xDE, 0x3B, 0x4F, 0x10));
+	}
+
+	@Test
+	void cpLeavesA() {
+		assertEquals(0x3C60, alu(0xFE, 0x3C, 0x2F, 0x00));
+		assertEquals(0x3C50, alu(0xFE, 0x3C, 0x40, 0x00));
+		assertEquals(0x3CC0, alu(0xFE, 0x3C, 0x3C, 0x00));
+	}
+
+	@Test
+	void logic() {
+		assertEquals(0x1A20, alu(0xE6, 0x5A, 0x3F, 0x00));
+		assertEquals(0x00A0, alu(0xE6, 0x5A, 0x00, 0x00));
+		assertEquals(0x7F00, alu(0xF6, 0x5A, 0x3F, 0xF0));
+		CPU cpu = load(0xAF); //XOR A
+		cpu.setAF(0x5A70);
+		run(cpu);
+		assertEquals(0x0080, cpu.getAF());
+	}
+
+	@Test
+	void incDec() {
+		CPU cpu = load(0x04); //INC B, carry untouched
+		cpu.setB(0xFF);
+		cpu.setF(0x10);
+		run(cpu);
+		assertEquals(0x00, cpu.getB());
+		assertEquals(0xB0, cpu.getF());
+
+		cpu = load(0x05); //DEC B
+		cpu.setB(0x01);
+		cpu.setF(0x00);
+		run(cpu);
+		assertEquals(0x00, cpu.getB());
+		assertEquals(0xC0, cpu.getF());
+
+		cpu = load(0x05);
+		cpu.setB(0x00);
+		cpu.setF(0x10);
+		run(cpu);
+		assertEquals(0xFF, cpu.getB());
+		assertEquals(0x70, cpu.getF());
+	}
+
+	@Test
+	void retiPopsAndEnablesAtOnce() {
+		CPU cpu = load(0xD9, 0x34, 0x12); //RETI, return address right after it
+		cpu.setSP(0xC001);
+		cpu.setIME(false);
+		assertEquals(16, run(cpu));
+		assertEquals(0x1234, cpu.getPC());
+		assertEquals(0xC003, cpu.getSP());
+		assertTrue(cpu.getIME());
+	}
+
+	@Test
+	void cyclesAndLengths() {
+		for (int op = 0; op < 0x100; op++) {
+			assertEquals(LENGTHS[op], CPU.length(op), String.format("length %02X", op));
+			if (CYCLES[op] == 0) {
+				continue;
+			}
+			CPU cpu = load(op, 0x80, 0xC1);
+			if (conditional(op)) {
+				cpu.setF(notTaken(op));
+			}
+			int cycles = run(cpu);
+			String name = String.format("%02X", op);
+			assertEquals(CYCLES[op], cycles, name);
+
+			boolean jumps = op == 0x18 || op == 0xC3 || op == 0xC9 || op == 0xCD || op == 0xD9 || op == 0xE9 || (op & 0xC7) == 0xC7;
+			if (!jumps) {
+				assertEquals(0xC000 + LENGTHS[op], cpu.getPC(), name);
+			}
+		}
+	}
+
+	@Test
+	void takenBranches() {
+		for (int op = 0; op < 0x100; op++) {
+			if (!conditional(op)) {
+				continue;
+			}
+			CPU cpu = load(op, 0x80, 0xC1);
+			cpu.setF(taken(op));
+			String name = String.format("%02X", op);
+			int taken = (op & 0xE7) == 0x20 ? 12 : (op & 0xE7) == 0xC0 ? 20 : (op & 0xE7) == 0xC2 ? 16 : 24;
+			assertEquals(taken, run(cpu), name);
+		}
+	}
+
+	@Test
+	void cbCycles() {
+		for (int op = 0; op < 0x100; op++) {
+			CPU cpu = load(0xCB, op);
+			int expected = (op & 0x07) != 6 ? 8 : (op & 0xC0) == 0x40 ? 12 : 16;
+			assertEquals(expected, run(cpu), String.format("CB %02X", op));
+			assertEquals(0xC002, cpu.getPC());
+		}
+	}
+}
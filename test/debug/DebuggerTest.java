@@ -0,0 +1,110 @@
+package debug;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import cpu.CPU;
+import memory.Memory;
+
+class DebuggerTest {
+
+	@TempDir
+	Path dir;
+
+	/**
+	 * 32kb rom without an mbc, code at the entry point
+	 */
+	private Memory load(int... code) throws IOException {
+		byte[] rom = new byte[0x8000];
+		for (int i = 0; i < code.length; i++) {
+			rom[0x100 + i] = (byte) code[i];
+		}
+		Path path = dir.resolve("test.gb");
+		Files.write(path, rom);
+		Memory memory = new Memory();
+		memory.loadROM(path.toString());
+		return memory;
+	}
+
+	@Test
+	void writeWatchpointOnTacStopsAfterTheWrite() throws IOException {
+		Memory memory = load(
+				0x3E, 0x05, //0100 LD A,05
+				0xE0, 0x07, //0102 LDH (07),A, starts the timer and schedules its overflow
+				0x00, //0104 NOP
+				0x00, //0105 NOP
+				0x18, 0xFC); //0106 JR 0104
+		CPU cpu = new CPU();
+		cpu.setMemory(memory);
+		cpu.setPC(0x0100);
+		Debugger debugger = new Debugger(cpu, memory);
+		debugger.watch(0xFF07, 0xFF07, false, true);
+
+		assertTrue(debugger.run(CPU.CYCLES_PER_FRAME));
+		assertEquals(Debugger.WRITE, debugger.getStopReason());
+		assertEquals(0xFF07, debugger.getStopAddress());
+		assertEquals(0x05, debugger.getStopValue());
+		assertEquals(0x0104, cpu.getPC());
+
+		//and it runs on from there
+		assertFalse(debugger.run(1000));
+		assertEquals(Debugger.NONE, debugger.getStopReason());
+	}
+
+	@Test
+	void watchpointStopsWhenTheInstructionReschedulesAfterIt() throws IOException {
+		Memory memory = load(
+				0x31, 0x00, 0x05, //0100 LD SP,0500
+				0x08, 0x06, 0xFF, //0103 LD (FF06),SP, stops on TMA, then writing TAC schedules the timer
+				0x00, //0106 NOP
+				0x00, //0107 NOP
+				0x18, 0xFC); //0108 JR 0106
+		CPU cpu = new CPU();
+		cpu.setMemory(memory);
+		cpu.setPC(0x0100);
+		Debugger debugger = new Debugger(cpu, memory);
+		debugger.watch(0xFF06, 0xFF06, false, true);
+
+		assertTrue(debugger.run(CPU.CYCLES_PER_FRAME));
+		assertEquals(Debugger.WRITE, debugger.getStopReason());
+		assertEquals(0xFF06, debugger.getStopAddress());
+		assertEquals(0x00, debugger.getStopValue());
+		assertEquals(0x0106, cpu.getPC());
+	}
+
+	@Test
+	void instructionFetchesDoNotHitReadWatchpoints() throws IOException {
+		Memory memory = load(
+				0x00, //0100 NOP
+				0xFA, 0x07, 0x01, //0101 LD A,(0107), the only read of a watched address
+				0x18, 0xFA, //0104 JR 0100
+				0x00,
+				0x42); //0107 data
+		CPU cpu = new CPU();
+		cpu.setMemory(memory);
+		cpu.setPC(0x0100);
+		Debugger debugger = new Debugger(cpu, memory);
+		debugger.watch(0x0100, 0x0107, true, false);
+
+		assertFalse(debugger.step());
+		assertTrue(debugger.step());
+		assertEquals(Debugger.READ, debugger.getStopReason());
+		assertEquals(0x0107, debugger.getStopAddress());
+		assertFalse(debugger.step());
+
+		//only the code stays watched, the breakpoint inside the block sends runFor
+		//down the single instruction path
+		debugger.unwatch(0x0107, 0x0107);
+		debugger.addBreakpoint(0x0104);
+		assertTrue(debugger.run(1000));
+		assertEquals(Debugger.BREAKPOINT, debugger.getStopReason());
+		assertEquals(0x0104, cpu.getPC());
+	}
+}